@@ -19,52 +19,854 @@ OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
 package com.github.unnatural.runtime;
 
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/**
+ * The records of one Adabas file, keyed by ISN.
+ * Changes made inside an {@link AdabasTransaction} are only applied when it commits, until then the store keeps
+ * the versions that the snapshots of open transactions still need.
+ * Records handed out are copies and records passed in are copied before they are kept, so a record read,
+ * changed and not yet updated never changes what other sessions see.
+ * A store may be shared by concurrent sessions: reads take no locks and changes lock only a stripe of ISNs.
+ * Updates and deletes put their records in {@link HoldQueue hold} until the session's transaction ends, or
+ * while they run for a session with no transaction.
+ * Stores created with their record class maintain the {@link Descriptor} indexes of the committed records,
+ * which serve queries made outside a transaction.
+ */
 public class AdabasStore<T extends AdabasRecord> {
+    private static final int STRIPES = 64;
+    // index entries a logical read takes at a time
+    private static final int CURSOR_PAGE = 256;
 
-    private final Map<Integer, T> recordsByIsn = new HashMap<>();
+    private final RecordStorage<T> recordsByIsn;
+    private final Class<T> recordClass;
+    // superseded versions by ISN, newest first, only kept while older snapshots are open
+    private final Map<Integer, Version<T>> history = new ConcurrentHashMap<>();
+    // the snapshot time of each open transaction reading the store, changes keep history while there are any
+    private final Map<AdabasTransaction, Long> openSnapshots = new ConcurrentHashMap<>();
+    private final Object[] stripes = new Object[STRIPES];
+    private final DescriptorIndexes<T> descriptors;
+    // the descriptor values each ISN is indexed under, records may have been changed in place since
+    private final IsnTable<Object[]> indexedValues = new IsnTable<>();
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+    // set when the store is attached to a write-ahead log
+    private volatile WriteAheadLog writeAheadLog;
+    private String logName;
+    private RecordLayout<T> logLayout;
 
-    private Integer maxIsn = 0;
+    public AdabasStore() {
+        this(false);
+    }
 
-    public void update(T updateViewGetForModify) {
-        if (recordsByIsn.containsKey(updateViewGetForModify.getIsn())) {
-            recordsByIsn.put(updateViewGetForModify.getIsn(), updateViewGetForModify);
-        } else {
-            throw new NaturalException("Record not found with ISN " + updateViewGetForModify.getIsn());
+    public AdabasStore(boolean reuseIsns) {
+        this(null, reuseIsns);
+    }
+
+    public AdabasStore(Class<T> recordClass) {
+        this(recordClass, false);
+    }
+
+    public AdabasStore(Class<T> recordClass, boolean reuseIsns) {
+        this(recordClass, new IsnTable<>(reuseIsns));
+    }
+
+    public AdabasStore(Class<T> recordClass, RecordStorage<T> storage) {
+        if (recordClass != null) {
+            // records are copied in and out, so a class the copy cannot handle is rejected before anything is stored
+            FieldCopier.checkCopyable(recordClass);
+        }
+        this.recordClass = recordClass;
+        this.recordsByIsn = storage;
+        this.descriptors = new DescriptorIndexes<>(recordClass);
+        Arrays.setAll(stripes, stripe -> new Object());
+        for (int isn = storage.nextIsn(1); isn > 0 && !descriptors.isEmpty(); isn = storage.nextIsn(isn + 1)) {
+            reindex(isn, storage.get(isn));
         }
     }
 
+    /**
+     * A store whose records are kept in a memory mapped segment file and survive a restart.
+     * Records read from it are copies, changes are only stored by update.
+     */
+    public static <T extends AdabasRecord> AdabasStore<T> persistent(Class<T> recordClass, Path segmentFile) {
+        return new AdabasStore<>(recordClass, new MappedRecordStorage<>(segmentFile, recordClass));
+    }
+
+    /*
+    GET, READ or FIND for a later UPDATE or DELETE: put the record in hold until the session's transaction ends,
+    waiting while another session holds it. Updates and deletes hold the records they change themselves.
+     */
+    public void hold(int isn) {
+        HoldQueue.hold(this, isn);
+    }
+
+    public void update(T updateViewGetForModify) {
+        int isn = updateViewGetForModify.getIsn();
+        HoldQueue.holdWhile(this, isn, () -> {
+            if (read(isn) == null) {
+                throw new NaturalException("Record not found with ISN " + isn);
+            }
+            write(isn, updateViewGetForModify, false);
+        });
+    }
+
     public T getByISN(BigDecimal isn) {
-        T result = recordsByIsn.get(isn);
+        return getByISN(isn.intValueExact());
+    }
+
+    public T getByISN(int isn) {
+        T result = read(isn);
         if (result == null) {
             throw new NaturalException("Record not found with ISN " + isn);
         }
-        return result;
+        return FieldCopier.copyOf(result);
     }
 
     public List<T> execQuery(AdabasOperation adabasOperation, String view, String where, int count) {
-        return Collections.emptyList();
+        if (adabasOperation == AdabasOperation.SELECT_COUNT) {
+            return Collections.emptyList();
+        }
+        return select(where, count);
     }
 
+    /*
+    FIND NUMBER, answered from the descriptor indexes when they cover the whole clause
+     */
     public int execCountQuery(AdabasOperation adabasOperation, String view, String where) {
-        return 0;
+        if (indexed()) {
+            WhereClause.Query<T> query = WhereClause.compile(where).bind(recordClass);
+            OptionalInt count = withIndexes(() -> query.count(descriptors));
+            if (count.isPresent()) {
+                return count.getAsInt();
+            }
+        }
+        return (int) readFrom(where, 1).count();
     }
 
     public List<T> readBy(String viewName, String where) {
-        return Collections.emptyList();
+        return readByStream(viewName, where).collect(Collectors.toList());
+    }
+
+    // matching records in ISN order, evaluated lazily as the stream is consumed
+    public Stream<T> readByStream(String viewName, String where) {
+        return readFrom(where, 1).map(FieldCopier::copyOf);
+    }
+
+    /*
+    A page of the matching records in ISN order, starting after the position of the continuation token returned
+    with the page before or from the first record when the token is null
+     */
+    public ResultPage<T> readPage(String where, int pageSize, String continuation) {
+        Continuation after = Continuation.decode(continuation);
+        if (after != null && after.descriptor() != null) {
+            throw new NaturalException("Continuation " + continuation + " is not a position in ISN order");
+        }
+        return ResultPage.of(readFrom(where, after == null ? 1 : after.isn() + 1).map(FieldCopier::copyOf), pageSize,
+                record -> Continuation.afterIsn(record.getIsn()));
+    }
+
+    // the stored records, which are copied before they are handed out
+    private Stream<T> readFrom(String where, int fromIsn) {
+        Optional<AdabasTransaction> transaction = AdabasTransaction.current();
+        if (transaction.isEmpty()) {
+            if (indexed()) {
+                WhereClause.Query<T> query = WhereClause.compile(where).bind(recordClass);
+                Optional<int[]> candidates = withIndexes(() -> query.candidates(descriptors));
+                if (candidates.isPresent()) {
+                    int[] isns = candidates.get();
+                    int first = Arrays.binarySearch(isns, fromIsn);
+                    return Arrays.stream(isns, first < 0 ? -first - 1 : first, isns.length)
+                            .mapToObj(recordsByIsn::get).filter(Objects::nonNull).filter(query);
+                }
+            }
+            return records(fromIsn, Integer.MAX_VALUE, new int[0], recordsByIsn::get).filter(query(where));
+        }
+        return visible(transaction.get(), fromIsn, Integer.MAX_VALUE).filter(query(where));
+    }
+
+    /*
+    FIND ... RETAIN AS setName: keep the ISNs of the matching records as a set of the session, returning their
+    number. The set is read from the descriptor indexes without reading records when they answer the whole clause.
+     */
+    public int retain(String setName, String where) {
+        return retain(setName, null, where);
+    }
+
+    /*
+    FIND WITH fromSet AND where RETAIN AS setName, refining a set the session retained before.
+    A null where keeps the whole of fromSet.
+     */
+    public int retain(String setName, String fromSet, String where) {
+        if (fromSet == null && where == null) {
+            throw new NaturalException("Nothing to retain as " + setName);
+        }
+        IsnBitmap from = fromSet == null ? null : RetainedSets.get(fromSet, this);
+        IsnBitmap isns = null;
+        if (where != null && indexed()) {
+            WhereClause.Query<T> query = WhereClause.compile(where).bind(recordClass);
+            isns = withIndexes(() -> query.matches(descriptors)).map(exact -> from == null ? exact : from.and(exact)).orElse(null);
+        }
+        if (isns == null) {
+            Stream<T> matching = from == null ? readFrom(where, 1) : readRetained(from, where);
+            isns = IsnBitmap.ofSorted(matching.mapToInt(AdabasRecord::getIsn).toArray());
+        }
+        RetainedSets.retain(setName, this, isns);
+        return isns.cardinality();
+    }
+
+    /*
+    FIND WITH setName AND where: the matching records of a retained set in ISN order, a null where matching all
+     */
+    public Stream<T> readRetained(String setName, String where) {
+        return readRetained(RetainedSets.get(setName, this), where).map(FieldCopier::copyOf);
+    }
+
+    // only the retained ISNs are read, narrowed first by any descriptor conditions
+    private Stream<T> readRetained(IsnBitmap retained, String where) {
+        if (where == null) {
+            return Arrays.stream(retained.toArray()).mapToObj(this::read).filter(Objects::nonNull);
+        }
+        IsnBitmap isns = retained;
+        if (indexed()) {
+            WhereClause.Query<T> query = WhereClause.compile(where).bind(recordClass);
+            isns = withIndexes(() -> query.candidateSet(descriptors)).map(retained::and).orElse(retained);
+        }
+        return Arrays.stream(isns.toArray()).mapToObj(this::read).filter(Objects::nonNull).filter(query(where));
+    }
+
+    /*
+    An index read: READ LOGICAL BY a {@link Descriptors} or, for {@link DescriptorsAll}, READ BY ISN with the
+    bounds taken as ISNs. A null bound is open.
+     */
+    public Stream<T> indexRead(IndexReadDescriptor descriptor, Object from, Object to) {
+        return indexReadStored(descriptor, from, to).map(FieldCopier::copyOf);
+    }
+
+    // the stored records an index read finds, for callers that copy them into views of their own
+    Stream<T> indexReadStored(IndexReadDescriptor descriptor, Object from, Object to) {
+        if (descriptor instanceof Descriptors declared) {
+            DescriptorIndex index = (declared.getName() != null ? descriptors.find(declared.getName()) : descriptors.find(declared.getNumber()))
+                    .orElseThrow(() -> new NaturalException("No " + declared + " declared on " + recordClass));
+            return readLogical(index, from, to, null);
+        }
+        int fromIsn = from == null ? 1 : (int) FieldValues.coerce(from, int.class);
+        int toIsn = to == null ? Integer.MAX_VALUE : (int) FieldValues.coerce(to, int.class);
+        return isnRange(fromIsn, toIsn);
+    }
+
+    /*
+    READ LOGICAL BY the descriptor STARTING FROM from ENDING AT to, in descriptor value then ISN order
+     */
+    public Stream<T> readLogical(String descriptor, Object from, Object to) {
+        return readLogical(descriptor(descriptor), from, to, null).map(FieldCopier::copyOf);
+    }
+
+    /*
+    A page of a logical read, starting after the descriptor value and ISN of the continuation token returned
+    with the page before or from the start of the range when the token is null
+     */
+    public ResultPage<T> readLogicalPage(String descriptor, Object from, Object to, int pageSize, String continuation) {
+        DescriptorIndex index = descriptor(descriptor);
+        Continuation after = Continuation.decode(continuation);
+        return ResultPage.of(readLogical(index, from, to, after == null ? null : after.entry(index)).map(FieldCopier::copyOf), pageSize,
+                record -> Continuation.afterEntry(index.getName(), descriptors.value(index, record), record.getIsn()));
+    }
+
+    /*
+    Outside a transaction the index is read a page of entries at a time, each page starting after the last entry
+    of the one before, so no lock is held while the stream is consumed and records committed meanwhile are seen
+    as the index holds them. A transaction sorts the records of its snapshot.
+     */
+    private Stream<T> readLogical(DescriptorIndex index, Object from, Object to, DescriptorIndex.Entry after) {
+        Optional<AdabasTransaction> transaction = AdabasTransaction.current();
+        if (transaction.isEmpty()) {
+            return paged(after, last -> index.entries(from, to, last, CURSOR_PAGE))
+                    .map(entry -> {
+                        T record = recordsByIsn.get(entry.isn());
+                        // skip records changed since the page was read that no longer hold the value
+                        return record != null && FieldValues.compare(descriptors.value(index, record), entry.value()) == 0 ? record : null;
+                    })
+                    .filter(Objects::nonNull);
+        }
+        return inRange(transaction.get(), index, from, to)
+                .filter(record -> after == null || isAfter(descriptors.value(index, record), record.getIsn(), after))
+                // a stable sort, so records with equal values stay in ISN order
+                .sorted(Comparator.comparing(record -> descriptors.value(index, record), FieldValues.ORDER));
+    }
+
+    /*
+    HISTOGRAM: the distinct values of the descriptor between from and to, a null bound being open, in value order
+    with the number of records holding each. Outside a transaction they are read from the index without reading
+    any record, a page of values at a time.
+     */
+    public Stream<HistogramValue> histogram(String descriptor, Object from, Object to) {
+        DescriptorIndex index = descriptor(descriptor);
+        Optional<AdabasTransaction> transaction = AdabasTransaction.current();
+        if (transaction.isEmpty()) {
+            return paged(null, (HistogramValue last) -> index.values(from, to, last, CURSOR_PAGE));
+        }
+        Map<Object, Integer> counts = new TreeMap<>(FieldValues.ORDER);
+        Object low = index.coerce(from);
+        Object high = index.upperBound(to);
+        // a record counts once under each distinct element of a multiple-value descriptor, as in the index
+        visible(transaction.get(), 1, Integer.MAX_VALUE).forEach(record -> {
+            for (Object value : descriptors.values(index, record)) {
+                if (isBetween(value, low, high)) {
+                    counts.merge(value, 1, Integer::sum);
+                }
+            }
+        });
+        return counts.entrySet().stream().map(entry -> new HistogramValue(entry.getKey(), entry.getValue()));
+    }
+
+    // the records the transaction sees with a descriptor value between from and to, in ISN order
+    private Stream<T> inRange(AdabasTransaction transaction, DescriptorIndex index, Object from, Object to) {
+        Object low = index.coerce(from);
+        Object high = index.upperBound(to);
+        return visible(transaction, 1, Integer.MAX_VALUE)
+                .filter(record -> Arrays.stream(descriptors.values(index, record)).anyMatch(value -> isBetween(value, low, high)));
+    }
+
+    private static boolean isBetween(Object value, Object low, Object high) {
+        return (low == null || FieldValues.compare(value, low) >= 0) && (high == null || FieldValues.compare(value, high) <= 0);
+    }
+
+    private DescriptorIndex descriptor(String name) {
+        return descriptors.find(name).orElseThrow(() -> new NaturalException("No descriptor " + name + " declared on " + recordClass));
+    }
+
+    private static boolean isAfter(Object value, int isn, DescriptorIndex.Entry entry) {
+        int order = FieldValues.compare(value, entry.value());
+        return order > 0 || order == 0 && isn > entry.isn();
+    }
+
+    // pages read under the index lock, so no lock is held while the stream is consumed
+    private <E> Stream<E> paged(E after, Function<E, List<E>> pageAfter) {
+        Iterator<E> pages = new Pages<>(after, last -> withIndexes(() -> pageAfter.apply(last)));
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    // READ BY ISN STARTING FROM fromIsn ENDING AT toIsn
+    public Stream<T> readByIsn(int fromIsn, int toIsn) {
+        return isnRange(fromIsn, toIsn).map(FieldCopier::copyOf);
+    }
+
+    private Stream<T> isnRange(int fromIsn, int toIsn) {
+        Optional<AdabasTransaction> transaction = AdabasTransaction.current();
+        if (transaction.isEmpty()) {
+            return records(fromIsn, toIsn, new int[0], recordsByIsn::get);
+        }
+        return visible(transaction.get(), fromIsn, toIsn);
+    }
+
+    // the records the transaction sees between the ISNs, in ISN order
+    private Stream<T> visible(AdabasTransaction transaction, int fromIsn, int toIsn) {
+        // taken first, so every version the snapshot needs is kept from now on
+        transaction.snapshot(this);
+        // records deleted since the snapshot are only in the history, records stored by the transaction only in its changes
+        int[] otherIsns = transaction.changedIsns(this);
+        if (!history.isEmpty()) {
+            otherIsns = IntStream.concat(Arrays.stream(otherIsns), history.keySet().stream().mapToInt(Integer::intValue))
+                    .sorted().distinct().toArray();
+        }
+        return records(fromIsn, toIsn, otherIsns, this::read);
+    }
+
+    private Stream<T> records(int fromIsn, int toIsn, int[] otherIsns, IntFunction<T> read) {
+        return IntStream.iterate(nextIsn(fromIsn, otherIsns), isn -> isn > 0 && isn <= toIsn, isn -> nextIsn(isn + 1, otherIsns))
+                .mapToObj(read)
+                .filter(Objects::nonNull);
+    }
+
+    // the next stored ISN or ISN in otherIsns from fromIsn, or -1 when there are none
+    private int nextIsn(int fromIsn, int[] otherIsns) {
+        int stored = recordsByIsn.nextIsn(fromIsn);
+        int index = Arrays.binarySearch(otherIsns, fromIsn);
+        index = index < 0 ? -index - 1 : index;
+        int other = index < otherIsns.length ? otherIsns[index] : -1;
+        return stored < 0 || other < 0 ? Math.max(stored, other) : Math.min(stored, other);
+    }
+
+    // matching records, up to count of them when count is positive
+    private List<T> select(String where, int count) {
+        return readByStream(null, where).limit(count > 0 ? count : Long.MAX_VALUE).collect(Collectors.toList());
+    }
+
+    // stores created without a record class bind to the class of the first record tested
+    @SuppressWarnings("unchecked")
+    private Predicate<T> query(String where) {
+        WhereClause clause = WhereClause.compile(where);
+        if (recordClass != null) {
+            return clause.bind(recordClass);
+        }
+        return new Predicate<>() {
+            private WhereClause.Query<T> query;
+
+            @Override
+            public boolean test(T record) {
+                if (query == null) {
+                    query = clause.bind((Class<T>) record.getClass());
+                }
+                return query.test(record);
+            }
+        };
     }
 
     public void delete(T updateViewGetForPurge) {
-        recordsByIsn.remove(updateViewGetForPurge.getIsn());
+        int isn = updateViewGetForPurge.getIsn();
+        HoldQueue.holdWhile(this, isn, () -> {
+            if (read(isn) != null) {
+                write(isn, null, false);
+            }
+        });
     }
 
     public int store(String viewName, T updateView) {
-        maxIsn += 1;
-        recordsByIsn.put(maxIsn, updateView);
-        return maxIsn;
+        int isn = recordsByIsn.allocate();
+        updateView.setIsn(isn);
+        write(isn, updateView, true);
+        return isn;
+    }
+
+    /*
+    Store a batch of new records under a block of ISNs reserved in one step, returning their ISNs
+     */
+    public int[] storeAll(String viewName, List<T> updateViews) {
+        int[] isns = recordsByIsn.allocate(updateViews.size());
+        for (int i = 0; i < isns.length; i++) {
+            updateViews.get(i).setIsn(isns[i]);
+        }
+        writeAll(isns, updateViews, true);
+        return isns;
+    }
+
+    // nothing is updated unless every record exists
+    public int[] updateAll(List<T> updateViewsGetForModify) {
+        int[] isns = updateViewsGetForModify.stream().mapToInt(AdabasRecord::getIsn).toArray();
+        return HoldQueue.holdWhile(this, isns, () -> {
+            for (int isn : isns) {
+                if (read(isn) == null) {
+                    throw new NaturalException("Record not found with ISN " + isn);
+                }
+            }
+            writeAll(isns, updateViewsGetForModify, false);
+            return isns;
+        });
+    }
+
+    // the ISNs of the records that were deleted
+    public int[] deleteAll(List<T> updateViewsGetForPurge) {
+        int[] requested = updateViewsGetForPurge.stream().mapToInt(AdabasRecord::getIsn).distinct().toArray();
+        return HoldQueue.holdWhile(this, requested, () -> {
+            int[] isns = Arrays.stream(requested).filter(isn -> read(isn) != null).toArray();
+            writeAll(isns, Collections.nCopies(isns.length, null), false);
+            return isns;
+        });
+    }
+
+    // the record as the current transaction sees it
+    private T read(int isn) {
+        AdabasTransaction transaction = AdabasTransaction.current().orElse(null);
+        if (transaction == null) {
+            return recordsByIsn.get(isn);
+        }
+        if (transaction.hasChange(this, isn)) {
+            return transaction.change(this, isn);
+        }
+        long snapshot = transaction.snapshot(this);
+        Version<T> version = history.get(isn);
+        if (version == null) {
+            T record = recordsByIsn.get(isn);
+            // a commit adds to the history before it changes the storage
+            version = history.get(isn);
+            if (version == null) {
+                return record;
+            }
+        }
+        while (version != null && version.committedAt() > snapshot) {
+            version = version.older();
+        }
+        return version == null ? null : version.record();
+    }
+
+    // the store keeps a copy, so the caller's record can be changed again without changing the stored one
+    // an update needs its record to still exist when it is applied, a delete of a missing record does nothing
+    private void write(int isn, T updateView, boolean isNew) {
+        T record = FieldCopier.copyOf(updateView);
+        Optional<AdabasTransaction> transaction = AdabasTransaction.current();
+        if (transaction.isPresent()) {
+            transaction.get().write(this, isn, record, isNew);
+        } else {
+            WriteAheadLog.Batch batch = logBatch(new int[]{isn}, Collections.singletonList(record));
+            if (batch == null) {
+                AdabasTransaction.autoCommit(this, isn, (committedAt, keepHistory) -> {
+                    // checked holding the ISN's stripe lock, so a delete of the record cannot come between
+                    checkExists(isn, record, isNew);
+                    apply(isn, record, isNew, committedAt, keepHistory);
+                    reindex(isn, record);
+                });
+                return;
+            }
+            WriteAheadLog log = writeAheadLog;
+            long sequence = AdabasTransaction.autoLog(() -> logLocked(isn, () -> {
+                checkExists(isn, record, isNew);
+                return log.append(batch);
+            }));
+            applyDurable(log, sequence, () -> AdabasTransaction.autoCommit(this, isn, (committedAt, keepHistory) -> {
+                apply(isn, record, isNew, committedAt, keepHistory);
+                reindex(isn, record);
+            }));
+        }
+    }
+
+    // records.get(i) is the new record for isns[i], null to delete it
+    private void writeAll(int[] isns, List<T> updateViews, boolean isNew) {
+        List<T> records = updateViews.stream().map(FieldCopier::copyOf).collect(Collectors.toList());
+        Optional<AdabasTransaction> transaction = AdabasTransaction.current();
+        if (transaction.isPresent()) {
+            for (int i = 0; i < isns.length; i++) {
+                transaction.get().write(this, isns[i], records.get(i), isNew);
+            }
+        } else if (isns.length > 0) {
+            WriteAheadLog.Batch batch = logBatch(isns, records);
+            if (batch == null) {
+                AdabasTransaction.autoCommitAll(this, (committedAt, keepHistory) -> {
+                    // nothing is changed unless every record still exists
+                    checkExists(isns, records, isNew);
+                    applyAll(isns, records, isNew, committedAt, keepHistory);
+                });
+                return;
+            }
+            WriteAheadLog log = writeAheadLog;
+            long[] sequence = new long[1];
+            AdabasTransaction.exclusively(() -> {
+                checkExists(isns, records, isNew);
+                sequence[0] = log.append(batch);
+            });
+            applyDurable(log, sequence[0], () -> AdabasTransaction.autoCommitAll(this, (committedAt, keepHistory) ->
+                    applyAll(isns, records, isNew, committedAt, keepHistory)));
+        }
+    }
+
+    private void checkExists(int[] isns, List<T> records, boolean isNew) {
+        for (int i = 0; i < isns.length; i++) {
+            checkExists(isns[i], records.get(i), isNew);
+        }
+    }
+
+    private void applyAll(int[] isns, List<T> records, boolean isNew, long committedAt, boolean keepHistory) {
+        for (int i = 0; i < isns.length; i++) {
+            apply(isns[i], records.get(i), isNew, committedAt, keepHistory);
+        }
+        reindex(isns, records);
+    }
+
+    /*
+    Apply a logged change once its frame is durable, so no session sees a change the log could lose and a change
+    that fails to be logged is never applied. Other sessions wait on the holds of the changed records meanwhile,
+    new records are stored under ISNs of their own.
+     */
+    private static void applyDurable(WriteAheadLog log, long sequence, Runnable apply) {
+        try {
+            log.awaitDurable(sequence);
+            apply.run();
+        } finally {
+            log.applied();
+        }
+    }
+
+    // the changes encoded for the write-ahead log, null when the store is not logged
+    private WriteAheadLog.Batch logBatch(int[] isns, List<T> records) {
+        if (writeAheadLog == null) {
+            return null;
+        }
+        WriteAheadLog.Batch batch = new WriteAheadLog.Batch();
+        for (int i = 0; i < isns.length; i++) {
+            batch.add(logName, isns[i], encode(records.get(i)));
+        }
+        return batch;
+    }
+
+    private byte[] encode(T record) {
+        return record == null ? null : logLayout.encode(record);
+    }
+
+    // add a committing transaction's changes, null records are deletes, to its batch for the store's log
+    void logTo(Map<WriteAheadLog, WriteAheadLog.Batch> batches, Map<Integer, T> records) {
+        if (writeAheadLog != null) {
+            WriteAheadLog.Batch batch = batches.computeIfAbsent(writeAheadLog, log -> new WriteAheadLog.Batch());
+            records.forEach((isn, record) -> batch.add(logName, isn, encode(record)));
+        }
+    }
+
+    void logTo(WriteAheadLog writeAheadLog, String name) {
+        this.logLayout = RecordLayout.of(snapshotClass());
+        this.logName = name;
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    // apply a logged change on startup, a null record is a delete
+    void replay(int isn, ByteBuffer record) {
+        T decoded = record == null ? null : logLayout.decode(record);
+        if (decoded == null) {
+            recordsByIsn.delete(isn);
+        } else {
+            decoded.setIsn(isn);
+            if (!recordsByIsn.replace(isn, decoded)) {
+                recordsByIsn.store(isn, decoded);
+            }
+        }
+        reindex(isn, decoded);
+    }
+
+    // run a change to the ISN holding its stripe lock, so changes to one ISN are applied in commit time order
+    void applyLocked(int isn, LongConsumer change) {
+        synchronized (stripes[isn & (STRIPES - 1)]) {
+            change.accept(AdabasTransaction.nextCommitTime());
+        }
+    }
+
+    // log a change to the ISN holding its stripe lock, returning the sequence number of its frame
+    private long logLocked(int isn, LongSupplier append) {
+        synchronized (stripes[isn & (STRIPES - 1)]) {
+            return append.getAsLong();
+        }
+    }
+
+    // the number of ISNs with superseded versions kept
+    int historySize() {
+        return history.size();
+    }
+
+    Map<AdabasTransaction, Long> openSnapshots() {
+        return openSnapshots;
+    }
+
+    // wait for single changes that took their commit time already to finish, each holds its ISN's stripe lock
+    void awaitChangesInFlight() {
+        for (Object stripe : stripes) {
+            synchronized (stripe) {
+                // nothing to do, the lock is released as soon as it is taken
+            }
+        }
+    }
+
+    // called by a committing transaction, which excludes all other changes
+    void checkUnchangedSince(long snapshot, Collection<Integer> isns) {
+        for (Integer isn : isns) {
+            Version<T> version = history.get(isn);
+            if (version != null && version.committedAt() > snapshot) {
+                throw new NaturalException("Record with ISN " + isn + " was changed by another transaction");
+            }
+        }
+    }
+
+    // called by a committing transaction, which excludes all other changes. newIsns are the ISNs it stored records under.
+    void checkExists(Map<Integer, T> records, Set<Integer> newIsns) {
+        records.forEach((isn, record) -> checkExists(isn, record, newIsns.contains(isn)));
+    }
+
+    // called by a committing transaction, which excludes all other changes
+    void apply(Map<Integer, T> records, Set<Integer> newIsns, long committedAt, boolean keepHistory) {
+        records.forEach((isn, record) -> apply(isn, record, newIsns.contains(isn), committedAt, keepHistory));
+        reindex(records.keySet().stream().mapToInt(Integer::intValue).toArray(), new ArrayList<>(records.values()));
+    }
+
+    private void checkExists(int isn, T record, boolean isNew) {
+        if (!isNew && record != null && !recordsByIsn.contains(isn)) {
+            throw new NaturalException("Record not found with ISN " + isn);
+        }
+    }
+
+    // a change never brings back a deleted record, the record it replaces must still exist
+    private void apply(int isn, T record, boolean isNew, long committedAt, boolean keepHistory) {
+        if (keepHistory) {
+            Version<T> newest = history.get(isn);
+            T previous = newest != null ? newest.record() : recordsByIsn.get(isn);
+            Version<T> older = newest != null || previous == null ? newest : new Version<>(previous, 0, null);
+            history.put(isn, new Version<>(record, committedAt, older));
+        }
+        if (record == null) {
+            recordsByIsn.delete(isn);
+        } else if (isNew) {
+            recordsByIsn.store(isn, record);
+        } else if (!recordsByIsn.replace(isn, record)) {
+            throw new NaturalException("Record not found with ISN " + isn);
+        }
+        if (!keepHistory && !history.isEmpty()) {
+            history.remove(isn);
+        }
+    }
+
+    // descriptor indexes can serve this session when it sees the committed records
+    private boolean indexed() {
+        return !descriptors.isEmpty() && AdabasTransaction.current().isEmpty();
+    }
+
+    private <R> R withIndexes(Supplier<R> lookup) {
+        Lock shared = indexLock.readLock();
+        shared.lock();
+        try {
+            return lookup.get();
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    private void reindex(int isn, T record) {
+        if (!descriptors.isEmpty()) {
+            Lock exclusive = indexLock.writeLock();
+            exclusive.lock();
+            try {
+                reindexLocked(isn, record);
+            } finally {
+                exclusive.unlock();
+            }
+        }
+    }
+
+    // records.get(i) is the new record for isns[i], null when it was deleted
+    private void reindex(int[] isns, List<T> records) {
+        if (!descriptors.isEmpty()) {
+            Lock exclusive = indexLock.writeLock();
+            exclusive.lock();
+            try {
+                for (int i = 0; i < isns.length; i++) {
+                    reindexLocked(isns[i], records.get(i));
+                }
+            } finally {
+                exclusive.unlock();
+            }
+        }
+    }
+
+    private void reindexLocked(int isn, T record) {
+        Object[] values = record == null ? null : descriptors.values(record);
+        Object[] previous = indexedValues.put(isn, values);
+        if (previous != null) {
+            descriptors.remove(isn, previous);
+        }
+        if (values != null) {
+            descriptors.add(isn, values);
+        }
+    }
+
+    /*
+    Drop versions no open snapshot can see. Called with no transaction committing, each ISN is pruned holding its
+    stripe lock so single changes to it carry on meanwhile.
+     */
+    void pruneHistory(long oldestSnapshot) {
+        for (Integer isn : history.keySet()) {
+            synchronized (stripes[isn & (STRIPES - 1)]) {
+                history.computeIfPresent(isn, (key, version) ->
+                        version.committedAt() <= oldestSnapshot ? null : version.prune(oldestSnapshot));
+            }
+        }
+    }
+
+    /**
+     * Write every record, in ISN order, to a binary snapshot. Only stores created with a record class can be saved.
+     */
+    public int saveSnapshot(Path path) {
+        return RecordSnapshot.save(path, snapshotClass(), IntStream.iterate(recordsByIsn.nextIsn(1), isn -> isn > 0,
+                isn -> recordsByIsn.nextIsn(isn + 1)).mapToObj(recordsByIsn::get).iterator());
+    }
+
+    // records keep the ISNs they were saved with
+    public int loadSnapshot(Path path) {
+        return RecordSnapshot.load(path, snapshotClass(), record -> {
+            recordsByIsn.store(record.getIsn(), record);
+            reindex(record.getIsn(), record);
+        });
+    }
+
+    private Class<T> snapshotClass() {
+        if (recordClass == null) {
+            throw new NaturalException("Snapshots need a store created with its record class");
+        }
+        return recordClass;
+    }
+
+    // the number of committed records
+    public int size() {
+        return recordsByIsn.size();
+    }
+
+    public void close() {
+        recordsByIsn.close();
+    }
+
+    // the items of a sequence of pages, each read after the last item of the one before
+    private static class Pages<E> implements Iterator<E> {
+        private final Function<E, List<E>> pageAfter;
+        private List<E> page = List.of();
+        private int pos;
+        private boolean lastPage;
+        private E last;
+
+        Pages(E after, Function<E, List<E>> pageAfter) {
+            this.last = after;
+            this.pageAfter = pageAfter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (pos == page.size() && !lastPage) {
+                page = pageAfter.apply(last);
+                pos = 0;
+                lastPage = page.size() < CURSOR_PAGE;
+            }
+            return pos < page.size();
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = page.get(pos++);
+            return last;
+        }
+    }
+
+    private record Version<T>(T record, long committedAt, Version<T> older) {
+        // this version without the versions older than the first one visible at the snapshot
+        Version<T> prune(long oldestSnapshot) {
+            if (committedAt <= oldestSnapshot || older == null) {
+                return older == null ? this : new Version<>(record, committedAt, null);
+            }
+            return new Version<>(record, committedAt, older.prune(oldestSnapshot));
+        }
     }
 }
@@ -0,0 +1,161 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * The {@link AdabasStore}s of one scope, such as a tenant or a test, looked up by DDM or view name.
+ * Lookups take no locks. Each scope holds its own stores, a thread works in the scope bound to it
+ * or in the global scope when it has none.
+ */
+public class AdabasStoreRegistry {
+    private static final AdabasStoreRegistry GLOBAL = new AdabasStoreRegistry("global");
+    private static final ConcurrentMap<String, AdabasStoreRegistry> SCOPES = new ConcurrentHashMap<>();
+    private static final ThreadLocal<AdabasStoreRegistry> CURRENT = new ThreadLocal<>();
+
+    private final String scope;
+    private final ConcurrentMap<String, Registered<?>> stores = new ConcurrentHashMap<>();
+
+    private AdabasStoreRegistry(String scope) {
+        this.scope = scope;
+    }
+
+    public static AdabasStoreRegistry global() {
+        return GLOBAL;
+    }
+
+    /*
+    The registry of a named scope, created on first use
+     */
+    public static AdabasStoreRegistry scope(String name) {
+        return SCOPES.computeIfAbsent(name, AdabasStoreRegistry::new);
+    }
+
+    /*
+    Close every store of a named scope and forget it
+     */
+    public static void closeScope(String name) {
+        AdabasStoreRegistry registry = SCOPES.remove(name);
+        if (registry != null) {
+            registry.clear();
+        }
+    }
+
+    // the registry bound to this thread, or the global registry
+    public static AdabasStoreRegistry current() {
+        AdabasStoreRegistry registry = CURRENT.get();
+        return registry == null ? GLOBAL : registry;
+    }
+
+    /*
+    Run work on this thread with the registry as its current registry
+     */
+    public <R> R call(Supplier<R> work) {
+        AdabasStoreRegistry previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return work.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    public void run(Runnable work) {
+        call(() -> {
+            work.run();
+            return null;
+        });
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    /*
+    Register a new, empty store for the records under the name, replacing any store already registered
+     */
+    public <T extends AdabasRecord> AdabasStore<T> create(String name, Class<T> recordClass) {
+        return register(name, recordClass, new AdabasStore<>(recordClass));
+    }
+
+    public <T extends AdabasRecord> AdabasStore<T> register(String name, Class<T> recordClass, AdabasStore<T> store) {
+        Registered<?> previous = stores.put(name, new Registered<>(recordClass, store));
+        if (previous != null && previous.store() != store) {
+            previous.store().close();
+        }
+        return store;
+    }
+
+    // the store registered under the name, created if there is none
+    public <T extends AdabasRecord> AdabasStore<T> getOrCreate(String name, Class<T> recordClass) {
+        Registered<?> registered = stores.computeIfAbsent(name, n -> new Registered<>(recordClass, new AdabasStore<>(recordClass)));
+        return registered.as(name, recordClass);
+    }
+
+    public <T extends AdabasRecord> AdabasStore<T> get(String name, Class<T> recordClass) {
+        return find(name, recordClass).orElseThrow(() -> new NaturalException("No store " + name + " in scope " + scope));
+    }
+
+    public <T extends AdabasRecord> Optional<AdabasStore<T>> find(String name, Class<T> recordClass) {
+        Registered<?> registered = stores.get(name);
+        return registered == null ? Optional.empty() : Optional.of(registered.as(name, recordClass));
+    }
+
+    // the store registered under the name whatever records it holds
+    public Optional<AdabasStore<?>> find(String name) {
+        Registered<?> registered = stores.get(name);
+        return registered == null ? Optional.empty() : Optional.of(registered.store());
+    }
+
+    public Collection<String> getNames() {
+        return Collections.unmodifiableSet(stores.keySet());
+    }
+
+    public boolean remove(String name) {
+        Registered<?> registered = stores.remove(name);
+        if (registered != null) {
+            registered.store().close();
+        }
+        return registered != null;
+    }
+
+    public void clear() {
+        stores.keySet().forEach(this::remove);
+    }
+
+    private record Registered<T extends AdabasRecord>(Class<T> recordClass, AdabasStore<T> store) {
+        @SuppressWarnings("unchecked")
+        <R extends AdabasRecord> AdabasStore<R> as(String name, Class<R> requested) {
+            if (requested != recordClass) {
+                throw new NaturalException("Store " + name + " holds " + recordClass.getName() + " not " + requested.getName());
+            }
+            return (AdabasStore<R>) store;
+        }
+    }
+}
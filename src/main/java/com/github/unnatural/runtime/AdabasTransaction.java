@@ -0,0 +1,350 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A session's logical transaction over one or more {@link AdabasStore}s.
+ * Reads see each store as it was committed when the transaction first touched that store, plus the transaction's
+ * own changes. Snapshots are taken per store, so a transaction reading one store never makes changes to another
+ * keep their history, and taking one never stops other sessions committing. Changes stay private to the transaction until commit (END TRANSACTION) and are discarded by
+ * backout. A transaction is bound to the thread that begins it, stores used from a thread with no transaction
+ * commit every change immediately. Sessions opt in with {@link #begin()}, from then on END TRANSACTION and
+ * BACKOUT TRANSACTION each begin the session's next transaction.
+ */
+public final class AdabasTransaction {
+    private static final AtomicLong CLOCK = new AtomicLong();
+    private static final ThreadLocal<AdabasTransaction> CURRENT = new ThreadLocal<>();
+    // single changes from sessions without a transaction share the gate, transaction commits are exclusive
+    private static final ReadWriteLock GATE = new ReentrantReadWriteLock();
+    // the snapshot time of a transaction while it waits for the commits before it to finish changing a store
+    private static final long TAKING_SNAPSHOT = -1;
+
+    // changes per store by ISN, a null record is a delete
+    private final Map<AdabasStore<?>, Map<Integer, Object>> changes = new LinkedHashMap<>();
+    // ISNs per store the transaction stored new records under, every other change needs its record to still exist
+    private final Map<AdabasStore<?>, Set<Integer>> stored = new LinkedHashMap<>();
+    // snapshot time per store the transaction has touched
+    private final Map<AdabasStore<?>, Long> snapshots = new HashMap<>();
+    private boolean ended;
+
+    private AdabasTransaction() {
+    }
+
+    public static AdabasTransaction begin() {
+        if (CURRENT.get() != null) {
+            throw new NaturalException("A transaction is already active");
+        }
+        AdabasTransaction transaction = new AdabasTransaction();
+        CURRENT.set(transaction);
+        return transaction;
+    }
+
+    public static Optional<AdabasTransaction> current() {
+        return Optional.ofNullable(CURRENT.get());
+    }
+
+    /*
+    END TRANSACTION: commit the current transaction, the session's next logical transaction begins immediately,
+    even when the commit fails. The session's retained sets and held records are released.
+    A session that never began a transaction has none to commit, its changes were committed as they were made.
+     */
+    public static void endCurrent() {
+        try {
+            current().ifPresent(transaction -> {
+                try {
+                    transaction.commit();
+                } finally {
+                    begin();
+                }
+            });
+        } finally {
+            RetainedSets.releaseAll();
+            HoldQueue.releaseAll();
+        }
+    }
+
+    /*
+    BACKOUT TRANSACTION: discard the current transaction, the session's next logical transaction begins immediately.
+    The session's retained sets and held records are released.
+     */
+    public static void backoutCurrent() {
+        try {
+            current().ifPresent(transaction -> {
+                try {
+                    transaction.backout();
+                } finally {
+                    begin();
+                }
+            });
+        } finally {
+            RetainedSets.releaseAll();
+            HoldQueue.releaseAll();
+        }
+    }
+
+    /**
+     * Make the transaction's changes visible to other sessions. If another transaction has committed a change
+     * to one of the same records since this one's snapshot the transaction is backed out instead.
+     * Changes to logged stores are applied once they are durable, if the log fails to write them the commit
+     * throws and no session ever sees them.
+     */
+    public void commit() {
+        checkActive();
+        try {
+            if (!changes.isEmpty()) {
+                // encoded before the gate is taken, written to the logs in commit order
+                Map<WriteAheadLog, WriteAheadLog.Batch> batches = new LinkedHashMap<>();
+                changes.forEach((store, records) -> logTo(store, records, batches));
+                Map<WriteAheadLog, Long> sequences = new LinkedHashMap<>();
+                exclusively(() -> {
+                    changes.forEach((store, records) -> check(store, records, storedIn(store), snapshots.get(store)));
+                    // every log is checked first, so a failed one stops the commit before any frame is queued
+                    batches.keySet().forEach(WriteAheadLog::checkWritable);
+                    batches.forEach((log, batch) -> sequences.put(log, log.append(batch)));
+                    if (sequences.isEmpty()) {
+                        applyChanges();
+                    }
+                });
+                if (!sequences.isEmpty()) {
+                    // sessions committing meanwhile share the sync. The transaction holds the records it changes
+                    // until it ends, so no other session changes them before they are applied.
+                    try {
+                        sequences.forEach(WriteAheadLog::awaitDurable);
+                        exclusively(this::applyChanges);
+                    } finally {
+                        sequences.keySet().forEach(WriteAheadLog::applied);
+                    }
+                }
+            }
+        } finally {
+            end();
+        }
+    }
+
+    private void applyChanges() {
+        long committedAt = CLOCK.incrementAndGet();
+        changes.forEach((store, records) ->
+                apply(store, records, storedIn(store), committedAt, isReadByOthers(store, this)));
+    }
+
+    public void backout() {
+        checkActive();
+        end();
+    }
+
+    /*
+    Apply a single change for a session with no transaction. Changes to different ISNs run concurrently,
+    the store serialises changes to the same ISN and takes the commit time while it holds that ISN's lock.
+     */
+    static void autoCommit(AdabasStore<?> store, int isn, Changes changes) {
+        Lock shared = GATE.readLock();
+        shared.lock();
+        try {
+            // decided once the commit time is taken, so a snapshot taken before it keeps the version it replaces
+            store.applyLocked(isn, committedAt -> changes.apply(committedAt, isReadByOthers(store, null)));
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    /*
+    Log a single change for a session with no transaction before it is applied, sharing the gate as applying it does
+     */
+    static long autoLog(LongSupplier append) {
+        Lock shared = GATE.readLock();
+        shared.lock();
+        try {
+            return append.getAsLong();
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    /*
+    Apply a batch of changes for a session with no transaction, in one pass with one commit time
+     */
+    static void autoCommitAll(AdabasStore<?> store, Changes changes) {
+        Lock exclusive = GATE.writeLock();
+        exclusive.lock();
+        try {
+            long committedAt = CLOCK.incrementAndGet();
+            changes.apply(committedAt, isReadByOthers(store, null));
+        } finally {
+            exclusive.unlock();
+        }
+    }
+
+    // run with no change being committed
+    static void exclusively(Runnable action) {
+        Lock exclusive = GATE.writeLock();
+        exclusive.lock();
+        try {
+            action.run();
+        } finally {
+            exclusive.unlock();
+        }
+    }
+
+    static long nextCommitTime() {
+        return CLOCK.incrementAndGet();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends AdabasRecord> void check(AdabasStore<T> store, Map<Integer, ?> records,
+                                                       Set<Integer> newIsns, long snapshot) {
+        store.checkUnchangedSince(snapshot, records.keySet());
+        store.checkExists((Map<Integer, T>) records, newIsns);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends AdabasRecord> void apply(AdabasStore<T> store, Map<Integer, ?> records,
+                                                       Set<Integer> newIsns, long committedAt, boolean keepHistory) {
+        store.apply((Map<Integer, T>) records, newIsns, committedAt, keepHistory);
+    }
+
+    // whether a transaction other than the one given has a snapshot of the store, or is taking one
+    private static boolean isReadByOthers(AdabasStore<?> store, AdabasTransaction except) {
+        Map<AdabasTransaction, Long> open = store.openSnapshots();
+        return open.size() > (except != null && open.containsKey(except) ? 1 : 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends AdabasRecord> void logTo(AdabasStore<T> store, Map<Integer, ?> records,
+                                                       Map<WriteAheadLog, WriteAheadLog.Batch> batches) {
+        store.logTo(batches, (Map<Integer, T>) records);
+    }
+
+    /*
+    The time the transaction reads the store at, taken when it first touches the store without stopping any commit.
+    The transaction is registered first, so every change given a later commit time keeps the version it replaces,
+    then waits for the changes given an earlier one to finish.
+     */
+    long snapshot(AdabasStore<?> store) {
+        Long snapshot = snapshots.get(store);
+        if (snapshot == null) {
+            Map<AdabasTransaction, Long> open = store.openSnapshots();
+            open.put(this, TAKING_SNAPSHOT);
+            snapshot = CLOCK.get();
+            Lock shared = GATE.readLock();
+            shared.lock();
+            shared.unlock();
+            store.awaitChangesInFlight();
+            open.put(this, snapshot);
+            snapshots.put(store, snapshot);
+        }
+        return snapshot;
+    }
+
+    boolean hasChange(AdabasStore<?> store, int isn) {
+        Map<Integer, Object> records = changes.get(store);
+        return records != null && records.containsKey(isn);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T extends AdabasRecord> T change(AdabasStore<T> store, int isn) {
+        return (T) changes.get(store).get(isn);
+    }
+
+    <T extends AdabasRecord> void write(AdabasStore<T> store, int isn, T record, boolean isNew) {
+        checkActive();
+        snapshot(store);
+        changes.computeIfAbsent(store, s -> new LinkedHashMap<>()).put(isn, record);
+        if (isNew) {
+            stored.computeIfAbsent(store, s -> new HashSet<>()).add(isn);
+        }
+    }
+
+    private Set<Integer> storedIn(AdabasStore<?> store) {
+        return stored.getOrDefault(store, Collections.emptySet());
+    }
+
+    // ISNs changed in the store, ascending
+    int[] changedIsns(AdabasStore<?> store) {
+        Map<Integer, Object> records = changes.get(store);
+        if (records == null) {
+            return new int[0];
+        }
+        int[] isns = records.keySet().stream().mapToInt(Integer::intValue).toArray();
+        Arrays.sort(isns);
+        return isns;
+    }
+
+    private void checkActive() {
+        if (ended) {
+            throw new NaturalException("Transaction has already ended");
+        }
+    }
+
+    private void end() {
+        ended = true;
+        changes.clear();
+        stored.clear();
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+            // the records the session's updates put in hold are held until its transaction ends
+            HoldQueue.releaseAll();
+        }
+        snapshots.keySet().forEach(store -> {
+            store.openSnapshots().remove(this);
+            pruneHistory(store);
+        });
+        snapshots.clear();
+    }
+
+    /*
+    Drop the versions of the store no open snapshot needs. A snapshot taken from now on is no older than the
+    clock is now, one still being taken may be older so the history is kept until it ends.
+     */
+    private static void pruneHistory(AdabasStore<?> store) {
+        long oldest = CLOCK.get();
+        for (long snapshot : store.openSnapshots().values()) {
+            if (snapshot == TAKING_SNAPSHOT) {
+                return;
+            }
+            oldest = Math.min(oldest, snapshot);
+        }
+        // shared with single changes, which the store excludes ISN by ISN
+        Lock shared = GATE.readLock();
+        shared.lock();
+        try {
+            store.pruneHistory(oldest);
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    // changes applied to a store at their commit time, keeping the versions they replace when asked to
+    interface Changes {
+        void apply(long committedAt, boolean keepHistory);
+    }
+}
@@ -0,0 +1,400 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Record storage holding each field of the record class in its own array indexed by ISN: int and long fields
+ * as primitives, arrays as copies and every other type dictionary encoded as an int code per record.
+ * Scans test a field's values a column at a time, a dictionary encoded condition is evaluated once per distinct
+ * value, so records are only assembled for the ISNs that match. Reads assemble a new record each time.
+ * Dictionaries keep values that are no longer used until the storage is discarded. Classes with a field
+ * that cannot be both read and set, such as a record component, are rejected.
+ * Access is serialised.
+ * @param <T> the record type
+ */
+public class ColumnarRecordStorage<T> implements RecordStorage<T> {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Class<T> recordClass;
+    private final Map<String, Column> columns = new HashMap<>();
+    private final List<Column> all = new ArrayList<>();
+    // a bit per ISN holding a record
+    private long[] present = new long[16];
+    private int size;
+    private int maxIsn;
+
+    public ColumnarRecordStorage(Class<T> recordClass) {
+        this.recordClass = recordClass;
+        for (Class<?> clazz = recordClass; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    Column column = column(field.getType(), LOOKUP.unreflectGetter(field).asType(GETTER),
+                            LOOKUP.unreflectSetter(field).asType(SETTER));
+                    columns.putIfAbsent(field.getName(), column);
+                    all.add(column);
+                } catch (IllegalAccessException | RuntimeException e) {
+                    // a column that cannot be read back would drop the field from every record assembled
+                    throw new NaturalException("Unable to store " + field.getName() + " on class " + recordClass.getName()
+                            + " - " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static Column column(Class<?> type, MethodHandle getter, MethodHandle setter) {
+        if (type == int.class) {
+            return new IntColumn(getter, setter);
+        }
+        if (type == long.class) {
+            return new LongColumn(getter, setter);
+        }
+        if (type.isArray()) {
+            return new ArrayColumn(getter, setter);
+        }
+        return new DictionaryColumn(getter, setter);
+    }
+
+    @Override
+    public synchronized T get(int isn) {
+        if (!contains(isn)) {
+            return null;
+        }
+        T record = FieldCopier.newInstance(recordClass);
+        try {
+            for (Column column : all) {
+                column.setter.invokeExact((Object) record, column.get(isn));
+            }
+        } catch (Throwable e) {
+            throw new NaturalException("Unable to assemble " + recordClass.getName() + ": " + e.getMessage());
+        }
+        return record;
+    }
+
+    @Override
+    public synchronized boolean contains(int isn) {
+        return isn > 0 && isn >>> 6 < present.length && (present[isn >>> 6] & 1L << isn) != 0;
+    }
+
+    @Override
+    public synchronized int allocate() {
+        return ++maxIsn;
+    }
+
+    @Override
+    public synchronized int[] allocate(int count) {
+        int[] isns = new int[count];
+        Arrays.setAll(isns, i -> maxIsn + 1 + i);
+        maxIsn += count;
+        return isns;
+    }
+
+    @Override
+    public synchronized void store(int isn, T record) {
+        if (isn <= 0) {
+            throw new NaturalException("Invalid ISN " + isn);
+        }
+        try {
+            for (Column column : all) {
+                column.set(isn, (Object) column.getter.invokeExact((Object) record));
+            }
+        } catch (Throwable e) {
+            throw new NaturalException("Unable to store " + recordClass.getName() + ": " + e.getMessage());
+        }
+        if (!contains(isn)) {
+            if (isn >>> 6 >= present.length) {
+                present = Arrays.copyOf(present, Math.max(present.length * 2, (isn >>> 6) + 1));
+            }
+            present[isn >>> 6] |= 1L << isn;
+            size++;
+        }
+        maxIsn = Math.max(maxIsn, isn);
+    }
+
+    @Override
+    public synchronized boolean replace(int isn, T record) {
+        if (!contains(isn)) {
+            return false;
+        }
+        store(isn, record);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean delete(int isn) {
+        if (!contains(isn)) {
+            return false;
+        }
+        present[isn >>> 6] &= ~(1L << isn);
+        for (Column column : all) {
+            column.clear(isn);
+        }
+        size--;
+        return true;
+    }
+
+    @Override
+    public synchronized int nextIsn(int fromIsn) {
+        int isn = Math.max(fromIsn, 1);
+        for (int word = isn >>> 6; word < present.length; word++) {
+            long bits = word == isn >>> 6 ? present[word] & -1L << isn : present[word];
+            if (bits != 0) {
+                return word << 6 | Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized int getMaxIsn() {
+        return maxIsn;
+    }
+
+    public boolean hasColumn(String fieldName) {
+        return columns.containsKey(fieldName);
+    }
+
+    /**
+     * The ISNs of the records whose value of the field passes the test, a dictionary encoded field is tested once
+     * per distinct value
+     */
+    public synchronized IsnBitmap select(String fieldName, Predicate<Object> test) {
+        Column column = columns.get(fieldName);
+        if (column == null) {
+            throw new NaturalException("No column " + fieldName + " on class " + recordClass.getName());
+        }
+        IsnBitmap.Builder isns = new IsnBitmap.Builder();
+        Predicate<Object> values = column.prepare(test);
+        for (int word = 0; word < present.length; word++) {
+            for (long bits = present[word]; bits != 0; bits &= bits - 1) {
+                int isn = word << 6 | Long.numberOfTrailingZeros(bits);
+                if (column.test(isn, values)) {
+                    isns.add(isn);
+                }
+            }
+        }
+        return isns.build();
+    }
+
+    // the ISNs of the records passing the test, each record is assembled to test it
+    public synchronized IsnBitmap select(Predicate<? super T> test) {
+        IsnBitmap.Builder isns = new IsnBitmap.Builder();
+        for (int isn = nextIsn(1); isn > 0; isn = nextIsn(isn + 1)) {
+            if (test.test(get(isn))) {
+                isns.add(isn);
+            }
+        }
+        return isns.build();
+    }
+
+    // the ISNs of every record
+    public synchronized IsnBitmap isns() {
+        IsnBitmap.Builder isns = new IsnBitmap.Builder();
+        for (int isn = nextIsn(1); isn > 0; isn = nextIsn(isn + 1)) {
+            isns.add(isn);
+        }
+        return isns.build();
+    }
+
+    private abstract static class Column {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        Column(MethodHandle getter, MethodHandle setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        abstract Object get(int isn);
+
+        abstract void set(int isn, Object value);
+
+        abstract void clear(int isn);
+
+        // the test to apply to each record's slot
+        Predicate<Object> prepare(Predicate<Object> test) {
+            return test;
+        }
+
+        boolean test(int isn, Predicate<Object> values) {
+            return values.test(get(isn));
+        }
+
+        static int capacity(int length, int isn) {
+            return Math.max(Math.max(length * 2, 16), isn + 1);
+        }
+    }
+
+    private static class IntColumn extends Column {
+        private int[] values = new int[0];
+
+        IntColumn(MethodHandle getter, MethodHandle setter) {
+            super(getter, setter);
+        }
+
+        Object get(int isn) {
+            return values[isn];
+        }
+
+        void set(int isn, Object value) {
+            if (isn >= values.length) {
+                values = Arrays.copyOf(values, capacity(values.length, isn));
+            }
+            values[isn] = (Integer) value;
+        }
+
+        void clear(int isn) {
+            values[isn] = 0;
+        }
+    }
+
+    private static class LongColumn extends Column {
+        private long[] values = new long[0];
+
+        LongColumn(MethodHandle getter, MethodHandle setter) {
+            super(getter, setter);
+        }
+
+        Object get(int isn) {
+            return values[isn];
+        }
+
+        void set(int isn, Object value) {
+            if (isn >= values.length) {
+                values = Arrays.copyOf(values, capacity(values.length, isn));
+            }
+            values[isn] = (Long) value;
+        }
+
+        void clear(int isn) {
+            values[isn] = 0;
+        }
+    }
+
+    // arrays are copied in and out so records never share them with the storage
+    private static class ArrayColumn extends Column {
+        private Object[] values = new Object[0];
+
+        ArrayColumn(MethodHandle getter, MethodHandle setter) {
+            super(getter, setter);
+        }
+
+        Object get(int isn) {
+            return copy(values[isn]);
+        }
+
+        void set(int isn, Object value) {
+            if (isn >= values.length) {
+                values = Arrays.copyOf(values, capacity(values.length, isn));
+            }
+            values[isn] = copy(value);
+        }
+
+        void clear(int isn) {
+            values[isn] = null;
+        }
+
+        // tests read the array held without copying it
+        boolean test(int isn, Predicate<Object> values) {
+            return values.test(this.values[isn]);
+        }
+
+        private static Object copy(Object array) {
+            if (array == null) {
+                return null;
+            }
+            int length = Array.getLength(array);
+            Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+            System.arraycopy(array, 0, copy, 0, length);
+            return copy;
+        }
+    }
+
+    // code 0 is null, other codes index the distinct values
+    private static class DictionaryColumn extends Column {
+        private final List<Object> dictionary = new ArrayList<>(List.of(Void.class));
+        private final Map<Object, Integer> codes = new HashMap<>();
+        private int[] values = new int[0];
+
+        DictionaryColumn(MethodHandle getter, MethodHandle setter) {
+            super(getter, setter);
+        }
+
+        Object get(int isn) {
+            return values[isn] == 0 ? null : dictionary.get(values[isn]);
+        }
+
+        void set(int isn, Object value) {
+            if (isn >= values.length) {
+                values = Arrays.copyOf(values, capacity(values.length, isn));
+            }
+            values[isn] = value == null ? 0 : codes.computeIfAbsent(value, v -> {
+                dictionary.add(v);
+                return dictionary.size() - 1;
+            });
+        }
+
+        void clear(int isn) {
+            values[isn] = 0;
+        }
+
+        // the outcome for each code, tested once per distinct value
+        Predicate<Object> prepare(Predicate<Object> test) {
+            boolean[] outcomes = new boolean[dictionary.size()];
+            outcomes[0] = test.test(null);
+            for (int code = 1; code < outcomes.length; code++) {
+                outcomes[code] = test.test(dictionary.get(code));
+            }
+            return new Outcomes(outcomes);
+        }
+
+        boolean test(int isn, Predicate<Object> values) {
+            return ((Outcomes) values).outcomes[this.values[isn]];
+        }
+
+        private record Outcomes(boolean[] outcomes) implements Predicate<Object> {
+            public boolean test(Object code) {
+                return outcomes[(Integer) code];
+            }
+        }
+    }
+}
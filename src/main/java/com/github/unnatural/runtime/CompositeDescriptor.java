@@ -0,0 +1,180 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import lombok.Getter;
+
+import java.lang.reflect.Field;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link SuperDescriptor} bound to the fields of a record class, building the text value of the descriptor from a record
+ */
+final class CompositeDescriptor {
+    private static final Pattern SEGMENT = Pattern.compile("\\s*([\\w#-]+)\\s*(?:\\(\\s*(\\d+)\\s*,\\s*(\\d+)\\s*\\))?\\s*");
+    private static final ClassValue<Map<String, CompositeDescriptor>> DECLARED = new ClassValue<>() {
+        @Override
+        protected Map<String, CompositeDescriptor> computeValue(Class<?> type) {
+            Map<String, CompositeDescriptor> declared = new LinkedHashMap<>();
+            for (SuperDescriptor descriptor : type.getAnnotationsByType(SuperDescriptor.class)) {
+                declared.put(descriptor.name(), new CompositeDescriptor(type, descriptor));
+            }
+            return Collections.unmodifiableMap(declared);
+        }
+    };
+
+    @Getter
+    private final String name;
+    private final List<Segment> segments = new ArrayList<>();
+    // the length of every value or -1 when the last segment has no fixed width
+    private final int width;
+
+    private CompositeDescriptor(Class<?> recordClass, SuperDescriptor descriptor) {
+        this.name = descriptor.name();
+        int total = 0;
+        for (int i = 0; i < descriptor.segments().length; i++) {
+            Matcher matcher = SEGMENT.matcher(descriptor.segments()[i]);
+            if (!matcher.matches()) {
+                throw new NaturalException("Invalid segment " + descriptor.segments()[i] + " of super-descriptor " + name);
+            }
+            Field field = field(recordClass, matcher.group(1));
+            int from = matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2));
+            int to = matcher.group(3) == null ? 0 : Integer.parseInt(matcher.group(3));
+            if (from > to || matcher.group(2) != null && from < 1) {
+                throw new NaturalException("Invalid positions in segment " + descriptor.segments()[i] + " of super-descriptor " + name);
+            }
+            int segmentWidth = from == 0 ? naturalWidth(field.getType()) : to - from + 1;
+            if (segmentWidth < 0 && i < descriptor.segments().length - 1) {
+                throw new NaturalException("Segment " + descriptor.segments()[i] + " of super-descriptor " + name
+                        + " needs character positions to give it a fixed width");
+            }
+            segments.add(new Segment(field, from, to, segmentWidth));
+            total = segmentWidth < 0 ? -1 : total + segmentWidth;
+        }
+        this.width = total;
+    }
+
+    static List<CompositeDescriptor> declaredOn(Class<?> recordClass) {
+        return recordClass == null ? List.of() : List.copyOf(DECLARED.get(recordClass).values());
+    }
+
+    static Optional<CompositeDescriptor> find(Class<?> recordClass, String name) {
+        return Optional.ofNullable(DECLARED.get(recordClass).get(name));
+    }
+
+    // the descriptor value of the record, null when a segment field is null
+    String value(Object record) {
+        StringBuilder value = new StringBuilder(Math.max(width, 16));
+        for (Segment segment : segments) {
+            Object fieldValue;
+            try {
+                fieldValue = segment.field().get(record);
+            } catch (IllegalAccessException e) {
+                throw new NaturalException("Unable to read " + segment.field().getName() + " for " + name + ": " + e.getMessage());
+            }
+            if (fieldValue == null) {
+                return null;
+            }
+            segment.append(value, fieldValue);
+        }
+        return value.toString();
+    }
+
+    // a value to compare with, a partial value is padded with blanks as the record values are
+    String bound(Object value) {
+        String text = (String) FieldValues.coerce(value, String.class);
+        return text == null || text.length() >= width ? text : text + " ".repeat(width - text.length());
+    }
+
+    // an inclusive upper bound, a partial value covers every value starting with it
+    String upperBound(Object to) {
+        String text = (String) FieldValues.coerce(to, String.class);
+        return text == null || text.length() >= width ? text : text + Character.MAX_VALUE;
+    }
+
+    DescriptorIndex newIndex() {
+        return new DescriptorIndex(name, String.class) {
+            @Override
+            public Object coerce(Object value) {
+                return bound(value);
+            }
+
+            @Override
+            public Object upperBound(Object to) {
+                return CompositeDescriptor.this.upperBound(to);
+            }
+        };
+    }
+
+    private static int naturalWidth(Class<?> type) {
+        if (type == int.class || type == Integer.class) {
+            return 10;
+        }
+        if (type == long.class || type == Long.class) {
+            return 19;
+        }
+        return type == LocalDate.class ? 8 : -1;
+    }
+
+    private static Field field(Class<?> recordClass, String ddmName) {
+        String fieldName = DdmNames.toFieldName(ddmName);
+        for (Class<?> clazz = recordClass; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (field.getName().equals(fieldName) || field.getName().equalsIgnoreCase(ddmName)) {
+                    field.setAccessible(true);
+                    return field;
+                }
+            }
+        }
+        throw new NaturalException("No field " + ddmName + " on class " + recordClass.getName());
+    }
+
+    // from and to are 0 when the whole field is used
+    private record Segment(Field field, int from, int to, int width) {
+        void append(StringBuilder value, Object fieldValue) {
+            String text = text(fieldValue);
+            if (from > 0) {
+                text = from > text.length() ? "" : text.substring(from - 1, Math.min(to, text.length()));
+            }
+            value.append(text);
+            for (int pad = text.length(); pad < width; pad++) {
+                value.append(' ');
+            }
+        }
+
+        private String text(Object fieldValue) {
+            if (fieldValue instanceof Integer || fieldValue instanceof Long) {
+                return String.format("%0" + naturalWidth(fieldValue.getClass()) + "d", fieldValue);
+            }
+            if (fieldValue instanceof LocalDate date) {
+                return date.format(DateTimeFormatter.BASIC_ISO_DATE);
+            }
+            return fieldValue.toString();
+        }
+    }
+}
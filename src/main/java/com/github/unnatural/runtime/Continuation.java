@@ -0,0 +1,75 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * The position a paged read stopped at. Callers hold it as an opaque token and pass it back to carry on from the
+ * following record, for instance after an END TRANSACTION. Reads in ISN order resume after the last ISN read,
+ * logical reads after the last descriptor value and ISN.
+ * @param descriptor the descriptor a logical read follows, null for a read in ISN order
+ */
+public record Continuation(String descriptor, Object value, int isn) {
+    private static final String BY_ISN = "I";
+    private static final String BY_DESCRIPTOR = "L";
+
+    public static Continuation afterIsn(int isn) {
+        return new Continuation(null, null, isn);
+    }
+
+    public static Continuation afterEntry(String descriptor, Object value, int isn) {
+        return new Continuation(descriptor, value, isn);
+    }
+
+    public String encode() {
+        String position = descriptor == null ? BY_ISN + "|" + isn
+                : BY_DESCRIPTOR + "|" + isn + "|" + descriptor + "|" + (value == null ? "N" : "V" + value);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // the position of a token, null when there is none. Values are read back as strings and coerced by the index.
+    public static Continuation decode(String token) {
+        if (token == null) {
+            return null;
+        }
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\\|", 4);
+            int isn = Integer.parseInt(parts[1]);
+            if (parts[0].equals(BY_ISN) && parts.length == 2) {
+                return afterIsn(isn);
+            }
+            if (parts[0].equals(BY_DESCRIPTOR) && parts.length == 4) {
+                return afterEntry(parts[2], parts[3].startsWith("V") ? parts[3].substring(1) : null, isn);
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            // reported below
+        }
+        throw new NaturalException("Invalid continuation " + token);
+    }
+
+    // the position as an entry of the index a logical read follows
+    DescriptorIndex.Entry entry(DescriptorIndex index) {
+        if (!index.getName().equals(descriptor)) {
+            throw new NaturalException("Continuation " + encode() + " does not follow descriptor " + index.getName());
+        }
+        return new DescriptorIndex.Entry(index.coerce(value), isn);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Sorted secondary index over the values of a single descriptor.
+ * Each distinct value holds its ISNs in ascending order so lookups return records in
+ * descriptor value then ISN order, as READ LOGICAL does.
+ */
+public class DescriptorIndex {
+    @Getter
+    private final String name;
+    @Getter
+    private final Class<?> valueType;
+
+    private final NavigableMap<Object, Postings> postings = new TreeMap<>(FieldValues.ORDER);
+    // the number of ISNs indexed
+    private int size;
+
+    public DescriptorIndex(String name, Class<?> valueType) {
+        this.name = name;
+        this.valueType = valueType;
+    }
+
+    public void add(int isn, Object value) {
+        if (postings.computeIfAbsent(coerce(value), v -> new Postings()).add(isn)) {
+            size++;
+        }
+    }
+
+    // add ascending ISNs that all hold the value
+    public void addAll(int[] isns, Object value) {
+        size += postings.computeIfAbsent(coerce(value), v -> new Postings()).addAll(isns);
+    }
+
+    public void remove(int isn, Object value) {
+        Object key = coerce(value);
+        Postings isns = postings.get(key);
+        if (isns != null && isns.remove(isn)) {
+            size--;
+            if (isns.size == 0) {
+                postings.remove(key);
+            }
+        }
+    }
+
+    // remove ascending ISNs that all held the value
+    public void removeAll(int[] isns, Object value) {
+        Object key = coerce(value);
+        Postings existing = postings.get(key);
+        if (existing != null) {
+            size -= existing.removeAll(isns);
+            if (existing.size == 0) {
+                postings.remove(key);
+            }
+        }
+    }
+
+    public IsnBitmap equalTo(Object value) {
+        Postings isns = postings.get(coerce(value));
+        return isns == null ? IsnBitmap.EMPTY : IsnBitmap.ofSorted(isns.isns, isns.size);
+    }
+
+    /*
+    ISNs with values between from and to, a null bound is unbounded
+     */
+    public IsnBitmap range(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        Collection<Postings> selected = select(from, fromInclusive, to, toInclusive).values();
+        if (selected.size() == 1) {
+            Postings isns = selected.iterator().next();
+            return IsnBitmap.ofSorted(isns.isns, isns.size);
+        }
+        IsnBitmap.Builder builder = new IsnBitmap.Builder();
+        for (Postings isns : selected) {
+            builder.addAll(isns.isns, isns.size);
+        }
+        return builder.build();
+    }
+
+    /*
+    Up to limit entries with values between from and to inclusive, in value then ISN order, starting after the
+    entry given or from the start of the range when it is null. A reader pages through a range by passing the
+    last entry it read, which stays valid whatever has been indexed since.
+     */
+    public List<Entry> entries(Object from, Object to, Entry after, int limit) {
+        NavigableMap<Object, Postings> selected = select(from, true, to, true);
+        Object afterValue = after == null ? null : coerce(after.value());
+        if (after != null) {
+            selected = selected.tailMap(afterValue, true);
+        }
+        List<Entry> result = new ArrayList<>(Math.min(limit, 256));
+        for (Map.Entry<Object, Postings> entry : selected.entrySet()) {
+            Postings isns = entry.getValue();
+            int pos = 0;
+            if (after != null && FieldValues.compare(entry.getKey(), afterValue) == 0) {
+                pos = Arrays.binarySearch(isns.isns, 0, isns.size, after.isn());
+                pos = pos < 0 ? -pos - 1 : pos + 1;
+            }
+            for (; pos < isns.size; pos++) {
+                if (result.size() == limit) {
+                    return result;
+                }
+                result.add(new Entry(entry.getKey(), isns.isns[pos]));
+            }
+        }
+        return result;
+    }
+
+    /*
+    Up to limit distinct values between from and to inclusive with the number of ISNs holding each, in value order,
+    starting after the value given or from the start of the range when it is null
+     */
+    public List<HistogramValue> values(Object from, Object to, HistogramValue after, int limit) {
+        NavigableMap<Object, Postings> selected = select(from, true, to, true);
+        if (after != null) {
+            selected = selected.tailMap(coerce(after.value()), false);
+        }
+        List<HistogramValue> result = new ArrayList<>(Math.min(limit, 256));
+        for (Map.Entry<Object, Postings> entry : selected.entrySet()) {
+            if (result.size() == limit) {
+                break;
+            }
+            result.add(new HistogramValue(entry.getKey(), entry.getValue().size));
+        }
+        return result;
+    }
+
+    private NavigableMap<Object, Postings> select(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        NavigableMap<Object, Postings> selected = postings;
+        if (from != null) {
+            selected = selected.tailMap(coerce(from), fromInclusive);
+        }
+        if (to != null) {
+            selected = selected.headMap(toInclusive ? upperBound(to) : coerce(to), toInclusive);
+        }
+        return selected;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // the number of ISNs holding the value, without copying them
+    public int countEqualTo(Object value) {
+        Postings isns = postings.get(coerce(value));
+        return isns == null ? 0 : isns.size;
+    }
+
+    public int countRange(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        int count = 0;
+        for (Postings isns : select(from, fromInclusive, to, toInclusive).values()) {
+            count += isns.size;
+        }
+        return count;
+    }
+
+    public Object coerce(Object value) {
+        return FieldValues.coerce(value, valueType);
+    }
+
+    // the value an inclusive upper bound selects up to, a super-descriptor widens a partial value to all values starting with it
+    public Object upperBound(Object to) {
+        return coerce(to);
+    }
+
+    /**
+     * A position in the index, entries are ordered by value then ISN
+     */
+    public record Entry(Object value, int isn) {
+    }
+
+    // Sorted ISNs for one descriptor value
+    private static class Postings {
+        private int[] isns = new int[2];
+        private int size;
+
+        boolean add(int isn) {
+            int pos = Arrays.binarySearch(isns, 0, size, isn);
+            if (pos >= 0) {
+                return false;
+            }
+            int insertAt = -pos - 1;
+            if (size == isns.length) {
+                isns = Arrays.copyOf(isns, size * 2);
+            }
+            System.arraycopy(isns, insertAt, isns, insertAt + 1, size - insertAt);
+            isns[insertAt] = isn;
+            size++;
+            return true;
+        }
+
+        // merge in ascending ISNs, appending when they all follow the ISNs already held, returning the number added
+        int addAll(int[] added) {
+            if (size == 0 || added.length > 0 && added[0] > isns[size - 1]) {
+                isns = size + added.length > isns.length ? Arrays.copyOf(isns, Math.max(size * 2, size + added.length)) : isns;
+                System.arraycopy(added, 0, isns, size, added.length);
+                size += added.length;
+                return added.length;
+            }
+            int[] merged = new int[size + added.length];
+            int count = 0;
+            int pos = 0;
+            for (int isn : added) {
+                while (pos < size && isns[pos] < isn) {
+                    merged[count++] = isns[pos++];
+                }
+                if (pos == size || isns[pos] != isn) {
+                    merged[count++] = isn;
+                }
+            }
+            System.arraycopy(isns, pos, merged, count, size - pos);
+            int previousSize = size;
+            isns = merged;
+            size = count + size - pos;
+            return size - previousSize;
+        }
+
+        boolean remove(int isn) {
+            int pos = Arrays.binarySearch(isns, 0, size, isn);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(isns, pos + 1, isns, pos, size - pos - 1);
+            size--;
+            return true;
+        }
+
+        // remove ascending ISNs in one pass, returning the number removed
+        int removeAll(int[] removed) {
+            int kept = 0;
+            int next = 0;
+            for (int pos = 0; pos < size; pos++) {
+                while (next < removed.length && removed[next] < isns[pos]) {
+                    next++;
+                }
+                if (next == removed.length || removed[next] != isns[pos]) {
+                    isns[kept++] = isns[pos];
+                }
+            }
+            int count = size - kept;
+            size = kept;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * The descriptor indexes declared on a record class with {@link Descriptor}, kept in declaration order,
+ * followed by those of its {@link SuperDescriptor}s. A descriptor on an array field indexes its elements.
+ * @param <T> the record type
+ */
+public class DescriptorIndexes<T> {
+    private final Map<String, DescriptorIndex> byName = new LinkedHashMap<>();
+    private final List<IndexedField> fields = new ArrayList<>();
+
+    public DescriptorIndexes(Class<T> recordClass) {
+        for (Class<?> clazz = recordClass; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                Descriptor descriptor = field.getAnnotation(Descriptor.class);
+                if (descriptor != null) {
+                    String name = descriptor.value().isEmpty() ? DdmNames.toDdmName(field.getName()) : descriptor.value();
+                    field.setAccessible(true);
+                    DescriptorIndex index = field.getType().isArray() ? new ElementIndex(name, field.getType().getComponentType())
+                            : new DescriptorIndex(name, field.getType());
+                    byName.put(name, index);
+                    fields.add(new IndexedField(index, record -> read(field, index, record)));
+                }
+            }
+        }
+        for (CompositeDescriptor composite : CompositeDescriptor.declaredOn(recordClass)) {
+            DescriptorIndex index = composite.newIndex();
+            byName.put(composite.getName(), index);
+            fields.add(new IndexedField(index, composite::value));
+        }
+    }
+
+    private static Object read(Field field, DescriptorIndex index, Object record) {
+        try {
+            return field.get(record);
+        } catch (IllegalAccessException e) {
+            throw new NaturalException("Unable to read descriptor " + index.getName() + ": " + e.getMessage());
+        }
+    }
+
+    public void add(int isn, T record) {
+        for (IndexedField field : fields) {
+            field.add(isn, field.value(record));
+        }
+    }
+
+    public void remove(int isn, T record) {
+        for (IndexedField field : fields) {
+            field.remove(isn, field.value(record));
+        }
+    }
+
+    // the descriptor values of the record, in declaration order, a copy of the elements for an array field
+    public Object[] values(T record) {
+        Object[] values = new Object[fields.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = fields.get(i).value(record);
+        }
+        return values;
+    }
+
+    // index values previously taken from a record by values
+    public void add(int isn, Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            fields.get(i).add(isn, values[i]);
+        }
+    }
+
+    public void remove(int isn, Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            fields.get(i).remove(isn, values[i]);
+        }
+    }
+
+    /*
+    Index a batch of records, isns[i] being the ISN of records.get(i). Each index is updated once per
+    distinct value rather than once per record.
+     */
+    public void addAll(int[] isns, List<T> records) {
+        for (IndexedField field : fields) {
+            if (field.index() instanceof ElementIndex elements) {
+                elements.addAllElements(isns, records.stream().map(record -> (Object[]) field.value(record)).toList());
+            } else {
+                field.byValue(isns, records).forEach((value, valueIsns) -> field.index().addAll(valueIsns, value));
+            }
+        }
+    }
+
+    public void removeAll(int[] isns, List<T> records) {
+        for (IndexedField field : fields) {
+            if (field.index() instanceof ElementIndex) {
+                for (int i = 0; i < isns.length; i++) {
+                    field.remove(isns[i], field.value(records.get(i)));
+                }
+            } else {
+                field.byValue(isns, records).forEach((value, valueIsns) -> field.index().removeAll(valueIsns, value));
+            }
+        }
+    }
+
+    public Optional<DescriptorIndex> find(String name) {
+        return Optional.ofNullable(byName.get(name));
+    }
+
+    // the descriptor declared at the 1-based position
+    public Optional<DescriptorIndex> find(int number) {
+        return number < 1 || number > fields.size() ? Optional.empty() : Optional.of(fields.get(number - 1).index());
+    }
+
+    // the record's value for a descriptor, a multiple-value descriptor has no single value
+    public Object value(DescriptorIndex index, T record) {
+        if (index instanceof ElementIndex) {
+            throw new NaturalException("Descriptor " + index.getName() + " has a value per occurrence and cannot be read logically");
+        }
+        for (IndexedField field : fields) {
+            if (field.index() == index) {
+                return index.coerce(field.value(record));
+            }
+        }
+        throw new NaturalException("Descriptor " + index.getName() + " is not declared on the record");
+    }
+
+    // the values the index holds the record under, each distinct element of a multiple-value descriptor
+    public Object[] values(DescriptorIndex index, T record) {
+        if (!(index instanceof ElementIndex elements)) {
+            return new Object[]{value(index, record)};
+        }
+        for (IndexedField field : fields) {
+            if (field.index() == index) {
+                Object[] held = Arrays.stream((Object[]) field.value(record)).filter(Objects::nonNull).distinct().toArray();
+                // as indexed, a record with no elements is held under a null value
+                return held.length == 0 ? new Object[]{null} : held;
+            }
+        }
+        throw new NaturalException("Descriptor " + elements.getName() + " is not declared on the record");
+    }
+
+    public Collection<DescriptorIndex> all() {
+        return Collections.unmodifiableCollection(byName.values());
+    }
+
+    public boolean isEmpty() {
+        return byName.isEmpty();
+    }
+
+    private record IndexedField(DescriptorIndex index, Function<Object, Object> reader) {
+        // the ascending ISNs holding each value
+        Map<Object, int[]> byValue(int[] isns, List<?> records) {
+            Map<Object, IntList> grouped = new HashMap<>();
+            for (int i = 0; i < isns.length; i++) {
+                grouped.computeIfAbsent(value(records.get(i)), v -> new IntList()).add(isns[i]);
+            }
+            Map<Object, int[]> result = new HashMap<>();
+            grouped.forEach((value, list) -> result.put(value, list.toSortedArray()));
+            return result;
+        }
+
+        // the field value, or the elements of an array field
+        Object value(Object record) {
+            Object value = reader.apply(record);
+            return index instanceof ElementIndex elements ? elements.elements(value) : value;
+        }
+
+        void add(int isn, Object value) {
+            if (index instanceof ElementIndex elements) {
+                elements.addElements(isn, (Object[]) value);
+            } else {
+                index.add(isn, value);
+            }
+        }
+
+        void remove(int isn, Object value) {
+            if (index instanceof ElementIndex elements) {
+                elements.removeElements(isn, (Object[]) value);
+            } else {
+                index.remove(isn, value);
+            }
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toSortedArray() {
+            int[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
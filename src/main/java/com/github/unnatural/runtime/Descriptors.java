@@ -18,8 +18,29 @@ OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
 
 package com.github.unnatural.runtime;
 
+import lombok.Getter;
+
+/**
+ * The descriptor a READ LOGICAL follows, either by its 1-based position among the descriptors declared on
+ * the record class or by its DDM name
+ */
+@Getter
 public class Descriptors implements IndexReadDescriptor {
+    private final int number;
+    private final String name;
+
     public Descriptors(int i) {
+        this.number = i;
+        this.name = null;
+    }
+
+    public Descriptors(String name) {
+        this.number = 0;
+        this.name = name;
+    }
 
+    @Override
+    public String toString() {
+        return name != null ? name : "descriptor " + number;
     }
 }
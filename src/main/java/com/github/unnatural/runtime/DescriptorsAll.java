@@ -18,5 +18,8 @@ OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
 
 package com.github.unnatural.runtime;
 
+/**
+ * Read every record rather than following a descriptor, in ISN order as READ BY ISN does
+ */
 public class DescriptorsAll implements IndexReadDescriptor {
 }
@@ -0,0 +1,177 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index over the elements of a multiple-value field or periodic group, declared with {@link Descriptor}
+ * on an array field. Each element value maps to the ISNs of the records holding it in any occurrence, so a record is
+ * found once however many occurrences hold the value, and to the occurrence numbers holding it.
+ * A record with no elements is indexed under a null value, as a null field value is.
+ */
+public class ElementIndex extends DescriptorIndex {
+    private final Map<Object, Occurrences> occurrences = new HashMap<>();
+
+    public ElementIndex(String name, Class<?> elementType) {
+        super(name, elementType);
+    }
+
+    // the elements of an array field value converted to the element type, in occurrence order
+    public Object[] elements(Object array) {
+        if (array == null) {
+            return new Object[0];
+        }
+        Object[] elements = new Object[Array.getLength(array)];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = coerce(Array.get(array, i));
+        }
+        return elements;
+    }
+
+    public void addElements(int isn, Object[] elements) {
+        boolean held = false;
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i] != null) {
+                add(isn, elements[i]);
+                occurrences.computeIfAbsent(elements[i], v -> new Occurrences()).add(position(isn, i + 1));
+                held = true;
+            }
+        }
+        if (!held) {
+            add(isn, null);
+        }
+    }
+
+    /*
+    Index a batch, isns[i] holding elements.get(i). Each distinct value is looked up once rather than once per
+    occurrence.
+     */
+    public void addAllElements(int[] isns, List<Object[]> elements) {
+        Map<Object, long[]> byValue = new HashMap<>();
+        Map<Object, Integer> counts = new HashMap<>();
+        for (int i = 0; i < isns.length; i++) {
+            Object[] values = elements.get(i);
+            boolean held = false;
+            for (int occurrence = 0; occurrence < values.length; occurrence++) {
+                Object value = values[occurrence];
+                if (value != null) {
+                    int count = counts.merge(value, 1, Integer::sum);
+                    long[] positions = byValue.computeIfAbsent(value, v -> new long[4]);
+                    if (count > positions.length) {
+                        positions = Arrays.copyOf(positions, positions.length * 2);
+                        byValue.put(value, positions);
+                    }
+                    positions[count - 1] = position(isns[i], occurrence + 1);
+                    held = true;
+                }
+            }
+            if (!held) {
+                add(isns[i], null);
+            }
+        }
+        byValue.forEach((value, positions) -> {
+            long[] sorted = Arrays.copyOf(positions, counts.get(value));
+            Arrays.sort(sorted);
+            addAll(Arrays.stream(sorted).mapToInt(position -> (int) (position >>> 32)).distinct().toArray(), value);
+            Occurrences held = occurrences.computeIfAbsent(value, v -> new Occurrences());
+            for (long position : sorted) {
+                held.add(position);
+            }
+        });
+    }
+
+    // remove the elements previously added for the ISN
+    public void removeElements(int isn, Object[] elements) {
+        boolean held = false;
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i] != null) {
+                remove(isn, elements[i]);
+                Occurrences positions = occurrences.get(elements[i]);
+                if (positions != null && positions.remove(position(isn, i + 1)) && positions.size == 0) {
+                    occurrences.remove(elements[i]);
+                }
+                held = true;
+            }
+        }
+        if (!held) {
+            remove(isn, null);
+        }
+    }
+
+    /*
+    The ISNs and 1-based occurrence numbers holding the value, in ISN then occurrence order
+     */
+    public List<Occurrence> occurrences(Object value) {
+        Occurrences positions = occurrences.get(coerce(value));
+        if (positions == null) {
+            return List.of();
+        }
+        List<Occurrence> result = new ArrayList<>(positions.size);
+        for (int i = 0; i < positions.size; i++) {
+            result.add(new Occurrence((int) (positions.positions[i] >>> 32), (int) positions.positions[i]));
+        }
+        return result;
+    }
+
+    private static long position(int isn, int occurrence) {
+        return (long) isn << 32 | occurrence;
+    }
+
+    /**
+     * An occurrence of a value, numbered from 1 as Natural indexes multiple-value fields and periodic groups
+     */
+    public record Occurrence(int isn, int occurrence) {
+    }
+
+    // Sorted ISN and occurrence positions for one element value
+    private static class Occurrences {
+        private long[] positions = new long[2];
+        private int size;
+
+        void add(long position) {
+            int pos = Arrays.binarySearch(positions, 0, size, position);
+            if (pos >= 0) {
+                return;
+            }
+            int insertAt = -pos - 1;
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            System.arraycopy(positions, insertAt, positions, insertAt + 1, size - insertAt);
+            positions[insertAt] = position;
+            size++;
+        }
+
+        boolean remove(long position) {
+            int pos = Arrays.binarySearch(positions, 0, size, position);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(positions, pos + 1, positions, pos, size - pos - 1);
+            size--;
+            return true;
+        }
+    }
+}
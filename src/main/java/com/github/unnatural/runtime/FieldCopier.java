@@ -0,0 +1,417 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Copies same named fields from one class to another, or every field of a record to a new record of its class.
+ * The fields to copy and how to copy each of them are worked out once per (source, destination) class pair
+ * and held as method handles, so a copy does no field lookups or reflective access checks.
+ */
+@Slf4j
+public class FieldCopier {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private static final Set<Class<?>> SIMPLE_TYPES = Set.of(int.class, String.class, LocalDate.class, LocalDateTime.class);
+    private static final Set<Class<?>> SIMPLE_ARRAY_TYPES = Set.of(int[].class, String[].class, LocalDate[].class, LocalDateTime[].class);
+
+    // values that can be shared between a record and its copy
+    private static final Set<Class<?>> IMMUTABLE_TYPES = Set.of(String.class, BigDecimal.class, BigInteger.class,
+            LocalDate.class, LocalDateTime.class, Boolean.class, Byte.class, Short.class, Character.class,
+            Integer.class, Long.class, Float.class, Double.class);
+
+    private static final ClassValue<ClassValue<FieldCopier>> MOVE_BY_NAME = pairCache(false);
+    private static final ClassValue<FieldCopier> COPIES = new ClassValue<>() {
+        @Override
+        protected FieldCopier computeValue(Class<?> type) {
+            return buildCopy(type, new HashSet<>());
+        }
+    };
+    private static final ClassValue<ClassValue<FieldCopier>> ADAPT_BY_NAME = pairCache(true);
+    private static final ClassValue<MethodHandle> CONSTRUCTORS = new ClassValue<>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            try {
+                return LOOKUP.findConstructor(type, MethodType.methodType(void.class)).asType(MethodType.methodType(Object.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new NaturalException("No public no-args constructor for " + type.getName());
+            }
+        }
+    };
+
+    private final List<Step> steps;
+
+    private FieldCopier(List<Step> steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * Plain assignment of each same named field, as MOVE BY NAME does. Throws IllegalArgumentException when a
+     * same named field's type cannot be assigned.
+     */
+    public static FieldCopier moveByName(Class<?> src, Class<?> dest) {
+        return MOVE_BY_NAME.get(src).get(dest);
+    }
+
+    /**
+     * Adaption between a stored record and a view: simple values are assigned, values for Natural
+     * types are set via their setFromInteger / setFromString methods and arrays are copied into any
+     * existing destination array
+     */
+    public static FieldCopier adaptByName(Class<?> src, Class<?> dest) {
+        return ADAPT_BY_NAME.get(src).get(dest);
+    }
+
+    /**
+     * A new record of the same class sharing no mutable state with the original: every field, superclass fields
+     * included, is copied. Arrays, collections and nested objects such as Natural types are copied in turn, the
+     * elements of collections are shared so they should be immutable values. Used wherever a stored record is
+     * handed out or a caller's record is stored, so changing one never changes the other.
+     * A class with a field that cannot be copied, such as a mutable JDK type other than a collection, a nested type
+     * with no public no-args constructor or a nested type that refers back to an enclosing one, is rejected.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T copyOf(T record) {
+        if (record == null) {
+            return null;
+        }
+        return (T) COPIES.get(record.getClass()).copyRecord(record);
+    }
+
+    /**
+     * Check that records of the class can be copied by copyOf, throwing NaturalException naming the field that cannot
+     */
+    public static void checkCopyable(Class<?> type) {
+        COPIES.get(type);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T newInstance(Class<T> type) {
+        try {
+            return (T) CONSTRUCTORS.get(type).invokeExact();
+        } catch (Throwable e) {
+            throw new NaturalException("Unable to instantiate " + type.getName() + ": " + e.getMessage());
+        }
+    }
+
+    public void copy(Object src, Object dest) {
+        for (Step step : steps) {
+            try {
+                step.copy(src, dest);
+            } catch (Throwable e) {
+                log.warn("Unable to copy {} on class {} to class {} - {}", step.name(),
+                        src.getClass().getName(), dest.getClass().getName(), e.getMessage());
+            }
+        }
+    }
+
+    private static ClassValue<ClassValue<FieldCopier>> pairCache(boolean adapt) {
+        return new ClassValue<>() {
+            @Override
+            protected ClassValue<FieldCopier> computeValue(Class<?> src) {
+                return new ClassValue<>() {
+                    @Override
+                    protected FieldCopier computeValue(Class<?> dest) {
+                        return build(src, dest, adapt);
+                    }
+                };
+            }
+        };
+    }
+
+    private static FieldCopier build(Class<?> src, Class<?> dest, boolean adapt) {
+        List<Step> steps = new ArrayList<>();
+        for (Field srcField : src.getDeclaredFields()) {
+            if (Modifier.isStatic(srcField.getModifiers())) {
+                continue;
+            }
+            Field destField = declaredField(dest, srcField.getName());
+            if (destField == null || Modifier.isStatic(destField.getModifiers())) {
+                continue;
+            }
+            try {
+                Step step = adapt ? adaptStep(srcField, destField) : moveStep(srcField, destField);
+                if (step != null) {
+                    steps.add(step);
+                }
+            } catch (IllegalAccessException e) {
+                log.warn("Unable to copy {} on class {} to class {} - {}", srcField.getName(),
+                        src.getName(), dest.getName(), e.getMessage());
+            }
+        }
+        return new FieldCopier(List.copyOf(steps));
+    }
+
+    private Object copyRecord(Object record) {
+        Object copy = newInstance(record.getClass());
+        for (Step step : steps) {
+            try {
+                step.copy(record, copy);
+            } catch (Throwable e) {
+                throw new NaturalException("Unable to copy " + step.name() + " on class " + record.getClass().getName()
+                        + " - " + e.getMessage());
+            }
+        }
+        return copy;
+    }
+
+    // how to copy each field is worked out once, so a field that cannot be copied is rejected before any record is
+    private static FieldCopier buildCopy(Class<?> type, Set<Class<?>> enclosing) {
+        CONSTRUCTORS.get(type);
+        enclosing.add(type);
+        List<Step> steps = new ArrayList<>();
+        for (Class<?> clazz = type; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                try {
+                    MethodHandle getter = getter(field);
+                    MethodHandle setter = setter(field);
+                    ValueCopy valueCopy = valueCopy(field.getType(), enclosing);
+                    if (valueCopy == null) {
+                        steps.add(new Step(field.getName(), (src, dest) -> {
+                            setter.invokeExact(dest, (Object) getter.invokeExact(src));
+                        }));
+                    } else {
+                        steps.add(new Step(field.getName(), (src, dest) -> {
+                            Object value = (Object) getter.invokeExact(src);
+                            setter.invokeExact(dest, value == null ? null : valueCopy.copy(value));
+                        }));
+                    }
+                } catch (IllegalAccessException | RuntimeException e) {
+                    throw new NaturalException("Unable to copy " + field.getName() + " on class " + type.getName()
+                            + " - " + e.getMessage());
+                }
+            }
+        }
+        enclosing.remove(type);
+        return new FieldCopier(List.copyOf(steps));
+    }
+
+    // the copy of a non-null value of the type, null when values can be shared
+    private static ValueCopy valueCopy(Class<?> type, Set<Class<?>> enclosing) {
+        if (isImmutable(type)) {
+            return null;
+        }
+        if (type.isArray()) {
+            return arrayCopy(type.getComponentType(), valueCopy(type.getComponentType(), enclosing));
+        }
+        if (Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type)) {
+            return collectionCopy(type);
+        }
+        if (type.getModule().isNamed() || type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+            throw new IllegalArgumentException("unsupported type: " + type.getName());
+        }
+        // a value that could refer back to a record holding it would be copied without end
+        if (enclosing.contains(type)) {
+            throw new IllegalArgumentException("refers back to " + type.getName());
+        }
+        FieldCopier nested = buildCopy(type, enclosing);
+        return value -> value.getClass() == type ? nested.copyRecord(value) : copyOf(value);
+    }
+
+    private static ValueCopy arrayCopy(Class<?> component, ValueCopy elementCopy) {
+        return value -> {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(component, length);
+            if (elementCopy == null) {
+                System.arraycopy(value, 0, copy, 0, length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    Object element = Array.get(value, i);
+                    Array.set(copy, i, element == null ? null : elementCopy.copy(element));
+                }
+            }
+            return copy;
+        };
+    }
+
+    // collections are copied through their copy constructors, declared interfaces by the usual implementation
+    private static ValueCopy collectionCopy(Class<?> type) {
+        if (type == SortedMap.class || type == NavigableMap.class) {
+            return value -> new TreeMap<>((SortedMap<?, ?>) value);
+        }
+        if (type == Map.class) {
+            return value -> new LinkedHashMap<>((Map<?, ?>) value);
+        }
+        if (type == SortedSet.class || type == NavigableSet.class) {
+            return value -> new TreeSet<>((SortedSet<?>) value);
+        }
+        if (type == Set.class) {
+            return value -> new LinkedHashSet<>((Set<?>) value);
+        }
+        if (type == Queue.class || type == Deque.class) {
+            return value -> new ArrayDeque<>((Collection<?>) value);
+        }
+        if (type == Collection.class || type == List.class) {
+            return value -> new ArrayList<>((Collection<?>) value);
+        }
+        Class<?> contents = Map.class.isAssignableFrom(type) ? Map.class : Collection.class;
+        try {
+            MethodHandle constructor = LOOKUP.findConstructor(type, MethodType.methodType(void.class, contents))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            return value -> (Object) constructor.invokeExact(value);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("no public copy constructor for " + type.getName());
+        }
+    }
+
+    private static boolean isImmutable(Class<?> type) {
+        return type.isPrimitive() || type.isEnum() || IMMUTABLE_TYPES.contains(type);
+    }
+
+    private static Step moveStep(Field srcField, Field destField) throws IllegalAccessException {
+        // a field the program expects to move is never left unchanged, as assigning it reflectively would fail
+        if (!wrapped(destField.getType()).isAssignableFrom(wrapped(srcField.getType()))) {
+            throw new IllegalArgumentException("Unable to move " + srcField.getName() + " on class "
+                    + srcField.getDeclaringClass().getName() + " to class " + destField.getDeclaringClass().getName()
+                    + " - incompatible type: " + srcField.getType().getName() + " to " + destField.getType().getName());
+        }
+        MethodHandle getter = getter(srcField);
+        MethodHandle setter = setter(destField);
+        return new Step(srcField.getName(), (src, dest) -> {
+            setter.invokeExact(dest, (Object) getter.invokeExact(src));
+        });
+    }
+
+    private static Class<?> wrapped(Class<?> type) {
+        return MethodType.methodType(type).wrap().returnType();
+    }
+
+    private static Step adaptStep(Field srcField, Field destField) throws IllegalAccessException {
+        Class<?> srcType = srcField.getType();
+        MethodHandle getter = getter(srcField);
+        if (SIMPLE_TYPES.contains(srcType)) {
+            if (destField.getType().equals(srcType)) {
+                MethodHandle setter = setter(destField);
+                return new Step(srcField.getName(), (src, dest) -> {
+                    setter.invokeExact(dest, (Object) getter.invokeExact(src));
+                });
+            }
+            String typeName = srcType.equals(int.class) ? "Integer" : srcType.equals(String.class) ? "String" : null;
+            MethodHandle customSetter = typeName == null ? null : customSetter(destField.getType(), typeName, srcType);
+            if (customSetter == null) {
+                if (typeName != null) {
+                    log.warn("Unable to set {} on class {} - {} {}", destField.getName(),
+                            destField.getDeclaringClass().getName(), "no custom setter for", typeName);
+                }
+                return null;
+            }
+            MethodHandle destGetter = getter(destField);
+            return new Step(srcField.getName(), (src, dest) -> {
+                customSetter.invokeExact((Object) destGetter.invokeExact(dest), (Object) getter.invokeExact(src));
+            });
+        } else if (SIMPLE_ARRAY_TYPES.contains(srcType)) {
+            if (!destField.getType().equals(srcType)) {
+                log.warn("Unable to copy {} on class {} to class {} - {}: {}", srcField.getName(),
+                        srcField.getDeclaringClass().getName(), destField.getDeclaringClass().getName(),
+                        "unsupported array", srcType.getName());
+                return null;
+            }
+            MethodHandle destGetter = getter(destField);
+            MethodHandle setter = setter(destField);
+            ValueCopy arrayCopy = arrayCopy(srcType.getComponentType(), null);
+            return new Step(srcField.getName(), (src, dest) -> {
+                Object srcArray = (Object) getter.invokeExact(src);
+                Object destArray = (Object) destGetter.invokeExact(dest);
+                if (destArray == null || srcArray == null) {
+                    setter.invokeExact(dest, srcArray == null ? null : arrayCopy.copy(srcArray));
+                } else {
+                    System.arraycopy(srcArray, 0, destArray, 0, Array.getLength(srcArray));
+                }
+            });
+        }
+        log.warn("Unable to copy {} on class {} to class {} - {}: {}", srcField.getName(),
+                srcField.getDeclaringClass().getName(), destField.getDeclaringClass().getName(),
+                "complex src type", srcType.getName());
+        return null;
+    }
+
+    private static MethodHandle customSetter(Class<?> destType, String typeName, Class<?> paramClass) {
+        try {
+            return LOOKUP.unreflect(destType.getMethod("setFrom" + typeName, paramClass)).asType(SETTER);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static Field declaredField(Class<?> clazz, String name) {
+        try {
+            return clazz.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle getter(Field field) throws IllegalAccessException {
+        field.setAccessible(true);
+        return LOOKUP.unreflectGetter(field).asType(GETTER);
+    }
+
+    private static MethodHandle setter(Field field) throws IllegalAccessException {
+        field.setAccessible(true);
+        return LOOKUP.unreflectSetter(field).asType(SETTER);
+    }
+
+    private interface ValueCopy {
+        Object copy(Object value) throws Throwable;
+    }
+
+    private interface Copy {
+        void copy(Object src, Object dest) throws Throwable;
+    }
+
+    private record Step(String name, Copy copy) {
+        void copy(Object src, Object dest) throws Throwable {
+            copy.copy(src, dest);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+
+/**
+ * Comparison of record field values with where clause operands
+ */
+public class FieldValues {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static final Comparator<Object> ORDER = Comparator.nullsFirst((a, b) -> ((Comparable) a).compareTo(b));
+
+    private FieldValues() {
+    }
+
+    /*
+    Convert an operand to the type of the field it is compared with so values compare consistently
+     */
+    public static Object coerce(Object value, Class<?> type) {
+        if (value == null || type.isInstance(value)) {
+            return value;
+        }
+        if (type == int.class || type == Integer.class || type == long.class || type == Long.class
+                || type == short.class || type == Short.class || type == byte.class || type == Byte.class) {
+            return whole(value, type);
+        }
+        if (type == double.class || type == Double.class) {
+            return decimal(value, type).doubleValue();
+        }
+        if (type == float.class || type == Float.class) {
+            return decimal(value, type).floatValue();
+        }
+        if (type == boolean.class || type == Boolean.class) {
+            return Boolean.parseBoolean(value.toString().trim());
+        }
+        if (type == BigDecimal.class) {
+            return new BigDecimal(value.toString().trim());
+        }
+        if (type == String.class) {
+            return value.toString();
+        }
+        if (type == LocalDate.class && value instanceof Number number) {
+            return Unnatural.parseDate("YYYYMMDD", Integer.toString(number.intValue()));
+        }
+        if (type == LocalDate.class) {
+            return LocalDate.parse(value.toString().trim());
+        }
+        if (type == LocalDateTime.class) {
+            return LocalDateTime.parse(value.toString().trim());
+        }
+        return value;
+    }
+
+    // operands for integer fields must be whole numbers in range, rather than be truncated to match other values
+    private static Number whole(Object value, Class<?> type) {
+        BigDecimal decimal = decimal(value, type);
+        try {
+            if (type == int.class || type == Integer.class) {
+                return decimal.intValueExact();
+            }
+            if (type == short.class || type == Short.class) {
+                return decimal.shortValueExact();
+            }
+            if (type == byte.class || type == Byte.class) {
+                return decimal.byteValueExact();
+            }
+            return decimal.longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NaturalException(value + " is not a valid " + type.getSimpleName() + " value");
+        }
+    }
+
+    private static BigDecimal decimal(Object value, Class<?> type) {
+        try {
+            return value instanceof BigDecimal d ? d : new BigDecimal(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new NaturalException(value + " is not a valid " + type.getSimpleName() + " value");
+        }
+    }
+
+    public static int compare(Object a, Object b) {
+        return ORDER.compare(a, b);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The records sessions have put in hold, by file and ISN. A session holds a record from the GET, READ or FIND
+ * that will update it, or from the update itself, until END TRANSACTION or BACKOUT TRANSACTION, and other
+ * sessions wanting the record wait for it. A session with no {@link AdabasTransaction} commits each update as it
+ * is made, so the update holds the record only while it runs. Holds are bound to the thread of the session and
+ * do not keep their file reachable.
+ * A session that would wait longer than the timeout, or whose wait would close a cycle of sessions waiting on
+ * each other's records, fails with a {@link NaturalException} and keeps the holds it has.
+ * Taking a free record is a single insert into a concurrent table, waits and wake ups lock one stripe of it.
+ */
+public final class HoldQueue {
+    private static final int STRIPES = 64;
+    private static final ThreadLocal<HoldQueue> CURRENT = ThreadLocal.withInitial(HoldQueue::new);
+    private static final ConcurrentHashMap<Hold, HoldQueue> HOLDERS = new ConcurrentHashMap<>();
+    private static final Stripe[] WAITING = new Stripe[STRIPES];
+    private static volatile long timeoutMillis = TimeUnit.SECONDS.toMillis(30);
+
+    static {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            WAITING[stripe] = new Stripe();
+        }
+    }
+
+    private final String session = Thread.currentThread().getName();
+    private final List<Hold> held = new ArrayList<>();
+    // the record the session is waiting for, read by other sessions looking for deadlocks
+    private volatile Hold waitingFor;
+
+    private HoldQueue() {
+    }
+
+    public static long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public static void setTimeoutMillis(long timeoutMillis) {
+        HoldQueue.timeoutMillis = timeoutMillis;
+    }
+
+    /*
+    Put the file's record in hold for the session, waiting up to the timeout while another session holds it
+     */
+    public static void hold(Object file, int isn) {
+        hold(file, isn, timeoutMillis);
+    }
+
+    // a timeout of 0 fails at once if the record is held by another session
+    public static void hold(Object file, int isn, long timeoutMillis) {
+        HoldQueue session = CURRENT.get();
+        Hold hold = new Hold(file, isn);
+        HoldQueue holder = HOLDERS.putIfAbsent(hold, session);
+        if (holder == null) {
+            session.held.add(hold);
+        } else if (holder != session) {
+            session.await(hold, timeoutMillis);
+        }
+    }
+
+    /*
+    Make a change to the file's record holding it, as UPDATE and DELETE do. A session in a transaction keeps
+    the hold until the transaction ends, a session without one releases it after the change unless it held
+    the record before.
+     */
+    public static void holdWhile(Object file, int isn, Runnable change) {
+        holdWhile(file, new int[]{isn}, () -> {
+            change.run();
+            return null;
+        });
+    }
+
+    public static <R> R holdWhile(Object file, int[] isns, Supplier<R> change) {
+        HoldQueue session = CURRENT.get();
+        int before = session.held.size();
+        try {
+            for (int isn : isns) {
+                hold(file, isn);
+            }
+            return change.get();
+        } finally {
+            if (AdabasTransaction.current().isEmpty()) {
+                // holds taken here are the newest, any the session had before stay
+                while (session.held.size() > before) {
+                    release(session, session.held.remove(session.held.size() - 1));
+                }
+            }
+        }
+    }
+
+    public static boolean isHeld(Object file, int isn) {
+        return HOLDERS.containsKey(new Hold(file, isn));
+    }
+
+    // the number of records the session holds
+    public static int size() {
+        return CURRENT.get().held.size();
+    }
+
+    // release the session's holds, as END TRANSACTION and BACKOUT TRANSACTION do
+    public static void releaseAll() {
+        HoldQueue session = CURRENT.get();
+        for (Hold hold : session.held) {
+            release(session, hold);
+        }
+        session.held.clear();
+    }
+
+    private static void release(HoldQueue session, Hold hold) {
+        HOLDERS.remove(hold, session);
+        Stripe stripe = stripe(hold);
+        // a waiter counts itself before its last look at the table, so it has either seen the release or is woken
+        if (stripe.waiters > 0) {
+            synchronized (stripe) {
+                stripe.notifyAll();
+            }
+        }
+    }
+
+    private void await(Hold hold, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Stripe stripe = stripe(hold);
+        waitingFor = hold;
+        try {
+            synchronized (stripe) {
+                stripe.waiters++;
+                try {
+                    while (true) {
+                        HoldQueue holder = HOLDERS.putIfAbsent(hold, this);
+                        if (holder == null) {
+                            held.add(hold);
+                            return;
+                        }
+                        checkNoDeadlock(hold, holder);
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            throw new NaturalException("Record with ISN " + hold.isn() + " is held by " + holder.session
+                                    + ", timed out after " + timeoutMillis + "ms");
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(stripe, remaining);
+                    }
+                } finally {
+                    stripe.waiters--;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NaturalException("Interrupted waiting for record with ISN " + hold.isn());
+        } finally {
+            waitingFor = null;
+        }
+    }
+
+    // follow the sessions the holder is waiting for, failing if the chain leads back to this one
+    private void checkNoDeadlock(Hold hold, HoldQueue holder) {
+        HoldQueue next = holder;
+        // a chain longer than the number of holds has changed while it was followed
+        for (int step = 0; next != null && step <= HOLDERS.size(); step++) {
+            if (next == this) {
+                throw new NaturalException("Deadlock waiting for record with ISN " + hold.isn() + " held by "
+                        + holder.session);
+            }
+            Hold awaited = next.waitingFor;
+            next = awaited == null ? null : HOLDERS.get(awaited);
+        }
+    }
+
+    private static Stripe stripe(Hold hold) {
+        return WAITING[hold.hashCode() & (STRIPES - 1)];
+    }
+
+    // the file is weakly referenced, a hold left on a file no longer used only matches itself
+    private static final class Hold {
+        private final WeakReference<Object> file;
+        private final int isn;
+        private final int hash;
+
+        private Hold(Object file, int isn) {
+            this.file = new WeakReference<>(file);
+            this.isn = isn;
+            this.hash = System.identityHashCode(file) * 31 + isn;
+        }
+
+        int isn() {
+            return isn;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other == this) {
+                return true;
+            }
+            Object held = file.get();
+            return other instanceof Hold hold && held != null && hold.file.get() == held && hold.isn == isn;
+        }
+    }
+
+    private static class Stripe {
+        // guarded by the stripe's lock, read without it by releasing sessions
+        private volatile int waiters;
+    }
+}
@@ -18,5 +18,8 @@ OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
 
 package com.github.unnatural.runtime;
 
+/**
+ * What an index read follows, a {@link Descriptors} or {@link DescriptorsAll}
+ */
 public interface IndexReadDescriptor {
 }
@@ -0,0 +1,428 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * An immutable compressed set of ISNs, split as Roaring bitmaps are into chunks of 65536 ISNs sharing their high
+ * 16 bits. A chunk holding few ISNs keeps them as a sorted array of their low 16 bits, a dense chunk as a bitmap,
+ * so sets from selective and broad descriptor conditions both stay small and combine chunk by chunk.
+ */
+public final class IsnBitmap {
+    public static final IsnBitmap EMPTY = new IsnBitmap(new char[0], new Container[0]);
+
+    // chunks with more ISNs than this are held as bitmaps
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1024;
+
+    private final char[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    private IsnBitmap(char[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+        int total = 0;
+        for (Container container : containers) {
+            total += container.cardinality();
+        }
+        this.cardinality = total;
+    }
+
+    // the set of strictly ascending ISNs, each chunk's run of ISNs is copied straight into its container
+    public static IsnBitmap ofSorted(int[] isns) {
+        return ofSorted(isns, isns.length);
+    }
+
+    public static IsnBitmap ofSorted(int[] isns, int length) {
+        Merger merger = new Merger(4);
+        for (int start = 0; start < length; ) {
+            int high = isns[start] >>> 16;
+            int end = start;
+            while (end < length && isns[end] >>> 16 == high) {
+                end++;
+            }
+            if (end - start > ARRAY_MAX) {
+                long[] words = new long[WORDS];
+                for (int i = start; i < end; i++) {
+                    words[(isns[i] & 0xFFFF) >>> 6] |= 1L << isns[i];
+                }
+                merger.add((char) high, new Bits(words, end - start));
+            } else {
+                char[] lows = new char[end - start];
+                for (int i = start; i < end; i++) {
+                    lows[i - start] = low(isns[i]);
+                }
+                merger.add((char) high, new Values(lows));
+            }
+            start = end;
+        }
+        return merger.build();
+    }
+
+    public static IsnBitmap of(int... isns) {
+        Builder builder = new Builder();
+        for (int isn : isns) {
+            builder.add(isn);
+        }
+        return builder.build();
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    // the approximate heap the set holds
+    public long estimatedBytes() {
+        long bytes = 32L + 2L * keys.length;
+        for (Container container : containers) {
+            bytes += container instanceof Values values ? 32L + 2L * values.lows().length : 32L + 8L * WORDS;
+        }
+        return bytes;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    public boolean contains(int isn) {
+        int index = Arrays.binarySearch(keys, high(isn));
+        return index >= 0 && containers[index].contains(low(isn));
+    }
+
+    public IsnBitmap and(IsnBitmap other) {
+        Merger merger = new Merger(Math.min(keys.length, other.keys.length));
+        for (int l = 0, r = 0; l < keys.length && r < other.keys.length; ) {
+            if (keys[l] < other.keys[r]) {
+                l++;
+            } else if (keys[l] > other.keys[r]) {
+                r++;
+            } else {
+                merger.add(keys[l], containers[l++].and(other.containers[r++]));
+            }
+        }
+        return merger.build();
+    }
+
+    public IsnBitmap or(IsnBitmap other) {
+        Merger merger = new Merger(keys.length + other.keys.length);
+        int l = 0;
+        int r = 0;
+        while (l < keys.length || r < other.keys.length) {
+            if (r == other.keys.length || l < keys.length && keys[l] < other.keys[r]) {
+                merger.add(keys[l], containers[l++]);
+            } else if (l == keys.length || keys[l] > other.keys[r]) {
+                merger.add(other.keys[r], other.containers[r++]);
+            } else {
+                merger.add(keys[l], containers[l++].or(other.containers[r++]));
+            }
+        }
+        return merger.build();
+    }
+
+    // the ISNs of this set that are not in the other
+    public IsnBitmap andNot(IsnBitmap other) {
+        Merger merger = new Merger(keys.length);
+        for (int l = 0, r = 0; l < keys.length; l++) {
+            while (r < other.keys.length && other.keys[r] < keys[l]) {
+                r++;
+            }
+            boolean shared = r < other.keys.length && other.keys[r] == keys[l];
+            merger.add(keys[l], shared ? containers[l].andNot(other.containers[r]) : containers[l]);
+        }
+        return merger.build();
+    }
+
+    // NOT, the ISNs of the universe that are not in this set
+    public IsnBitmap not(IsnBitmap universe) {
+        return universe.andNot(this);
+    }
+
+    // the ISNs in ascending order
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < keys.length; i++) {
+            int high = keys[i] << 16;
+            containers[i].forEach(low -> action.accept(high | low));
+        }
+    }
+
+    public int[] toArray() {
+        int[] isns = new int[cardinality];
+        int[] pos = new int[1];
+        forEach(isn -> isns[pos[0]++] = isn);
+        return isns;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof IsnBitmap other && cardinality == other.cardinality && Arrays.equals(toArray(), other.toArray());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toArray());
+    }
+
+    @Override
+    public String toString() {
+        return "IsnBitmap" + (cardinality > 32 ? "[" + cardinality + " ISNs]" : Arrays.toString(toArray()));
+    }
+
+    private static char high(int isn) {
+        return (char) (isn >>> 16);
+    }
+
+    private static char low(int isn) {
+        return (char) isn;
+    }
+
+    /**
+     * Collects ISNs in any order. Each chunk is gathered as a bitmap and compacted to an array when built if it is sparse.
+     */
+    public static class Builder {
+        private long[][] chunks = new long[16][];
+
+        public Builder add(int isn) {
+            if (isn < 0) {
+                throw new NaturalException("Invalid ISN " + isn);
+            }
+            int high = isn >>> 16;
+            if (high >= chunks.length) {
+                chunks = Arrays.copyOf(chunks, Math.max(chunks.length * 2, high + 1));
+            }
+            long[] words = chunks[high];
+            if (words == null) {
+                words = chunks[high] = new long[WORDS];
+            }
+            words[(isn & 0xFFFF) >>> 6] |= 1L << isn;
+            return this;
+        }
+
+        public Builder addAll(int[] isns, int length) {
+            for (int i = 0; i < length; i++) {
+                add(isns[i]);
+            }
+            return this;
+        }
+
+        public IsnBitmap build() {
+            Merger merger = new Merger(4);
+            for (int high = 0; high < chunks.length; high++) {
+                if (chunks[high] != null) {
+                    merger.add((char) high, Bits.compact(chunks[high]));
+                }
+            }
+            return merger.build();
+        }
+    }
+
+    // gathers chunks in ascending key order, dropping empty ones
+    private static class Merger {
+        private char[] keys;
+        private Container[] containers;
+        private int size;
+
+        Merger(int capacity) {
+            keys = new char[Math.max(capacity, 4)];
+            containers = new Container[keys.length];
+        }
+
+        void add(char key, Container container) {
+            if (container.cardinality() == 0) {
+                return;
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                containers = Arrays.copyOf(containers, size * 2);
+            }
+            keys[size] = key;
+            containers[size++] = container;
+        }
+
+        IsnBitmap build() {
+            return size == 0 ? EMPTY : new IsnBitmap(Arrays.copyOf(keys, size), Arrays.copyOf(containers, size));
+        }
+    }
+
+    private interface Container {
+        int cardinality();
+
+        boolean contains(char low);
+
+        Container and(Container other);
+
+        Container or(Container other);
+
+        Container andNot(Container other);
+
+        void forEach(IntConsumer action);
+
+        long[] words();
+    }
+
+    // a sparse chunk, the ascending low 16 bits of its ISNs
+    private record Values(char[] lows) implements Container {
+        public int cardinality() {
+            return lows.length;
+        }
+
+        public boolean contains(char low) {
+            return Arrays.binarySearch(lows, low) >= 0;
+        }
+
+        public Container and(Container other) {
+            char[] result = new char[lows.length];
+            int count = 0;
+            for (char low : lows) {
+                if (other.contains(low)) {
+                    result[count++] = low;
+                }
+            }
+            return new Values(Arrays.copyOf(result, count));
+        }
+
+        public Container or(Container other) {
+            if (other instanceof Values values && lows.length + values.lows.length <= ARRAY_MAX) {
+                char[] result = new char[lows.length + values.lows.length];
+                int count = 0;
+                int l = 0;
+                int r = 0;
+                while (l < lows.length || r < values.lows.length) {
+                    if (r == values.lows.length || l < lows.length && lows[l] < values.lows[r]) {
+                        result[count++] = lows[l++];
+                    } else if (l == lows.length || lows[l] > values.lows[r]) {
+                        result[count++] = values.lows[r++];
+                    } else {
+                        result[count++] = lows[l++];
+                        r++;
+                    }
+                }
+                return new Values(Arrays.copyOf(result, count));
+            }
+            long[] words = other.words().clone();
+            for (char low : lows) {
+                words[low >>> 6] |= 1L << low;
+            }
+            return Bits.compact(words);
+        }
+
+        public Container andNot(Container other) {
+            char[] result = new char[lows.length];
+            int count = 0;
+            for (char low : lows) {
+                if (!other.contains(low)) {
+                    result[count++] = low;
+                }
+            }
+            return new Values(Arrays.copyOf(result, count));
+        }
+
+        public void forEach(IntConsumer action) {
+            for (char low : lows) {
+                action.accept(low);
+            }
+        }
+
+        public long[] words() {
+            long[] words = new long[WORDS];
+            for (char low : lows) {
+                words[low >>> 6] |= 1L << low;
+            }
+            return words;
+        }
+    }
+
+    // a dense chunk, one bit per ISN
+    private record Bits(long[] words, int cardinality) implements Container {
+        // the chunk as an array when it holds few enough ISNs
+        static Container compact(long[] words) {
+            int cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+            if (cardinality > ARRAY_MAX) {
+                return new Bits(words, cardinality);
+            }
+            char[] lows = new char[cardinality];
+            int count = 0;
+            for (int w = 0; w < WORDS; w++) {
+                for (long word = words[w]; word != 0; word &= word - 1) {
+                    lows[count++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+                }
+            }
+            return new Values(lows);
+        }
+
+        public boolean contains(char low) {
+            return (words[low >>> 6] & 1L << low) != 0;
+        }
+
+        public Container and(Container other) {
+            if (other instanceof Values) {
+                return other.and(this);
+            }
+            long[] result = new long[WORDS];
+            long[] right = other.words();
+            for (int w = 0; w < WORDS; w++) {
+                result[w] = words[w] & right[w];
+            }
+            return compact(result);
+        }
+
+        public Container or(Container other) {
+            long[] result = words.clone();
+            if (other instanceof Values values) {
+                for (char low : values.lows()) {
+                    result[low >>> 6] |= 1L << low;
+                }
+            } else {
+                long[] right = other.words();
+                for (int w = 0; w < WORDS; w++) {
+                    result[w] |= right[w];
+                }
+            }
+            return compact(result);
+        }
+
+        public Container andNot(Container other) {
+            long[] result = words.clone();
+            if (other instanceof Values values) {
+                for (char low : values.lows()) {
+                    result[low >>> 6] &= ~(1L << low);
+                }
+            } else {
+                long[] right = other.words();
+                for (int w = 0; w < WORDS; w++) {
+                    result[w] &= ~right[w];
+                }
+            }
+            return compact(result);
+        }
+
+        public void forEach(IntConsumer action) {
+            for (int w = 0; w < WORDS; w++) {
+                for (long word = words[w]; word != 0; word &= word - 1) {
+                    action.accept(w << 6 | Long.numberOfTrailingZeros(word));
+                }
+            }
+        }
+    }
+}
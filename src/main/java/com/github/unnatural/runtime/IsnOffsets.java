@@ -0,0 +1,86 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Paged ISN to long table, e.g. the file offset of each record. Zero means no entry.
+ */
+class IsnOffsets {
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private long[][] pages = new long[16][];
+    private int size;
+    private int maxIsn;
+
+    long get(int isn) {
+        int page = isn >>> PAGE_SHIFT;
+        if (isn <= 0 || page >= pages.length || pages[page] == null) {
+            return 0;
+        }
+        return pages[page][isn & PAGE_MASK];
+    }
+
+    void put(int isn, long value) {
+        int page = isn >>> PAGE_SHIFT;
+        if (page >= pages.length) {
+            pages = Arrays.copyOf(pages, Math.max(pages.length * 2, page + 1));
+        }
+        if (pages[page] == null) {
+            pages[page] = new long[PAGE_SIZE];
+        }
+        if (pages[page][isn & PAGE_MASK] == 0) {
+            size++;
+        }
+        pages[page][isn & PAGE_MASK] = value;
+        maxIsn = Math.max(maxIsn, isn);
+    }
+
+    boolean remove(int isn) {
+        if (get(isn) == 0) {
+            return false;
+        }
+        pages[isn >>> PAGE_SHIFT][isn & PAGE_MASK] = 0;
+        size--;
+        return true;
+    }
+
+    int nextIsn(int fromIsn) {
+        for (int isn = Math.max(fromIsn, 1); isn <= maxIsn; isn++) {
+            long[] page = pages[isn >>> PAGE_SHIFT];
+            if (page == null) {
+                isn |= PAGE_MASK;
+            } else if (page[isn & PAGE_MASK] != 0) {
+                return isn;
+            }
+        }
+        return -1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getMaxIsn() {
+        return maxIsn;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dense ISN keyed storage. Records are held in fixed size pages indexed directly by ISN so lookups
+ * need no hashing or boxing. Pages are released once all of their records have been purged and, when
+ * ISN reuse is enabled, purged ISNs are handed out again before the high water mark is advanced.
+ * The table is safe for concurrent use: reads take no locks, writes lock only the page they change.
+ * @param <T> the record type
+ */
+public class IsnTable<T> implements RecordStorage<T> {
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final boolean reuseIsns;
+    // guards installing, releasing and growing pages
+    private final Object pagesLock = new Object();
+
+    private volatile AtomicReferenceArray<Page> pages = new AtomicReferenceArray<>(16);
+
+    private int[] freeIsns = new int[0];
+    private int freeCount;
+
+    private final LongAdder size = new LongAdder();
+    private final AtomicInteger maxIsn = new AtomicInteger();
+
+    public IsnTable() {
+        this(false);
+    }
+
+    public IsnTable(boolean reuseIsns) {
+        this.reuseIsns = reuseIsns;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int isn) {
+        Page page = page(isn);
+        return page == null ? null : (T) page.records.get(isn & PAGE_MASK);
+    }
+
+    @Override
+    public boolean contains(int isn) {
+        return get(isn) != null;
+    }
+
+    @Override
+    public int allocate() {
+        while (reuseIsns) {
+            int isn = popFree();
+            if (isn == 0) {
+                break;
+            }
+            // a purged ISN may have been explicitly put back since it was freed
+            if (!contains(isn)) {
+                return isn;
+            }
+        }
+        return maxIsn.incrementAndGet();
+    }
+
+    // a block of ISNs above the high water mark, purged ISNs are not reused for a batch
+    @Override
+    public int[] allocate(int count) {
+        int first = maxIsn.getAndAdd(count) + 1;
+        int[] isns = new int[count];
+        Arrays.setAll(isns, i -> first + i);
+        return isns;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T put(int isn, T record) {
+        if (isn <= 0) {
+            throw new NaturalException("Invalid ISN " + isn);
+        }
+        if (record == null) {
+            return remove(isn);
+        }
+        while (true) {
+            Page page = ensurePage(isn >>> PAGE_SHIFT);
+            synchronized (page) {
+                // the page may have been released between finding it and locking it
+                if (page.released) {
+                    continue;
+                }
+                T previous = (T) page.records.getAndSet(isn & PAGE_MASK, record);
+                if (previous == null) {
+                    page.count++;
+                    size.increment();
+                }
+                maxIsn.accumulateAndGet(isn, Math::max);
+                return previous;
+            }
+        }
+    }
+
+    @Override
+    public void store(int isn, T record) {
+        put(isn, record);
+    }
+
+    @Override
+    public boolean replace(int isn, T record) {
+        Page page = page(isn);
+        if (record == null || page == null) {
+            return false;
+        }
+        synchronized (page) {
+            if (page.released || page.records.get(isn & PAGE_MASK) == null) {
+                return false;
+            }
+            page.records.set(isn & PAGE_MASK, record);
+            return true;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T remove(int isn) {
+        Page page = page(isn);
+        if (page == null) {
+            return null;
+        }
+        T previous;
+        synchronized (page) {
+            previous = (T) page.records.getAndSet(isn & PAGE_MASK, null);
+            if (previous == null) {
+                return null;
+            }
+            size.decrement();
+            if (--page.count == 0) {
+                releasePage(isn >>> PAGE_SHIFT, page);
+            }
+        }
+        if (reuseIsns) {
+            pushFree(isn);
+        }
+        return previous;
+    }
+
+    @Override
+    public boolean delete(int isn) {
+        return remove(isn) != null;
+    }
+
+    @Override
+    public int nextIsn(int fromIsn) {
+        int isn = Math.max(fromIsn, 1);
+        int max = maxIsn.get();
+        while (isn <= max) {
+            Page page = page(isn);
+            if (page != null) {
+                for (int slot = isn & PAGE_MASK; slot < PAGE_SIZE; slot++) {
+                    if (page.records.get(slot) != null) {
+                        return (isn & ~PAGE_MASK) | slot;
+                    }
+                }
+            }
+            isn = ((isn >>> PAGE_SHIFT) + 1) << PAGE_SHIFT;
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return size.intValue();
+    }
+
+    @Override
+    public int getMaxIsn() {
+        return maxIsn.get();
+    }
+
+    // not atomic with respect to concurrent writes
+    public void clear() {
+        synchronized (pagesLock) {
+            pages = new AtomicReferenceArray<>(16);
+        }
+        synchronized (this) {
+            freeCount = 0;
+        }
+        size.reset();
+        maxIsn.set(0);
+    }
+
+    private Page page(int isn) {
+        AtomicReferenceArray<Page> current = pages;
+        int page = isn >>> PAGE_SHIFT;
+        return isn <= 0 || page >= current.length() ? null : current.get(page);
+    }
+
+    private Page ensurePage(int index) {
+        Page page = page(index << PAGE_SHIFT | 1);
+        if (page != null) {
+            return page;
+        }
+        synchronized (pagesLock) {
+            AtomicReferenceArray<Page> current = pages;
+            if (index >= current.length()) {
+                AtomicReferenceArray<Page> larger = new AtomicReferenceArray<>(Math.max(current.length() * 2, index + 1));
+                for (int copy = 0; copy < current.length(); copy++) {
+                    larger.set(copy, current.get(copy));
+                }
+                pages = current = larger;
+            }
+            page = current.get(index);
+            if (page == null) {
+                page = new Page();
+                current.set(index, page);
+            }
+            return page;
+        }
+    }
+
+    // called holding the page's lock once its last record has gone
+    private void releasePage(int index, Page page) {
+        page.released = true;
+        synchronized (pagesLock) {
+            pages.compareAndSet(index, page, null);
+        }
+    }
+
+    private synchronized void pushFree(int isn) {
+        if (freeCount == freeIsns.length) {
+            freeIsns = Arrays.copyOf(freeIsns, Math.max(16, freeCount * 2));
+        }
+        freeIsns[freeCount++] = isn;
+    }
+
+    // a freed ISN or 0 if there are none
+    private synchronized int popFree() {
+        return freeCount == 0 ? 0 : freeIsns[--freeCount];
+    }
+
+    private static class Page {
+        private final AtomicReferenceArray<Object> records = new AtomicReferenceArray<>(PAGE_SIZE);
+        // guarded by the page's lock
+        private int count;
+        private boolean released;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Record storage in a memory mapped, append only segment file.
+ * Every store, update and delete appends an entry and moves the record's ISN to point at it, reads decode
+ * straight from the mapping. On close the ISN to offset table is written alongside the segment so a restart
+ * only has to load that table; if it is missing or stale the segment's entry headers are scanned instead.
+ * Access is serialised, concurrent sessions take turns at the file.
+ * @param <T> the record type
+ */
+@Slf4j
+public class MappedRecordStorage<T> implements RecordStorage<T> {
+    private static final int MAGIC = 0x554E5347;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final long CHUNK_SIZE = 64L << 20;
+    // entry is length, isn, kind then the encoded record
+    private static final int ENTRY_HEADER = 9;
+    private static final int SKIP_TO_NEXT_CHUNK = -1;
+    private static final byte END = 0;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final long CHECKPOINT_MAGIC = 0x554E534749534E31L;
+
+    private final Path path;
+    private final Path checkpointPath;
+    private final RecordLayout<T> layout;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private final IsnOffsets offsets = new IsnOffsets();
+
+    private long writePosition = HEADER_SIZE;
+    private int maxIsn;
+
+    public MappedRecordStorage(Path path, Class<T> recordClass) {
+        this.path = path;
+        this.checkpointPath = path.resolveSibling(path.getFileName() + ".isn");
+        this.layout = RecordLayout.of(recordClass);
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() == 0) {
+                writeHeader();
+            } else {
+                checkHeader();
+                if (!loadCheckpoint()) {
+                    scan();
+                }
+            }
+        } catch (IOException e) {
+            throw new NaturalException("Unable to open segment file " + path + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized T get(int isn) {
+        long position = offsets.get(isn);
+        if (position == 0) {
+            return null;
+        }
+        ByteBuffer entry = entryAt(position);
+        int length = entry.getInt();
+        entry.position(entry.position() + 5);
+        entry.limit(entry.position() + length);
+        return layout.decode(entry);
+    }
+
+    @Override
+    public synchronized boolean contains(int isn) {
+        return offsets.get(isn) != 0;
+    }
+
+    @Override
+    public synchronized int allocate() {
+        return ++maxIsn;
+    }
+
+    @Override
+    public synchronized int[] allocate(int count) {
+        int[] isns = new int[count];
+        Arrays.setAll(isns, i -> maxIsn + 1 + i);
+        maxIsn += count;
+        return isns;
+    }
+
+    @Override
+    public synchronized void store(int isn, T record) {
+        offsets.put(isn, append(isn, PUT, layout.encode(record)));
+        maxIsn = Math.max(maxIsn, isn);
+    }
+
+    @Override
+    public synchronized boolean replace(int isn, T record) {
+        if (!contains(isn)) {
+            return false;
+        }
+        store(isn, record);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean delete(int isn) {
+        if (!contains(isn)) {
+            return false;
+        }
+        append(isn, DELETE, new byte[0]);
+        return offsets.remove(isn);
+    }
+
+    @Override
+    public synchronized int nextIsn(int fromIsn) {
+        return offsets.nextIsn(fromIsn);
+    }
+
+    @Override
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    @Override
+    public synchronized int getMaxIsn() {
+        return maxIsn;
+    }
+
+    /*
+    Flush appended entries to the file
+     */
+    public synchronized void force() {
+        chunks.forEach(MappedByteBuffer::force);
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            force();
+            writeCheckpoint();
+            channel.close();
+        } catch (IOException e) {
+            throw new NaturalException("Unable to close segment file " + path + ": " + e.getMessage());
+        }
+    }
+
+    private long append(int isn, byte kind, byte[] payload) {
+        int entryLength = ENTRY_HEADER + payload.length;
+        if (entryLength > CHUNK_SIZE - HEADER_SIZE) {
+            throw new NaturalException("Record with ISN " + isn + " too large for segment file: " + payload.length);
+        }
+        long position = startOfEntry(writePosition, entryLength);
+        ByteBuffer entry = entryAt(position);
+        int start = entry.position();
+        entry.putInt(payload.length).putInt(isn).put(END).put(payload);
+        // the kind is written last so a partially written entry reads as the end of the segment
+        entry.put(start + 8, kind);
+        writePosition = position + entryLength;
+        return position;
+    }
+
+    // where an entry of the given length can start, entries never span chunks
+    private long startOfEntry(long position, int entryLength) {
+        long chunkEnd = (position / CHUNK_SIZE + 1) * CHUNK_SIZE;
+        if (position + entryLength <= chunkEnd) {
+            return position;
+        }
+        if (chunkEnd - position >= Integer.BYTES) {
+            entryAt(position).putInt(SKIP_TO_NEXT_CHUNK);
+        }
+        return chunkEnd;
+    }
+
+    private ByteBuffer entryAt(long position) {
+        int chunk = (int) (position / CHUNK_SIZE);
+        while (chunks.size() <= chunk) {
+            try {
+                chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, chunks.size() * CHUNK_SIZE, CHUNK_SIZE));
+            } catch (IOException e) {
+                throw new NaturalException("Unable to map segment file " + path + ": " + e.getMessage());
+            }
+        }
+        return chunks.get(chunk).duplicate().position((int) (position % CHUNK_SIZE));
+    }
+
+    private void writeHeader() {
+        ByteBuffer header = entryAt(0);
+        header.putInt(MAGIC).putInt(VERSION).putLong(signatureHash());
+    }
+
+    private void checkHeader() {
+        ByteBuffer header = entryAt(0);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new NaturalException(path + " is not a segment file");
+        }
+        if (header.getLong() != signatureHash()) {
+            throw new NaturalException(path + " was written with a different layout to " + layout.getSignature());
+        }
+    }
+
+    // rebuild the ISN to offset table from the entry headers
+    private void scan() throws IOException {
+        long position = HEADER_SIZE;
+        while (true) {
+            position = nextEntry(position);
+            if (position < 0) {
+                break;
+            }
+            ByteBuffer entry = entryAt(position);
+            int length = entry.getInt();
+            int isn = entry.getInt();
+            byte kind = entry.get();
+            if (kind == PUT) {
+                offsets.put(isn, position);
+            } else {
+                offsets.remove(isn);
+            }
+            maxIsn = Math.max(maxIsn, isn);
+            position += ENTRY_HEADER + length;
+        }
+        log.info("Scanned segment file {} - {} records", path, offsets.size());
+    }
+
+    // the position of the entry at or after position, or -1 at the end of the segment
+    private long nextEntry(long position) throws IOException {
+        while (position < channel.size()) {
+            long chunkEnd = (position / CHUNK_SIZE + 1) * CHUNK_SIZE;
+            if (chunkEnd - position < ENTRY_HEADER) {
+                position = chunkEnd;
+                continue;
+            }
+            ByteBuffer entry = entryAt(position);
+            if (entry.getInt() == SKIP_TO_NEXT_CHUNK) {
+                position = chunkEnd;
+                continue;
+            }
+            writePosition = position;
+            entry.getInt();
+            return entry.get() == END ? -1 : position;
+        }
+        writePosition = position;
+        return -1;
+    }
+
+    private void writeCheckpoint() throws IOException {
+        ByteBuffer table = ByteBuffer.allocate(24 + offsets.size() * 12);
+        table.putLong(CHECKPOINT_MAGIC).putLong(writePosition).putInt(maxIsn).putInt(offsets.size());
+        for (int isn = offsets.nextIsn(1); isn > 0; isn = offsets.nextIsn(isn + 1)) {
+            table.putInt(isn).putLong(offsets.get(isn));
+        }
+        table.flip();
+        try (FileChannel out = FileChannel.open(checkpointPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (table.hasRemaining()) {
+                out.write(table);
+            }
+        }
+    }
+
+    // the checkpoint is only used when nothing has been appended after it was written
+    private boolean loadCheckpoint() throws IOException {
+        if (!Files.exists(checkpointPath)) {
+            return false;
+        }
+        try (FileChannel in = FileChannel.open(checkpointPath, StandardOpenOption.READ)) {
+            ByteBuffer table = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (table.remaining() < 24 || table.getLong() != CHECKPOINT_MAGIC) {
+                return false;
+            }
+            long checkpointPosition = table.getLong();
+            if (nextEntry(checkpointPosition) != -1 || table.remaining() < 8) {
+                return false;
+            }
+            int checkpointMaxIsn = table.getInt();
+            int count = table.getInt();
+            if (table.remaining() != count * 12L) {
+                return false;
+            }
+            for (int entry = 0; entry < count; entry++) {
+                offsets.put(table.getInt(), table.getLong());
+            }
+            maxIsn = checkpointMaxIsn;
+            writePosition = checkpointPosition;
+            return true;
+        }
+    }
+
+    private long signatureHash() {
+        long hash = 1125899906842597L;
+        for (byte b : layout.getSignature().getBytes(StandardCharsets.UTF_8)) {
+            hash = 31 * hash + b;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Record storage outside the java heap. Each record is encoded with the fixed {@link RecordLayout} of its class
+ * into direct memory chunks, only the ISN to position table stays on the heap, so large resident files add
+ * almost nothing for the garbage collector to trace. Reads decode a new record each time.
+ * Changes append the new encoding and leave the old one dead, a chunk that is mostly dead has its live records
+ * moved to the chunk being written and is then reused.
+ * Access is serialised.
+ * @param <T> the record type
+ */
+public class OffHeapRecordStorage<T> implements RecordStorage<T> {
+    private static final int DEFAULT_CHUNK_SIZE = 16 << 20;
+    // entry is payload length, isn then the encoded record
+    private static final int ENTRY_HEADER = 8;
+
+    private final RecordLayout<T> layout;
+    private final int chunkSize;
+    // by chunk number, null once released
+    private final List<Chunk> chunks = new ArrayList<>();
+    private final Deque<ByteBuffer> spare = new ArrayDeque<>();
+    private final IsnOffsets positions = new IsnOffsets();
+
+    private Chunk writing;
+    private int maxIsn;
+
+    public OffHeapRecordStorage(Class<T> recordClass) {
+        this(recordClass, DEFAULT_CHUNK_SIZE);
+    }
+
+    public OffHeapRecordStorage(Class<T> recordClass, int chunkSize) {
+        this.layout = RecordLayout.of(recordClass);
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public synchronized T get(int isn) {
+        long position = positions.get(isn);
+        if (position == 0) {
+            return null;
+        }
+        ByteBuffer entry = entryAt(position);
+        int length = entry.getInt();
+        entry.position(entry.position() + Integer.BYTES);
+        entry.limit(entry.position() + length);
+        return layout.decode(entry);
+    }
+
+    @Override
+    public synchronized boolean contains(int isn) {
+        return positions.get(isn) != 0;
+    }
+
+    @Override
+    public synchronized int allocate() {
+        return ++maxIsn;
+    }
+
+    @Override
+    public synchronized int[] allocate(int count) {
+        int[] isns = new int[count];
+        Arrays.setAll(isns, i -> maxIsn + 1 + i);
+        maxIsn += count;
+        return isns;
+    }
+
+    @Override
+    public synchronized void store(int isn, T record) {
+        if (isn <= 0) {
+            throw new NaturalException("Invalid ISN " + isn);
+        }
+        long previous = positions.get(isn);
+        positions.put(isn, append(isn, layout.encode(record)));
+        maxIsn = Math.max(maxIsn, isn);
+        if (previous != 0) {
+            release(previous);
+        }
+    }
+
+    @Override
+    public synchronized boolean replace(int isn, T record) {
+        if (!contains(isn)) {
+            return false;
+        }
+        store(isn, record);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean delete(int isn) {
+        long previous = positions.get(isn);
+        if (previous == 0) {
+            return false;
+        }
+        positions.remove(isn);
+        release(previous);
+        return true;
+    }
+
+    @Override
+    public synchronized int nextIsn(int fromIsn) {
+        return positions.nextIsn(fromIsn);
+    }
+
+    @Override
+    public synchronized int size() {
+        return positions.size();
+    }
+
+    @Override
+    public synchronized int getMaxIsn() {
+        return maxIsn;
+    }
+
+    // the direct memory held, including chunks kept for reuse
+    public synchronized long getOffHeapBytes() {
+        return (long) chunkSize * (chunks.stream().filter(chunk -> chunk != null).count() + spare.size());
+    }
+
+    @Override
+    public synchronized void close() {
+        chunks.clear();
+        spare.clear();
+        writing = null;
+    }
+
+    private long append(int isn, byte[] payload) {
+        int entryLength = ENTRY_HEADER + payload.length;
+        if (entryLength > chunkSize) {
+            throw new NaturalException("Record with ISN " + isn + " too large for an off heap chunk: " + payload.length);
+        }
+        if (writing == null || writing.used + entryLength > chunkSize) {
+            writing = newChunk();
+        }
+        int offset = writing.used;
+        writing.buffer.duplicate().position(offset).putInt(payload.length).putInt(isn).put(payload);
+        writing.used += entryLength;
+        writing.live += entryLength;
+        return position(writing.number, offset);
+    }
+
+    // the entry at the position is no longer current
+    private void release(long position) {
+        Chunk chunk = chunks.get(chunkOf(position));
+        chunk.live -= ENTRY_HEADER + entryAt(position).getInt();
+        if (chunk != writing && chunk.live * 4 <= chunk.used) {
+            compact(chunk);
+        }
+    }
+
+    // move the live entries of a mostly dead chunk to the chunk being written and reuse its memory
+    private void compact(Chunk chunk) {
+        ByteBuffer entries = chunk.buffer.duplicate();
+        for (int offset = 0; offset < chunk.used; ) {
+            entries.position(offset);
+            int length = entries.getInt();
+            int isn = entries.getInt();
+            if (positions.get(isn) == position(chunk.number, offset)) {
+                byte[] payload = new byte[length];
+                entries.get(payload);
+                positions.put(isn, append(isn, payload));
+            }
+            offset += ENTRY_HEADER + length;
+        }
+        chunks.set(chunk.number, null);
+        spare.push(chunk.buffer);
+    }
+
+    private Chunk newChunk() {
+        ByteBuffer buffer = spare.isEmpty() ? ByteBuffer.allocateDirect(chunkSize) : spare.pop();
+        int number = chunks.indexOf(null);
+        if (number < 0) {
+            number = chunks.size();
+            chunks.add(null);
+        }
+        Chunk chunk = new Chunk(number, buffer);
+        chunks.set(number, chunk);
+        return chunk;
+    }
+
+    private ByteBuffer entryAt(long position) {
+        return chunks.get(chunkOf(position)).buffer.duplicate().position((int) (position - 1));
+    }
+
+    // chunk number and offset, offset by one so that no entry is at position zero
+    private static long position(int chunk, int offset) {
+        return ((long) chunk << 32 | offset) + 1;
+    }
+
+    private static int chunkOf(long position) {
+        return (int) ((position - 1) >>> 32);
+    }
+
+    private static class Chunk {
+        private final int number;
+        private final ByteBuffer buffer;
+        // bytes appended and bytes of entries still current
+        private int used;
+        private int live;
+
+        Chunk(int number, ByteBuffer buffer) {
+            this.number = number;
+            this.buffer = buffer;
+        }
+    }
+}
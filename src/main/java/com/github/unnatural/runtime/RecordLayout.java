@@ -0,0 +1,377 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Fixed binary layout for the fields of a record class, used to hold records outside the java heap.
+ * Fields are written in declaration order (superclass fields first) with no names or type tags,
+ * the layout signature identifies the field list so stored data can be checked against the class.
+ * Classes with a field of a type the layout cannot hold are rejected.
+ * @param <T> the record type
+ */
+public class RecordLayout<T> {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final ClassValue<RecordLayout<?>> LAYOUTS = new ClassValue<>() {
+        @Override
+        protected RecordLayout<?> computeValue(Class<?> type) {
+            return new RecordLayout<>(type);
+        }
+    };
+
+    private final Class<T> recordClass;
+    private final List<Slot> slots = new ArrayList<>();
+    private final String signature;
+
+    private RecordLayout(Class<T> recordClass) {
+        this.recordClass = recordClass;
+        List<Class<?>> hierarchy = new ArrayList<>();
+        for (Class<?> clazz = recordClass; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            hierarchy.add(0, clazz);
+        }
+        for (Class<?> clazz : hierarchy) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) {
+                    continue;
+                }
+                // a field the layout cannot hold would be lost by every store and snapshot built on it
+                FieldType type = FieldType.of(field.getType());
+                if (type == null) {
+                    throw new NaturalException("Unable to store " + field.getName() + " on class " + recordClass.getName()
+                            + " - unsupported type: " + field.getType().getName());
+                }
+                try {
+                    field.setAccessible(true);
+                    slots.add(new Slot(field.getName(), type, LOOKUP.unreflectGetter(field).asType(GETTER),
+                            LOOKUP.unreflectSetter(field).asType(SETTER)));
+                } catch (IllegalAccessException | RuntimeException e) {
+                    throw new NaturalException("Unable to store " + field.getName() + " on class " + recordClass.getName()
+                            + " - " + e.getMessage());
+                }
+            }
+        }
+        this.signature = slots.stream().map(s -> s.name() + ":" + s.type()).collect(Collectors.joining(";"));
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> RecordLayout<T> of(Class<T> recordClass) {
+        return (RecordLayout<T>) LAYOUTS.get(recordClass);
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    public byte[] encode(T record) {
+        return encode(record, null);
+    }
+
+    /*
+    Encode a record with its strings replaced by their index in the string table
+     */
+    public byte[] encode(T record, Strings strings) {
+        Writer writer = new Writer();
+        try {
+            for (Slot slot : slots) {
+                slot.type().write(writer, (Object) slot.getter().invokeExact((Object) record), strings);
+            }
+        } catch (Throwable e) {
+            throw new NaturalException("Unable to encode " + recordClass.getName() + ": " + e.getMessage());
+        }
+        return writer.toByteArray();
+    }
+
+    /*
+    Read a record from the current position of the buffer, leaving the buffer positioned after it
+     */
+    public T decode(ByteBuffer buffer) {
+        return decode(buffer, null);
+    }
+
+    public T decode(ByteBuffer buffer, Strings strings) {
+        T record = FieldCopier.newInstance(recordClass);
+        try {
+            for (Slot slot : slots) {
+                slot.setter().invokeExact((Object) record, slot.type().read(buffer, strings));
+            }
+        } catch (Throwable e) {
+            throw new NaturalException("Unable to decode " + recordClass.getName() + ": " + e.getMessage());
+        }
+        return record;
+    }
+
+    private record Slot(String name, FieldType type, MethodHandle getter, MethodHandle setter) {
+    }
+
+    /**
+     * The distinct strings of a set of encoded records. Each value is stored once and records refer
+     * to it by index, decoded records share the same String instances.
+     */
+    public static class Strings {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        public int indexOf(String value) {
+            return indexes.computeIfAbsent(value, v -> {
+                values.add(v);
+                return values.size() - 1;
+            });
+        }
+
+        public String get(int index) {
+            return values.get(index);
+        }
+
+        public int size() {
+            return values.size();
+        }
+    }
+
+    enum FieldType {
+        INT, LONG, BOOLEAN, STRING, BIG_DECIMAL, LOCAL_DATE, LOCAL_DATE_TIME,
+        INT_ARRAY, STRING_ARRAY, BIG_DECIMAL_ARRAY, LOCAL_DATE_ARRAY, LOCAL_DATE_TIME_ARRAY;
+
+        static FieldType of(Class<?> type) {
+            if (type == int.class) return INT;
+            if (type == long.class) return LONG;
+            if (type == boolean.class) return BOOLEAN;
+            if (type == String.class) return STRING;
+            if (type == BigDecimal.class) return BIG_DECIMAL;
+            if (type == LocalDate.class) return LOCAL_DATE;
+            if (type == LocalDateTime.class) return LOCAL_DATE_TIME;
+            if (type == int[].class) return INT_ARRAY;
+            if (type == String[].class) return STRING_ARRAY;
+            if (type == BigDecimal[].class) return BIG_DECIMAL_ARRAY;
+            if (type == LocalDate[].class) return LOCAL_DATE_ARRAY;
+            if (type == LocalDateTime[].class) return LOCAL_DATE_TIME_ARRAY;
+            return null;
+        }
+
+        void write(Writer out, Object value, Strings strings) {
+            switch (this) {
+                case INT -> out.putInt((Integer) value);
+                case LONG -> out.putLong((Long) value);
+                case BOOLEAN -> out.put((byte) ((Boolean) value ? 1 : 0));
+                case STRING -> writeString(out, (String) value, strings);
+                case BIG_DECIMAL -> writeBigDecimal(out, (BigDecimal) value);
+                case LOCAL_DATE -> writeDate(out, (LocalDate) value);
+                case LOCAL_DATE_TIME -> writeDateTime(out, (LocalDateTime) value);
+                case INT_ARRAY -> {
+                    int[] array = (int[]) value;
+                    out.putInt(array == null ? -1 : array.length);
+                    if (array != null) {
+                        for (int element : array) {
+                            out.putInt(element);
+                        }
+                    }
+                }
+                default -> {
+                    Object[] array = (Object[]) value;
+                    out.putInt(array == null ? -1 : array.length);
+                    if (array != null) {
+                        FieldType elementType = elementType();
+                        for (Object element : array) {
+                            elementType.write(out, element, strings);
+                        }
+                    }
+                }
+            }
+        }
+
+        Object read(ByteBuffer in, Strings strings) {
+            return switch (this) {
+                case INT -> in.getInt();
+                case LONG -> in.getLong();
+                case BOOLEAN -> in.get() != 0;
+                case STRING -> readString(in, strings);
+                case BIG_DECIMAL -> readBigDecimal(in);
+                case LOCAL_DATE -> readDate(in);
+                case LOCAL_DATE_TIME -> readDateTime(in);
+                case INT_ARRAY -> {
+                    int length = in.getInt();
+                    if (length < 0) {
+                        yield null;
+                    }
+                    int[] array = new int[length];
+                    for (int index = 0; index < length; index++) {
+                        array[index] = in.getInt();
+                    }
+                    yield array;
+                }
+                default -> {
+                    int length = in.getInt();
+                    if (length < 0) {
+                        yield null;
+                    }
+                    FieldType elementType = elementType();
+                    Object[] array = newArray(length);
+                    for (int index = 0; index < length; index++) {
+                        array[index] = elementType.read(in, strings);
+                    }
+                    yield array;
+                }
+            };
+        }
+
+        private FieldType elementType() {
+            return switch (this) {
+                case STRING_ARRAY -> STRING;
+                case BIG_DECIMAL_ARRAY -> BIG_DECIMAL;
+                case LOCAL_DATE_ARRAY -> LOCAL_DATE;
+                case LOCAL_DATE_TIME_ARRAY -> LOCAL_DATE_TIME;
+                default -> throw new NaturalException("Not an array type " + this);
+            };
+        }
+
+        private Object[] newArray(int length) {
+            return switch (this) {
+                case STRING_ARRAY -> new String[length];
+                case BIG_DECIMAL_ARRAY -> new BigDecimal[length];
+                case LOCAL_DATE_ARRAY -> new LocalDate[length];
+                default -> new LocalDateTime[length];
+            };
+        }
+
+        private static void writeString(Writer out, String value, Strings strings) {
+            if (value == null) {
+                out.putInt(-1);
+            } else if (strings != null) {
+                out.putInt(strings.indexOf(value));
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.putInt(bytes.length);
+                out.put(bytes);
+            }
+        }
+
+        private static String readString(ByteBuffer in, Strings strings) {
+            int length = in.getInt();
+            if (length < 0) {
+                return null;
+            }
+            if (strings != null) {
+                return strings.get(length);
+            }
+            if (in.hasArray()) {
+                String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+                return value;
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static void writeBigDecimal(Writer out, BigDecimal value) {
+            if (value == null) {
+                out.putInt(-1);
+            } else {
+                byte[] unscaled = value.unscaledValue().toByteArray();
+                out.putInt(unscaled.length);
+                out.put(unscaled);
+                out.putInt(value.scale());
+            }
+        }
+
+        private static BigDecimal readBigDecimal(ByteBuffer in) {
+            int length = in.getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] unscaled = new byte[length];
+            in.get(unscaled);
+            return new BigDecimal(new BigInteger(unscaled), in.getInt());
+        }
+
+        private static void writeDate(Writer out, LocalDate value) {
+            out.putLong(value == null ? Long.MIN_VALUE : value.toEpochDay());
+        }
+
+        private static LocalDate readDate(ByteBuffer in) {
+            long epochDay = in.getLong();
+            return epochDay == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(epochDay);
+        }
+
+        private static void writeDateTime(Writer out, LocalDateTime value) {
+            out.putLong(value == null ? Long.MIN_VALUE : value.toEpochSecond(ZoneOffset.UTC));
+            out.putInt(value == null ? 0 : value.getNano());
+        }
+
+        private static LocalDateTime readDateTime(ByteBuffer in) {
+            long epochSecond = in.getLong();
+            int nanos = in.getInt();
+            return epochSecond == Long.MIN_VALUE ? null : LocalDateTime.ofEpochSecond(epochSecond, nanos, ZoneOffset.UTC);
+        }
+    }
+
+    // Growable big endian byte buffer
+    static class Writer {
+        private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        void putInt(int value) {
+            ensure(Integer.BYTES).putInt(value);
+        }
+
+        void putLong(long value) {
+            ensure(Long.BYTES).putLong(value);
+        }
+
+        void put(byte value) {
+            ensure(1).put(value);
+        }
+
+        void put(byte[] value) {
+            ensure(value.length).put(value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+
+        private ByteBuffer ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            return buffer;
+        }
+    }
+}
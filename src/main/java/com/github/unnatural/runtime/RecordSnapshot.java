@@ -0,0 +1,183 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Binary snapshot of a set of records, written and read through {@link RecordLayout}.
+ * The file is a versioned header carrying the layout signature, the encoded records and finally a table of
+ * the distinct strings they refer to. A snapshot is written to a temporary file and moved into place so an
+ * interrupted save leaves the previous snapshot intact.
+ */
+@Slf4j
+public final class RecordSnapshot {
+    private static final int MAGIC = 0x554E5353;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private RecordSnapshot() {
+    }
+
+    public static <T> int save(Path path, Class<T> recordClass, Iterator<T> records) {
+        RecordLayout<T> layout = RecordLayout.of(recordClass);
+        RecordLayout.Strings strings = new RecordLayout.Strings();
+        byte[] signature = layout.getSignature().getBytes(StandardCharsets.UTF_8);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        int count = 0;
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            // the string table offset and record count are filled in once the records are written
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(0).putInt(0).putInt(signature.length).put(signature);
+            while (records.hasNext()) {
+                write(out, buffer, layout.encode(records.next(), strings));
+                count++;
+            }
+            long stringTable = out.position() + buffer.position();
+            buffer = ensure(out, buffer, Integer.BYTES).putInt(strings.size());
+            for (int index = 0; index < strings.size(); index++) {
+                write(out, buffer, strings.get(index).getBytes(StandardCharsets.UTF_8));
+            }
+            flush(out, buffer);
+            out.write(ByteBuffer.allocate(12).putLong(stringTable).putInt(count).flip(), 8);
+            out.force(false);
+        } catch (IOException e) {
+            throw new NaturalException("Unable to save snapshot " + path + ": " + e.getMessage());
+        }
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new NaturalException("Unable to save snapshot " + path + ": " + e.getMessage());
+        }
+        log.info("Saved {} {} records to {}", count, recordClass.getSimpleName(), path);
+        return count;
+    }
+
+    /*
+    Decode every record in the snapshot, in the order they were saved, returning the number read
+     */
+    public static <T> int load(Path path, Class<T> recordClass, Consumer<T> sink) {
+        RecordLayout<T> layout = RecordLayout.of(recordClass);
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            Reader reader = new Reader(in);
+            ByteBuffer header = reader.at(0, 24);
+            if (header.getInt() != MAGIC) {
+                throw new NaturalException(path + " is not a snapshot");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new NaturalException(path + " is snapshot version " + version + ", expected " + VERSION);
+            }
+            long stringTable = header.getLong();
+            int count = header.getInt();
+            byte[] signature = reader.bytes(24, header.getInt());
+            if (!layout.getSignature().equals(new String(signature, StandardCharsets.UTF_8))) {
+                throw new NaturalException(path + " was written with a different layout to " + layout.getSignature());
+            }
+            RecordLayout.Strings strings = new RecordLayout.Strings();
+            long position = stringTable + Integer.BYTES;
+            for (int index = reader.at(stringTable, Integer.BYTES).getInt(); index > 0; index--) {
+                byte[] value = reader.bytes(position + Integer.BYTES, reader.at(position, Integer.BYTES).getInt());
+                strings.indexOf(new String(value, StandardCharsets.UTF_8));
+                position += Integer.BYTES + value.length;
+            }
+            position = 24L + signature.length;
+            for (int index = 0; index < count; index++) {
+                int length = reader.at(position, Integer.BYTES).getInt();
+                ByteBuffer record = reader.at(position + Integer.BYTES, length);
+                sink.accept(layout.decode(record, strings));
+                position += Integer.BYTES + length;
+            }
+            return count;
+        } catch (IOException e) {
+            throw new NaturalException("Unable to load snapshot " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer, byte[] value) throws IOException {
+        ensure(out, buffer, Integer.BYTES).putInt(value.length);
+        if (value.length > buffer.capacity()) {
+            flush(out, buffer);
+            ByteBuffer large = ByteBuffer.wrap(value);
+            while (large.hasRemaining()) {
+                out.write(large);
+            }
+        } else {
+            ensure(out, buffer, value.length).put(value);
+        }
+    }
+
+    private static ByteBuffer ensure(FileChannel out, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(out, buffer);
+        }
+        return buffer;
+    }
+
+    private static void flush(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Read only mapping of the file, remapped a window at a time
+    private static class Reader {
+        private final FileChannel channel;
+        private ByteBuffer window = ByteBuffer.allocate(0);
+        private long windowStart;
+
+        Reader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // a buffer holding length bytes from position
+        ByteBuffer at(long position, int length) throws IOException {
+            if (position < windowStart || position + length > windowStart + window.capacity()) {
+                if (position + length > channel.size()) {
+                    throw new IOException("Snapshot is truncated");
+                }
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(channel.size() - position, Math.max(WINDOW_SIZE, length)));
+            }
+            return window.duplicate().position((int) (position - windowStart)).limit((int) (position - windowStart) + length);
+        }
+
+        byte[] bytes(long position, int length) throws IOException {
+            byte[] bytes = new byte[length];
+            at(position, length).get(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+/**
+ * ISN keyed record storage behind an {@link AdabasStore}
+ * @param <T> the record type
+ */
+public interface RecordStorage<T> {
+    T get(int isn);
+
+    boolean contains(int isn);
+
+    // Hand out the next ISN for a new record, the caller is expected to store a record against it
+    int allocate();
+
+    // Hand out ISNs for a batch of new records
+    default int[] allocate(int count) {
+        int[] isns = new int[count];
+        for (int i = 0; i < count; i++) {
+            isns[i] = allocate();
+        }
+        return isns;
+    }
+
+    void store(int isn, T record);
+
+    // Replace an existing record, returns false without storing anything if the ISN is not in use
+    boolean replace(int isn, T record);
+
+    boolean delete(int isn);
+
+    // The lowest ISN in use that is >= fromIsn or -1 when there are no more records
+    int nextIsn(int fromIsn);
+
+    int size();
+
+    // The highest ISN handed out or stored, no record has a higher ISN
+    int getMaxIsn();
+
+    default void close() {
+    }
+}
@@ -18,17 +18,127 @@ OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
 
 package com.github.unnatural.runtime;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 public interface Repository {
     <E extends AdabasRecord> List<E> readBy(String viewName, Class<E> viewClazz, String where, Object... params);
     <E extends AdabasRecord> List<E> readByWithCount(String viewName, Class<E> viewClazz, String where, int count, Object... params);
 
+    /*
+    Matching records are found and adapted to the view one at a time as the stream is consumed,
+    so a loop that escapes early or a limit only pays for the records it reads. Repositories that do not
+    stream their reads return the stream of readBy.
+     */
+    default <E extends AdabasRecord> Stream<E> readByStream(String viewName, Class<E> viewClazz, String where, Object... params) {
+        return readBy(viewName, viewClazz, where, params).stream();
+    }
+
+    /*
+    A page of the matching records in ISN order and the continuation token to read the next page with. Pages hold
+    no resources between reads, so a long READ loop can end its transaction between pages and carry on.
+    Each page starts reading at the position of the token, repositories that cannot do so do not support it.
+     */
+    default <E extends AdabasRecord> ResultPage<E> readPage(String viewName, Class<E> viewClazz, String where, int pageSize,
+                                                            String continuation, Object... params) {
+        throw new NaturalException("Paged reads are not supported by " + getClass().getName());
+    }
+
+    /*
+    FIND ... RETAIN AS setName, optionally starting from a set retained before: keep the ISNs of the matching
+    records as an immutable set of the session and return their number. Sets are released at END TRANSACTION.
+    By default the set is built from the records readByStream returns, or refined from the records of fromSet
+    read as readRetained reads them.
+     */
+    default <E extends AdabasRecord> int retain(String viewName, Class<E> viewClazz, String setName, String fromSet,
+                                                String where, Object... params) {
+        Stream<E> matching = fromSet == null ? readByStream(viewName, viewClazz, where, params)
+                : readRetained(viewName, viewClazz, fromSet, where, params);
+        IsnBitmap isns = IsnBitmap.of(matching.mapToInt(AdabasRecord::getIsn).toArray());
+        RetainedSets.retain(setName, this, isns);
+        return isns.cardinality();
+    }
+
+    /*
+    FIND WITH setName AND where, reading only the records of the retained set. A null where matches every record of the set.
+    By default each record of the set is read with getByISN.
+     */
+    default <E extends AdabasRecord> Stream<E> readRetained(String viewName, Class<E> viewClazz, String setName,
+                                                            String where, Object... params) {
+        IsnBitmap retained = RetainedSets.get(setName, this);
+        Predicate<E> query = where == null ? record -> true : WhereClause.compile(where).bind(viewClazz, params);
+        return Arrays.stream(retained.toArray()).mapToObj(isn -> getByISN(isn, viewClazz)).filter(query);
+    }
+
+    // RELEASE SETS
+    default void releaseSets() {
+        RetainedSets.releaseAll();
+    }
+
     <E extends AdabasRecord> E getByISN(int isn, Class<E> viewClazz);
 
+    /*
+    GET, READ or FIND for a later UPDATE or DELETE: put the record in hold until the session's transaction ends,
+    waiting while another session holds it. Update and delete put the records they change in hold themselves,
+    a session with no transaction only while they run.
+     */
+    default void hold(int isn) {
+        HoldQueue.hold(this, isn);
+    }
+
     <E extends AdabasRecord> void update(E record);
 
     <E extends AdabasRecord> int store(E record);
 
+    // DELETE, repositories that do not support it throw
+    default <E extends AdabasRecord> void delete(E record) {
+        throw new NaturalException("DELETE is not supported by " + getClass().getName());
+    }
+
+    /*
+    Batch versions of store, update and delete returning the ISNs of the records. Implementations
+    should reserve the ISNs of a batch at once and maintain their indexes once per batch.
+     */
+    default <E extends AdabasRecord> int[] storeAll(List<E> records) {
+        return records.stream().mapToInt(this::store).toArray();
+    }
+
+    default <E extends AdabasRecord> int[] updateAll(List<E> records) {
+        records.forEach(this::update);
+        return records.stream().mapToInt(AdabasRecord::getIsn).toArray();
+    }
+
+    default <E extends AdabasRecord> int[] deleteAll(List<E> records) {
+        records.forEach(this::delete);
+        return records.stream().mapToInt(AdabasRecord::getIsn).toArray();
+    }
+
     <E extends AdabasRecord> int count(String viewName, Class<E> viewClazz, String where, Object... params);
+
+    /*
+    HISTOGRAM, the distinct values of a descriptor between from and to in value order with the number of records
+    holding each. A null bound is open. Values are read from the descriptor index without reading records,
+    repositories without descriptor indexes do not support it.
+     */
+    default Stream<HistogramValue> histogram(String viewName, String descriptor, Object from, Object to) {
+        throw new NaturalException("HISTOGRAM is not supported by " + getClass().getName());
+    }
+
+    /*
+    END TRANSACTION, changes made by the session since its last transaction ended become visible to other sessions
+    and the records it holds are released
+     */
+    default void endTransaction() {
+        AdabasTransaction.endCurrent();
+    }
+
+    /*
+    BACKOUT TRANSACTION, changes made by the session since its last transaction ended are discarded
+    and the records it holds are released
+     */
+    default void backoutTransaction() {
+        AdabasTransaction.backoutCurrent();
+    }
 }
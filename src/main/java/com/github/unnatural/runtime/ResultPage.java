@@ -0,0 +1,49 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A page of a read and the continuation token to read the next page with, null after the last page
+ */
+public record ResultPage<E>(List<E> records, String continuation) {
+
+    /*
+    Up to pageSize records from the stream, reading one more to find whether another page follows
+     */
+    public static <E> ResultPage<E> of(Stream<E> records, int pageSize, Function<E, Continuation> position) {
+        if (pageSize <= 0) {
+            throw new NaturalException("Invalid page size " + pageSize);
+        }
+        List<E> page = records.limit(pageSize + 1L).collect(Collectors.toList());
+        if (page.size() <= pageSize) {
+            return new ResultPage<>(page, null);
+        }
+        page.remove(pageSize);
+        return new ResultPage<>(page, position.apply(page.get(pageSize - 1)).encode());
+    }
+
+    public boolean hasMore() {
+        return continuation != null;
+    }
+}
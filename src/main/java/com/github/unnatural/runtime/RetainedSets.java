@@ -0,0 +1,97 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The ISN sets a session has kept with FIND ... RETAIN AS, by name. A set is immutable and belongs to the file
+ * it was found in, later FINDs on that file can start from it. Sets are bound to the thread of the session that
+ * retained them and are released at END TRANSACTION and BACKOUT TRANSACTION. The sets of one session may hold
+ * at most {@link #getMaxBytes()} between them.
+ */
+public final class RetainedSets {
+    private static final ThreadLocal<RetainedSets> CURRENT = ThreadLocal.withInitial(RetainedSets::new);
+    private static volatile long maxBytes = 64L << 20;
+
+    private final Map<String, Retained> sets = new HashMap<>();
+    private long bytes;
+
+    private RetainedSets() {
+    }
+
+    public static long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public static void setMaxBytes(long maxBytes) {
+        RetainedSets.maxBytes = maxBytes;
+    }
+
+    /*
+    Keep the ISNs found in the file under the name, replacing any set the session already holds under it
+     */
+    public static void retain(String name, Object file, IsnBitmap isns) {
+        RetainedSets session = CURRENT.get();
+        Retained previous = session.sets.get(name);
+        long needed = session.bytes - (previous == null ? 0 : previous.isns().estimatedBytes()) + isns.estimatedBytes();
+        if (needed > maxBytes) {
+            throw new NaturalException("Retaining " + isns.cardinality() + " ISNs as " + name + " would exceed the "
+                    + maxBytes + " bytes allowed for retained sets");
+        }
+        session.sets.put(name, new Retained(file, isns));
+        session.bytes = needed;
+    }
+
+    public static IsnBitmap get(String name, Object file) {
+        Retained retained = CURRENT.get().sets.get(name);
+        if (retained == null) {
+            throw new NaturalException("No retained set " + name);
+        }
+        if (retained.file() != file) {
+            throw new NaturalException("Retained set " + name + " was found in another file");
+        }
+        return retained.isns();
+    }
+
+    public static Collection<String> getNames() {
+        return Collections.unmodifiableSet(CURRENT.get().sets.keySet());
+    }
+
+    // RELEASE SETS name
+    public static boolean release(String name) {
+        RetainedSets session = CURRENT.get();
+        Retained retained = session.sets.remove(name);
+        if (retained != null) {
+            session.bytes -= retained.isns().estimatedBytes();
+        }
+        return retained != null;
+    }
+
+    // RELEASE SETS, as END TRANSACTION and BACKOUT TRANSACTION do
+    public static void releaseAll() {
+        CURRENT.remove();
+    }
+
+    private record Retained(Object file, IsnBitmap isns) {
+    }
+}
@@ -20,7 +20,6 @@ package com.github.unnatural.runtime;
 
 import lombok.extern.slf4j.Slf4j;
 
-import java.lang.reflect.Field;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.RoundingMode;
@@ -33,6 +32,8 @@ import java.time.format.DateTimeFormatterBuilder;
 import java.util.*;
 import java.util.function.Function;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.time.temporal.ChronoField.*;
 
@@ -42,7 +43,6 @@ public class Unnatural {
     private static final String PROGRAM = "TestProgram";
     private static final Pattern ARRAY_ATTRIBUTE = Pattern.compile("(?<name>\\S+)\\[(?<array>\\d+),(?<type>.*)\\]");
 
-    private static final Map<String, AdabasStore<?>> stores = new HashMap<>();
     private static final String DATE_MASK = "YYYYMMDD";
     private static final String ALTERNATIVE_DATE_MASK = "DDMMYYYY";
 
@@ -175,8 +175,13 @@ public class Unnatural {
     public static <T> void update(T updateViewGetForModify) {
     }
 
+    /*
+    END TRANSACTION. Transactions are opt in: a session only has one once it has called AdabasTransaction.begin(),
+    after which each END TRANSACTION starts the next. Until then changes are committed as they are made and
+    END TRANSACTION only releases the session's retained sets and held records.
+     */
     public static void endTransaction() {
-
+        AdabasTransaction.endCurrent();
     }
 
     public static boolean inputModified(String attributeName) {
@@ -217,7 +222,11 @@ public class Unnatural {
     }
 
     public static <T extends AdabasRecord> void createStore(String tableName, Class<T> clazz) {
-        stores.put(tableName, new AdabasStore<T>());
+        AdabasStoreRegistry.current().create(tableName, clazz);
+    }
+
+    public static <T extends AdabasRecord> AdabasStore<T> getStore(String tableName, Class<T> clazz) {
+        return AdabasStoreRegistry.current().get(tableName, clazz);
     }
 
     public static String messageFor(String number) {
@@ -390,7 +399,32 @@ public class Unnatural {
     }
 
     public static <T extends NaturalObject> List<T> indexRead(Class<T> clazz, String vehicle, String s, String s1, IndexReadDescriptor descriptorsAll) {
-        return null;
+        return indexReadStream(clazz, vehicle, s, s1, descriptorsAll).collect(Collectors.toList());
+    }
+
+    /*
+    READ LOGICAL over the store registered for the view STARTING FROM from ENDING AT to, a null or blank bound
+    being open. Records stream in descriptor value then ISN order, each a copy of the stored record adapted to clazz
+    when the store holds another class.
+     */
+    public static <T extends NaturalObject> Stream<T> indexReadStream(Class<T> clazz, String vehicle, String from, String to, IndexReadDescriptor descriptor) {
+        AdabasStore<?> store = AdabasStoreRegistry.current().find(vehicle)
+                .orElseThrow(() -> new NaturalException("No store " + vehicle + " in scope " + AdabasStoreRegistry.current().getScope()));
+        return store.indexReadStored(descriptor, bound(from), bound(to)).map(record -> asView(record, clazz));
+    }
+
+    private static String bound(String value) {
+        return value == null || value.isBlank() ? null : value;
+    }
+
+    // always a new object, the caller may change the view without changing the stored record
+    private static <T> T asView(Object record, Class<T> clazz) {
+        if (clazz.isInstance(record)) {
+            return clazz.cast(FieldCopier.copyOf(record));
+        }
+        T view = FieldCopier.newInstance(clazz);
+        FieldCopier.adaptByName(record.getClass(), clazz).copy(record, view);
+        return view;
     }
 
     public static String hexToString(LocalDateTime now, int i) {
@@ -586,38 +620,7 @@ public class Unnatural {
 
     @Deprecated
     public static void moveByName(NaturalObject src, NaturalObject dest) {
-        Field[] srcFields = src.getClass().getDeclaredFields();
-        Arrays.stream(srcFields).forEach((srcField) ->
-                getField(dest.getClass(), srcField.getName()).ifPresent(
-                    (destField -> copyValue(srcField, src, destField, dest)))
-        );
-    }
-
-    @Deprecated
-    private static void copyValue(Field srcField, NaturalObject src, Field destField, NaturalObject dest) {
-        try {
-            srcField.setAccessible(true);
-            destField.setAccessible(true);
-            destField.set(dest, srcField.get(src));
-        } catch (IllegalAccessException e) {
-            log.warn("Unable to copy UnaturalField {} on class {} to class {} - {}", srcField.getName(),
-                    src.getClass().getName(), dest.getClass().getName(), e.getMessage());
-        }
-    }
-
-    private static boolean classHasField(Class<? extends NaturalObject> clazz, String fieldName) {
-        return Arrays.stream(clazz.getDeclaredFields()).anyMatch(f -> f.getName().equals(fieldName));
-    }
-
-    static Optional<Field> getField(Class<? extends NaturalObject> clazz, String fieldName) {
-        if (classHasField(clazz, fieldName)){
-            try {
-                return Optional.of(clazz.getDeclaredField(fieldName));
-            } catch (NoSuchFieldException e) {
-                return Optional.empty();
-            }
-        }
-        return Optional.empty();
+        FieldCopier.moveByName(src.getClass(), dest.getClass()).copy(src, dest);
     }
 
     public static void translateStringInverted(String ssReference, String[] trans) {
@@ -672,7 +675,9 @@ public class Unnatural {
 
     }
 
+    // BACKOUT TRANSACTION, which like END TRANSACTION has no changes to discard unless the session began a transaction
     public static void markCurrentTransactionForRollback() {
+        AdabasTransaction.backoutCurrent();
     }
 
     public static boolean onlyOneSelected(String[] slice) {
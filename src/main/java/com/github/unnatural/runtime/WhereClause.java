@@ -0,0 +1,719 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * A compiled Natural style where clause, e.g. NAME = {name} AND (CITY = 'LONDON' OR AGE > {age}).
+ * Supports AND, OR, NOT, parentheses, the comparison operators (=, EQ, NE, <>, <, LT, <=, LE, >, GT, >=, GE),
+ * FIELD = a THRU b [BUT NOT c [THRU d]] and FIELD = a OR = b.
+ * Operands are quoted strings, numbers or {placeholders} bound positionally, in order of first appearance,
+ * to the parameters supplied with the query.
+ * Fields are named by their DDM names, which may also name a {@link SuperDescriptor} declared on the record class.
+ * A condition on a multiple-value or periodic group array field matches a record when any of its elements matches.
+ * Each distinct clause is parsed once and cached, the least recently used clauses are dropped once
+ * {@link #MAX_COMPILED} are cached.
+ */
+public class WhereClause {
+    static final int MAX_COMPILED = 4096;
+    private static final Map<String, WhereClause> COMPILED = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, WhereClause> eldest) {
+            return size() > MAX_COMPILED;
+        }
+    });
+    private static final ClassValue<Map<String, Field>> FIELDS = new ClassValue<>() {
+        @Override
+        protected Map<String, Field> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private final String where;
+    private final Condition condition;
+    private final List<String> placeholders;
+
+    private WhereClause(String where, Condition condition, List<String> placeholders) {
+        this.where = where;
+        this.condition = condition;
+        this.placeholders = placeholders;
+    }
+
+    public static WhereClause compile(String where) {
+        WhereClause compiled = COMPILED.get(where);
+        if (compiled == null) {
+            // parsed outside the cache's lock, a clause compiled by two sessions at once is just parsed twice
+            compiled = parse(where);
+            COMPILED.put(where, compiled);
+        }
+        return compiled;
+    }
+
+    static int cachedCount() {
+        return COMPILED.size();
+    }
+
+    private static WhereClause parse(String where) {
+        Parser parser = new Parser(where);
+        Condition condition = parser.parse();
+        return new WhereClause(where, condition, List.copyOf(parser.placeholders));
+    }
+
+    public List<String> getPlaceholders() {
+        return placeholders;
+    }
+
+    public <T> Query<T> bind(Class<T> recordClass, Object... params) {
+        if (params.length < placeholders.size()) {
+            throw new NaturalException("Where clause " + where + " expects " + placeholders.size() + " parameters but got " + params.length);
+        }
+        return new Query<>(bind(condition, recordClass, params));
+    }
+
+    private static Bound bind(Condition condition, Class<?> recordClass, Object[] params) {
+        if (condition instanceof All all) {
+            return new BoundAll(all.conditions().stream().map(c -> bind(c, recordClass, params)).toList());
+        } else if (condition instanceof Any any) {
+            return new BoundAny(any.conditions().stream().map(c -> bind(c, recordClass, params)).toList());
+        } else if (condition instanceof Not not) {
+            return new BoundNot(bind(not.condition(), recordClass, params));
+        } else if (condition instanceof Comparison comparison) {
+            Source source = source(recordClass, comparison.field());
+            return new BoundComparison(comparison.field(), source, comparison.operator(), source.bound(comparison.value().resolve(params)));
+        } else {
+            Between between = (Between) condition;
+            Source source = source(recordClass, between.field());
+            return new BoundBetween(between.field(), source, source.bound(between.from().resolve(params)),
+                    source.upperBound(between.to().resolve(params)));
+        }
+    }
+
+    private static Source source(Class<?> recordClass, String ddmName) {
+        Field field = FIELDS.get(recordClass).computeIfAbsent(ddmName, name -> findField(recordClass, name));
+        if (field != null) {
+            return new Source(field, null);
+        }
+        return CompositeDescriptor.find(recordClass, ddmName).map(composite -> new Source(null, composite))
+                .orElseThrow(() -> new NaturalException("No field " + ddmName + " on class " + recordClass.getName()));
+    }
+
+    private static Field findField(Class<?> recordClass, String ddmName) {
+        String fieldName = DdmNames.toFieldName(ddmName);
+        for (Class<?> clazz = recordClass; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                Descriptor descriptor = field.getAnnotation(Descriptor.class);
+                boolean named = descriptor != null && descriptor.value().equalsIgnoreCase(ddmName);
+                if (named || field.getName().equals(fieldName) || field.getName().equalsIgnoreCase(ddmName)) {
+                    field.setAccessible(true);
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A where clause bound to a record class and query parameters
+     * @param <T> the record type
+     */
+    public static class Query<T> implements Predicate<T> {
+        private final Bound bound;
+
+        private Query(Bound bound) {
+            this.bound = bound;
+        }
+
+        @Override
+        public boolean test(T record) {
+            return bound.test(record);
+        }
+
+        /*
+        The ascending ISNs of records that may match, taken from descriptor indexes
+        empty when the clause cannot be answered from the indexes and all records must be checked
+         */
+        public Optional<int[]> candidates(DescriptorIndexes<T> indexes) {
+            return candidateSet(indexes).map(IsnBitmap::toArray);
+        }
+
+        // the candidates as a set, to combine with other ISN sets
+        public Optional<IsnBitmap> candidateSet(DescriptorIndexes<T> indexes) {
+            return Optional.ofNullable(bound.candidates(indexes));
+        }
+
+        /*
+        The ISNs of exactly the matching records when the whole clause can be answered from descriptor indexes,
+        the ISN sets of its conditions are combined with AND, OR and NOT before any record is read
+         */
+        public Optional<IsnBitmap> matches(DescriptorIndexes<T> indexes) {
+            return Optional.ofNullable(bound.matches(indexes));
+        }
+
+        /*
+        The number of matching records when the whole clause can be answered from descriptor indexes,
+        single comparisons are counted from the per value ISN counts without copying any ISNs, except on
+        multiple-value and periodic group descriptors where a record is counted once for each element it holds
+         */
+        public OptionalInt count(DescriptorIndexes<T> indexes) {
+            int count = bound.count(indexes);
+            return count < 0 ? OptionalInt.empty() : OptionalInt.of(count);
+        }
+
+        /*
+        The ISNs of the matching records of columnar storage, each condition is tested against the values of one
+        column and the ISN sets are combined with AND, OR and NOT before any record is assembled
+         */
+        public IsnBitmap scan(ColumnarRecordStorage<T> columns) {
+            return bound.scan(columns);
+        }
+    }
+
+    enum Operator {
+        EQ, NE, LT, LE, GT, GE;
+
+        boolean test(int comparison) {
+            return switch (this) {
+                case EQ -> comparison == 0;
+                case NE -> comparison != 0;
+                case LT -> comparison < 0;
+                case LE -> comparison <= 0;
+                case GT -> comparison > 0;
+                case GE -> comparison >= 0;
+            };
+        }
+    }
+
+    // parsed conditions, independent of record class and parameters
+
+    sealed interface Condition permits All, Any, Not, Comparison, Between {
+    }
+
+    record All(List<Condition> conditions) implements Condition {
+    }
+
+    record Any(List<Condition> conditions) implements Condition {
+    }
+
+    record Not(Condition condition) implements Condition {
+    }
+
+    record Comparison(String field, Operator operator, Operand value) implements Condition {
+    }
+
+    record Between(String field, Operand from, Operand to) implements Condition {
+    }
+
+    record Operand(Object literal, int placeholder) {
+        Object resolve(Object[] params) {
+            return placeholder < 0 ? literal : params[placeholder];
+        }
+    }
+
+    // conditions bound to field accessors and parameter values
+
+    private interface Bound {
+        boolean test(Object record);
+
+        // ISNs of possible matches or null when all records must be checked
+        IsnBitmap candidates(DescriptorIndexes<?> indexes);
+
+        // ISNs of exactly the matching records or null when that needs the records to be checked
+        IsnBitmap matches(DescriptorIndexes<?> indexes);
+
+        // the number of matching records or -1 when that needs the records to be checked
+        default int count(DescriptorIndexes<?> indexes) {
+            IsnBitmap isns = matches(indexes);
+            return isns == null ? -1 : isns.cardinality();
+        }
+
+        IsnBitmap scan(ColumnarRecordStorage<?> columns);
+    }
+
+    private record BoundAll(List<Bound> conditions) implements Bound {
+        public boolean test(Object record) {
+            for (Bound condition : conditions) {
+                if (!condition.test(record)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // the conditions answered by indexes narrow the candidates, the others are checked on the records
+        public IsnBitmap candidates(DescriptorIndexes<?> indexes) {
+            IsnBitmap result = null;
+            for (Bound condition : conditions) {
+                IsnBitmap isns = condition.candidates(indexes);
+                if (isns != null) {
+                    result = result == null ? isns : result.and(isns);
+                }
+            }
+            return result;
+        }
+
+        public IsnBitmap matches(DescriptorIndexes<?> indexes) {
+            IsnBitmap result = null;
+            for (Bound condition : conditions) {
+                IsnBitmap isns = condition.matches(indexes);
+                if (isns == null) {
+                    return null;
+                }
+                result = result == null ? isns : result.and(isns);
+            }
+            return result;
+        }
+
+        public IsnBitmap scan(ColumnarRecordStorage<?> columns) {
+            IsnBitmap result = null;
+            for (Bound condition : conditions) {
+                result = result == null ? condition.scan(columns) : result.and(condition.scan(columns));
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            return result == null ? columns.isns() : result;
+        }
+    }
+
+    private record BoundAny(List<Bound> conditions) implements Bound {
+        public boolean test(Object record) {
+            for (Bound condition : conditions) {
+                if (condition.test(record)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public IsnBitmap candidates(DescriptorIndexes<?> indexes) {
+            return union(indexes, Bound::candidates);
+        }
+
+        public IsnBitmap matches(DescriptorIndexes<?> indexes) {
+            return union(indexes, Bound::matches);
+        }
+
+        public IsnBitmap scan(ColumnarRecordStorage<?> columns) {
+            IsnBitmap result = IsnBitmap.EMPTY;
+            for (Bound condition : conditions) {
+                result = result.or(condition.scan(columns));
+            }
+            return result;
+        }
+
+        private IsnBitmap union(DescriptorIndexes<?> indexes, BiFunction<Bound, DescriptorIndexes<?>, IsnBitmap> lookup) {
+            IsnBitmap result = IsnBitmap.EMPTY;
+            for (Bound condition : conditions) {
+                IsnBitmap isns = lookup.apply(condition, indexes);
+                if (isns == null) {
+                    return null;
+                }
+                result = result.or(isns);
+            }
+            return result;
+        }
+    }
+
+    private record BoundNot(Bound condition) implements Bound {
+        public boolean test(Object record) {
+            return !condition.test(record);
+        }
+
+        public IsnBitmap candidates(DescriptorIndexes<?> indexes) {
+            return matches(indexes);
+        }
+
+        // every indexed ISN holds every descriptor, so the complement can be taken against any index
+        public IsnBitmap matches(DescriptorIndexes<?> indexes) {
+            IsnBitmap excluded = condition.matches(indexes);
+            if (excluded == null || indexes.isEmpty()) {
+                return null;
+            }
+            return excluded.not(indexes.all().iterator().next().range(null, true, null, true));
+        }
+
+        public IsnBitmap scan(ColumnarRecordStorage<?> columns) {
+            return condition.scan(columns).not(columns.isns());
+        }
+    }
+
+    private record BoundComparison(String name, Source source, Operator operator, Object value) implements Bound {
+        public boolean test(Object record) {
+            return source.test(record, v -> operator.test(FieldValues.compare(v, value)));
+        }
+
+        public IsnBitmap candidates(DescriptorIndexes<?> indexes) {
+            // a null bound would read as an unbounded range
+            if (value == null && operator != Operator.EQ) {
+                return null;
+            }
+            return indexes.find(name).map(index -> switch (operator) {
+                case EQ -> index.equalTo(value);
+                case LT -> index.range(null, true, value, false);
+                case LE -> index.range(null, true, value, true);
+                case GT -> index.range(value, false, null, true);
+                case GE -> index.range(value, true, null, true);
+                case NE -> null;
+            }).orElse(null);
+        }
+
+        public IsnBitmap matches(DescriptorIndexes<?> indexes) {
+            if (operator == Operator.NE && value != null) {
+                return indexes.find(name).map(index -> index.range(null, true, value, false).or(index.range(value, false, null, true)))
+                        .orElse(null);
+            }
+            return candidates(indexes);
+        }
+
+        public int count(DescriptorIndexes<?> indexes) {
+            if (value == null && operator != Operator.EQ) {
+                return -1;
+            }
+            if (indexes.find(name).orElse(null) instanceof ElementIndex) {
+                return Bound.super.count(indexes);
+            }
+            return indexes.find(name).map(index -> switch (operator) {
+                case EQ -> index.countEqualTo(value);
+                case NE -> index.size() - index.countEqualTo(value);
+                case LT -> index.countRange(null, true, value, false);
+                case LE -> index.countRange(null, true, value, true);
+                case GT -> index.countRange(value, false, null, true);
+                case GE -> index.countRange(value, true, null, true);
+            }).orElse(-1);
+        }
+
+        public IsnBitmap scan(ColumnarRecordStorage<?> columns) {
+            return source.select(columns, v -> operator.test(FieldValues.compare(v, value)));
+        }
+    }
+
+    private record BoundBetween(String name, Source source, Object from, Object to) implements Bound {
+        public boolean test(Object record) {
+            return source.test(record, value -> FieldValues.compare(value, from) >= 0 && FieldValues.compare(value, to) <= 0);
+        }
+
+        public IsnBitmap candidates(DescriptorIndexes<?> indexes) {
+            if (from == null || to == null) {
+                return null;
+            }
+            return indexes.find(name).map(index -> index.range(from, true, to, true)).orElse(null);
+        }
+
+        public IsnBitmap matches(DescriptorIndexes<?> indexes) {
+            return candidates(indexes);
+        }
+
+        public int count(DescriptorIndexes<?> indexes) {
+            if (from == null || to == null) {
+                return -1;
+            }
+            if (indexes.find(name).orElse(null) instanceof ElementIndex) {
+                return Bound.super.count(indexes);
+            }
+            return indexes.find(name).map(index -> index.countRange(from, true, to, true)).orElse(-1);
+        }
+
+        public IsnBitmap scan(ColumnarRecordStorage<?> columns) {
+            return source.select(columns, v -> FieldValues.compare(v, from) >= 0 && FieldValues.compare(v, to) <= 0);
+        }
+    }
+
+    /*
+    The values a condition compares, those of a record field or of a super-descriptor built from several fields.
+    A condition on an array field matches when any element matches, an array with no elements compares as null.
+     */
+    private record Source(Field field, CompositeDescriptor composite) {
+        boolean test(Object record, Predicate<Object> test) {
+            if (composite != null) {
+                return test.test(composite.value(record));
+            }
+            try {
+                return matches(field.get(record), test);
+            } catch (IllegalAccessException e) {
+                throw new NaturalException("Unable to read " + field.getName() + ": " + e.getMessage());
+            }
+        }
+
+        Object bound(Object value) {
+            return composite != null ? composite.bound(value) : FieldValues.coerce(value, type());
+        }
+
+        Object upperBound(Object to) {
+            return composite != null ? composite.upperBound(to) : FieldValues.coerce(to, type());
+        }
+
+        IsnBitmap select(ColumnarRecordStorage<?> columns, Predicate<Object> test) {
+            return composite != null ? columns.select(record -> test.test(composite.value(record)))
+                    : columns.select(field.getName(), value -> matches(value, test));
+        }
+
+        private Class<?> type() {
+            return field.getType().isArray() ? field.getType().getComponentType() : field.getType();
+        }
+
+        private boolean matches(Object value, Predicate<Object> test) {
+            if (!field.getType().isArray()) {
+                return test.test(value);
+            }
+            boolean held = false;
+            for (int i = 0; value != null && i < Array.getLength(value); i++) {
+                Object element = Array.get(value, i);
+                if (element != null && test.test(element)) {
+                    return true;
+                }
+                held |= element != null;
+            }
+            return !held && test.test(null);
+        }
+    }
+
+    // Recursive descent parser for the where clause grammar
+    private static class Parser {
+        private final String where;
+        private final List<String> tokens;
+        private final List<String> placeholders = new ArrayList<>();
+        private int pos;
+
+        Parser(String where) {
+            this.where = where;
+            this.tokens = tokenise(where);
+        }
+
+        Condition parse() {
+            Condition condition = or();
+            if (pos < tokens.size()) {
+                throw error("Unexpected " + tokens.get(pos));
+            }
+            return condition;
+        }
+
+        private Condition or() {
+            List<Condition> conditions = new ArrayList<>();
+            conditions.add(and());
+            while (accept("OR")) {
+                conditions.add(and());
+            }
+            return conditions.size() == 1 ? conditions.get(0) : new Any(conditions);
+        }
+
+        private Condition and() {
+            List<Condition> conditions = new ArrayList<>();
+            conditions.add(not());
+            while (accept("AND")) {
+                conditions.add(not());
+            }
+            return conditions.size() == 1 ? conditions.get(0) : new All(conditions);
+        }
+
+        private Condition not() {
+            if (accept("NOT")) {
+                return new Not(not());
+            }
+            if (accept("(")) {
+                Condition condition = or();
+                expect(")");
+                return condition;
+            }
+            return comparison();
+        }
+
+        private Condition comparison() {
+            String field = next();
+            if (!isFieldName(field)) {
+                throw error("Expected field name but got " + field);
+            }
+            Condition condition = comparison(field, operator());
+            // FIELD = 'A' OR = 'B' repeats the field for each alternative
+            List<Condition> alternatives = new ArrayList<>(List.of(condition));
+            while (pos + 1 < tokens.size() && peekIs("OR") && isOperator(tokens.get(pos + 1))) {
+                pos++;
+                alternatives.add(comparison(field, operator()));
+            }
+            return alternatives.size() == 1 ? condition : new Any(alternatives);
+        }
+
+        private Condition comparison(String field, Operator operator) {
+            Operand value = operand();
+            if (!accept("THRU")) {
+                return new Comparison(field, operator, value);
+            }
+            if (operator != Operator.EQ) {
+                throw error("THRU requires =");
+            }
+            Condition condition = new Between(field, value, operand());
+            if (accept("BUT")) {
+                expect("NOT");
+                Operand excluded = operand();
+                Condition exclusion = accept("THRU") ? new Between(field, excluded, operand())
+                        : new Comparison(field, Operator.EQ, excluded);
+                condition = new All(List.of(condition, new Not(exclusion)));
+            }
+            return condition;
+        }
+
+        private Operator operator() {
+            String token = next();
+            return switch (token.toUpperCase()) {
+                case "=", "EQ" -> Operator.EQ;
+                case "<>", "^=", "!=", "NE" -> Operator.NE;
+                case "<", "LT" -> Operator.LT;
+                case "<=", "LE" -> Operator.LE;
+                case ">", "GT" -> Operator.GT;
+                case ">=", "GE" -> Operator.GE;
+                default -> throw error("Expected comparison operator but got " + token);
+            };
+        }
+
+        private Operand operand() {
+            String token = next();
+            if (token.startsWith("{")) {
+                String name = token.substring(1, token.length() - 1);
+                if (!placeholders.contains(name)) {
+                    placeholders.add(name);
+                }
+                return new Operand(null, placeholders.indexOf(name));
+            }
+            if (token.startsWith("'")) {
+                return new Operand(token.substring(1, token.length() - 1).replace("''", "'"), -1);
+            }
+            if (token.matches("[-+]?\\d+")) {
+                // the field the operand is bound to checks that the value is in range for its type
+                try {
+                    return new Operand(Long.valueOf(token), -1);
+                } catch (NumberFormatException e) {
+                    return new Operand(new BigDecimal(token), -1);
+                }
+            }
+            if (token.matches("[-+]?\\d*\\.\\d+|[-+]?\\d+\\.\\d*")) {
+                return new Operand(new BigDecimal(token), -1);
+            }
+            throw error("Expected value but got " + token);
+        }
+
+        private static boolean isOperator(String token) {
+            return switch (token.toUpperCase()) {
+                case "=", "EQ", "<>", "^=", "!=", "NE", "<", "LT", "<=", "LE", ">", "GT", ">=", "GE" -> true;
+                default -> false;
+            };
+        }
+
+        private static boolean isFieldName(String token) {
+            char first = token.charAt(0);
+            return Character.isLetter(first) || first == '#';
+        }
+
+        private boolean peekIs(String keyword) {
+            return pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(keyword);
+        }
+
+        private boolean accept(String keyword) {
+            if (peekIs(keyword)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String keyword) {
+            if (!accept(keyword)) {
+                throw error("Expected " + keyword);
+            }
+        }
+
+        private String next() {
+            if (pos >= tokens.size()) {
+                throw error("Unexpected end of clause");
+            }
+            return tokens.get(pos++);
+        }
+
+        private NaturalException error(String message) {
+            return new NaturalException(message + " in where clause: " + where);
+        }
+
+        private List<String> tokenise(String where) {
+            List<String> result = new ArrayList<>();
+            int index = 0;
+            while (index < where.length()) {
+                char character = where.charAt(index);
+                int start = index;
+                if (Character.isWhitespace(character)) {
+                    index++;
+                    continue;
+                } else if (character == '(' || character == ')') {
+                    index++;
+                } else if (character == '\'') {
+                    index++;
+                    while (index < where.length()) {
+                        if (where.charAt(index) == '\'') {
+                            // doubled quote is an escaped quote
+                            if (index + 1 < where.length() && where.charAt(index + 1) == '\'') {
+                                index += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        index++;
+                    }
+                    if (index >= where.length()) {
+                        throw error("Unterminated string");
+                    }
+                    index++;
+                } else if (character == '{') {
+                    index = where.indexOf('}', index);
+                    if (index < 0) {
+                        throw error("Unterminated placeholder");
+                    }
+                    index++;
+                } else if ("=<>^!".indexOf(character) >= 0) {
+                    index++;
+                    if (index < where.length() && "=>".indexOf(where.charAt(index)) >= 0) {
+                        index++;
+                    }
+                } else {
+                    while (index < where.length() && isWordChar(where.charAt(index))) {
+                        index++;
+                    }
+                    if (index == start) {
+                        throw error("Unexpected character " + character);
+                    }
+                }
+                result.add(where.substring(start, index));
+            }
+            return result;
+        }
+
+        private static boolean isWordChar(char character) {
+            return Character.isLetterOrDigit(character) || "#-_.+".indexOf(character) >= 0;
+        }
+    }
+}
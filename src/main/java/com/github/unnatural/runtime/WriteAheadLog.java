@@ -0,0 +1,346 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log for the changes committed to the {@link AdabasStore}s attached to it. Each commit, a whole
+ * transaction or a single change made outside one, is appended as one checksummed frame of record images and
+ * deletes. A commit's changes are applied to the stores once its frame is on disk: the first committer to find
+ * frames waiting writes every waiting frame and forces the file once, while commits arriving meanwhile queue
+ * behind it, so concurrent sessions share a single sync (group commit). A commit whose frame fails to be written
+ * is never applied, though a frame written before the failure may still be replayed on startup.
+ * On startup load the stores' snapshots, attach them and {@link #replay()} the log. A checkpoint saves new
+ * snapshots and empties the log.
+ */
+@Slf4j
+public class WriteAheadLog implements AutoCloseable {
+    // frame header: payload length and checksum
+    private static final int FRAME_HEADER = 8;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Map<String, AdabasStore<?>> stores = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    // guarded by lock
+    private List<byte[]> pending = new ArrayList<>();
+    private long appended;
+    private long durable;
+    // commits appended and not yet applied to their stores, or failed
+    private int unapplied;
+    private boolean syncing;
+    private IOException failure;
+    private long position;
+    @Getter
+    private long syncs;
+
+    public WriteAheadLog(Path path) {
+        this.path = path;
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.position = channel.size();
+        } catch (IOException e) {
+            throw new NaturalException("Unable to open log " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Log the changes committed to the store under its name. Only stores created with their record class can be logged.
+     */
+    public void attach(String name, AdabasStore<?> store) {
+        if (stores.containsKey(name)) {
+            throw new NaturalException("A store is already attached to " + path + " as " + name);
+        }
+        store.logTo(this, name);
+        stores.put(name, store);
+    }
+
+    /**
+     * Apply the frames in the log to the attached stores, in commit order, returning the number of commits replayed.
+     * The log ends at the first incomplete or corrupt frame, left by a crash while it was written, which is cut off.
+     * Frames already in a snapshot are applied again harmlessly, as they hold whole records.
+     */
+    public int replay() {
+        lock.lock();
+        try {
+            long end = channel.size();
+            long offset = 0;
+            int replayed = 0;
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+            while (offset + FRAME_HEADER <= end) {
+                channel.read(header.clear(), offset);
+                int length = header.getInt(0);
+                if (length < 0 || offset + FRAME_HEADER + length > end) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                channel.read(payload, offset + FRAME_HEADER);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array());
+                if ((int) crc.getValue() != header.getInt(4)) {
+                    break;
+                }
+                apply(payload.flip());
+                offset += FRAME_HEADER + length;
+                replayed++;
+            }
+            if (offset < end) {
+                log.warn("Discarding {} bytes after the last complete commit in {}", end - offset, path);
+                channel.truncate(offset);
+            }
+            position = offset;
+            log.info("Replayed {} commits from {}", replayed, path);
+            return replayed;
+        } catch (IOException e) {
+            throw new NaturalException("Unable to replay log " + path + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void apply(ByteBuffer payload) {
+        int changes = payload.getInt();
+        for (int i = 0; i < changes; i++) {
+            byte[] name = new byte[payload.getShort()];
+            payload.get(name);
+            int isn = payload.getInt();
+            int length = payload.getInt();
+            ByteBuffer record = null;
+            if (length >= 0) {
+                record = payload.slice(payload.position(), length);
+                payload.position(payload.position() + length);
+            }
+            AdabasStore<?> store = stores.get(new String(name, StandardCharsets.UTF_8));
+            if (store == null) {
+                throw new NaturalException("Log " + path + " has changes for a store that is not attached: "
+                        + new String(name, StandardCharsets.UTF_8));
+            }
+            store.replay(isn, record);
+        }
+    }
+
+    /*
+    Queue a commit's frame, returning its sequence number to wait on. Called in commit order before the commit
+    changes any store, the frames are written in the order they were queued.
+     */
+    long append(Batch batch) {
+        byte[] frame = batch.toFrame();
+        lock.lock();
+        try {
+            checkWritable();
+            pending.add(frame);
+            unapplied++;
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Once a write has failed the log takes no more commits, so no change is applied that could not be made
+    durable. Commits that were waiting on the failed write are told it failed, the stores keep their changes
+    in memory only.
+     */
+    void checkWritable() {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failed();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private NaturalException failed() {
+        return new NaturalException("Unable to write log " + path + ": " + failure.getMessage());
+    }
+
+    // called once a commit appended to the log has been applied to its stores, or has failed
+    void applied() {
+        lock.lock();
+        try {
+            unapplied--;
+            synced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // wait until the frame with the sequence number is on disk, writing and syncing the waiting frames if no one else is
+    void awaitDurable(long sequence) {
+        lock.lock();
+        try {
+            while (durable < sequence) {
+                if (failure != null) {
+                    throw failed();
+                }
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                List<byte[]> frames = pending;
+                pending = new ArrayList<>();
+                long upTo = appended;
+                lock.unlock();
+                try {
+                    write(frames);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    lock.lock();
+                    syncing = false;
+                    synced.signalAll();
+                }
+                if (failure == null) {
+                    durable = upTo;
+                    syncs++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called by the one syncing committer, position is only changed while syncing
+    private void write(List<byte[]> frames) throws IOException {
+        ByteBuffer[] buffers = frames.stream().map(ByteBuffer::wrap).toArray(ByteBuffer[]::new);
+        long remaining = frames.stream().mapToLong(frame -> frame.length).sum();
+        channel.position(position);
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        position = channel.position();
+        channel.force(false);
+    }
+
+    /**
+     * Save the attached stores' snapshots and empty the log, while no change can be committed. Commits logged
+     * and not yet applied are waited for first, so every frame emptied from the log is in the snapshots.
+     */
+    public void checkpoint(Runnable saveSnapshots) {
+        boolean[] done = new boolean[1];
+        while (!done[0]) {
+            awaitApplied();
+            AdabasTransaction.exclusively(() -> {
+                lock.lock();
+                try {
+                    // a commit logged since is applied holding the gate, so waits for it outside
+                    if (unapplied == 0) {
+                        awaitDurable(appended);
+                        saveSnapshots.run();
+                        channel.truncate(0);
+                        channel.force(true);
+                        position = 0;
+                        done[0] = true;
+                    }
+                } catch (IOException e) {
+                    throw new NaturalException("Unable to checkpoint log " + path + ": " + e.getMessage());
+                } finally {
+                    lock.unlock();
+                }
+            });
+        }
+    }
+
+    private void awaitApplied() {
+        lock.lock();
+        try {
+            while (unapplied > 0) {
+                synced.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            awaitDurable(appended);
+            channel.close();
+        } catch (IOException e) {
+            throw new NaturalException("Unable to close log " + path + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The changes of one commit, encoded before the commit takes any lock
+     */
+    static class Batch {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int changes;
+
+        // a null record is a delete
+        void add(String store, int isn, byte[] record) {
+            try {
+                byte[] name = store.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeInt(isn);
+                out.writeInt(record == null ? -1 : record.length);
+                if (record != null) {
+                    out.write(record);
+                }
+                changes++;
+            } catch (IOException e) {
+                throw new NaturalException("Unable to log change to " + store + ": " + e.getMessage());
+            }
+        }
+
+        boolean isEmpty() {
+            return changes == 0;
+        }
+
+        private byte[] toFrame() {
+            byte[] payload = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + Integer.BYTES + payload.length);
+            frame.position(FRAME_HEADER).putInt(changes).put(payload);
+            crc.update(frame.array(), FRAME_HEADER, frame.position() - FRAME_HEADER);
+            frame.putInt(0, frame.position() - FRAME_HEADER).putInt(4, (int) crc.getValue());
+            return frame.array();
+        }
+    }
+}
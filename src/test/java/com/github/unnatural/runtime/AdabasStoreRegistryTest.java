@@ -0,0 +1,118 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import com.github.unnatural.runtime.nadabas.SampleView;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdabasStoreRegistryTest {
+    private static final String VIEW = "SAMPLE-VIEW";
+
+    @AfterEach
+    void tearDown() {
+        AdabasStoreRegistry.closeScope("tenant-a");
+        AdabasStoreRegistry.closeScope("tenant-b");
+    }
+
+    @Test
+    void storesAreLookedUpByNameAndType() {
+        AdabasStoreRegistry registry = AdabasStoreRegistry.scope("tenant-a");
+        AdabasStore<SampleView> store = registry.create(VIEW, SampleView.class);
+
+        assertSame(store, registry.get(VIEW, SampleView.class));
+        assertTrue(registry.find("OTHER", SampleView.class).isEmpty());
+        assertThrows(NaturalException.class, () -> registry.get("OTHER", SampleView.class));
+        assertThrows(NaturalException.class, () -> registry.get(VIEW, AdabasStoreTest.CountView.class));
+    }
+
+    @Test
+    void scopesAreIsolated() {
+        AdabasStoreRegistry tenantA = AdabasStoreRegistry.scope("tenant-a");
+        AdabasStoreRegistry tenantB = AdabasStoreRegistry.scope("tenant-b");
+        tenantA.run(() -> Unnatural.createStore(VIEW, SampleView.class));
+        tenantB.run(() -> Unnatural.createStore(VIEW, SampleView.class));
+
+        tenantA.run(() -> Unnatural.getStore(VIEW, SampleView.class).store(VIEW, new SampleView()));
+
+        assertEquals(1, tenantA.get(VIEW, SampleView.class).size());
+        assertEquals(0, tenantB.get(VIEW, SampleView.class).size());
+        assertTrue(AdabasStoreRegistry.global().find(VIEW, SampleView.class).isEmpty());
+        assertSame(AdabasStoreRegistry.global(), AdabasStoreRegistry.current());
+    }
+
+    @Test
+    void concurrentGetOrCreateSharesOneStore() {
+        AdabasStoreRegistry registry = AdabasStoreRegistry.scope("tenant-a");
+        List<AdabasStore<SampleView>> stores = IntStream.range(0, 16)
+                .mapToObj(i -> CompletableFuture.supplyAsync(() -> registry.getOrCreate(VIEW, SampleView.class)))
+                .toList().stream().map(CompletableFuture::join).toList();
+
+        stores.forEach(store -> assertSame(stores.get(0), store));
+    }
+
+    @Test
+    void indexReadAdaptsRecordsOfTheRegisteredStore() {
+        AdabasStoreRegistry registry = AdabasStoreRegistry.scope("tenant-a");
+        AdabasStore<AdabasStoreTest.IndexedView> store = registry.create(VIEW, AdabasStoreTest.IndexedView.class);
+        for (String code : List.of("B", "A", "C", "A")) {
+            AdabasStoreTest.IndexedView view = new AdabasStoreTest.IndexedView();
+            view.setCode(code);
+            view.setCount(code.charAt(0));
+            store.store(VIEW, view);
+        }
+
+        List<AdabasStoreTest.CountView> read = registry.call(() ->
+                Unnatural.indexRead(AdabasStoreTest.CountView.class, VIEW, "A", " ", new Descriptors("CODE")));
+
+        assertEquals(List.of(2, 4, 1, 3), read.stream().map(AdabasStoreTest.CountView::getIsn).toList());
+        assertEquals(List.of(65, 65, 66, 67), read.stream().map(AdabasStoreTest.CountView::getCount).toList());
+        assertThrows(NaturalException.class, () -> Unnatural.indexRead(AdabasStoreTest.CountView.class, VIEW, null, null, new DescriptorsAll()));
+    }
+
+    @Test
+    void indexReadReturnsCopiesOfRecordsOfTheViewClass() {
+        AdabasStoreRegistry registry = AdabasStoreRegistry.scope("tenant-a");
+        AdabasStore<AdabasStoreTest.IndexedView> store = registry.create(VIEW, AdabasStoreTest.IndexedView.class);
+        AdabasStoreTest.IndexedView stored = new AdabasStoreTest.IndexedView();
+        stored.setCode("A");
+        int isn = store.store(VIEW, stored);
+
+        List<AdabasStoreTest.IndexedView> read = registry.call(() ->
+                Unnatural.indexRead(AdabasStoreTest.IndexedView.class, VIEW, "A", "A", new Descriptors("CODE")));
+        read.get(0).setCode("B");
+
+        assertEquals("A", store.getByISN(isn).getCode());
+        assertEquals(1, store.readLogical("CODE", "A", "A").count());
+    }
+
+    @Test
+    void closedScopeStartsEmpty() {
+        AdabasStoreRegistry.scope("tenant-a").create(VIEW, SampleView.class);
+        AdabasStoreRegistry.closeScope("tenant-a");
+
+        assertTrue(AdabasStoreRegistry.scope("tenant-a").getNames().isEmpty());
+    }
+}
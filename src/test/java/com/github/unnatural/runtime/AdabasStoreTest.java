@@ -0,0 +1,652 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import com.github.unnatural.runtime.nadabas.SampleView;
+import lombok.Getter;
+import lombok.Setter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+import static com.github.unnatural.runtime.nadabas.SampleView.isns;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdabasStoreTest {
+    private static final String VIEW = "SAMPLE-VIEW";
+
+    private AdabasStore<SampleView> underTest;
+
+    @BeforeEach
+    void setUp() {
+        underTest = new AdabasStore<>();
+    }
+
+    @Test
+    void storeAllocatesAscendingIsns() {
+        int first = underTest.store(VIEW, SampleView.of("A"));
+        int second = underTest.store(VIEW, SampleView.of("B"));
+
+        assertEquals(1, first);
+        assertEquals(2, second);
+        assertEquals("B", underTest.getByISN(second).getMyString());
+        assertEquals("A", underTest.getByISN(new BigDecimal(first)).getMyString());
+    }
+
+    @Test
+    void canUpdate() {
+        SampleView view = SampleView.of("A");
+        int isn = underTest.store(VIEW, view);
+
+        SampleView update = SampleView.of("B");
+        update.setIsn(isn);
+        underTest.update(update);
+
+        assertEquals("B", underTest.getByISN(isn).getMyString());
+    }
+
+    @Test
+    void updateOfMissingRecordFails() {
+        SampleView view = SampleView.of("A");
+        view.setIsn(42);
+        assertThrows(NaturalException.class, () -> underTest.update(view));
+    }
+
+    @Test
+    void deletedRecordIsNotFound() {
+        SampleView view = SampleView.of("A");
+        int isn = underTest.store(VIEW, view);
+        underTest.delete(view);
+
+        assertThrows(NaturalException.class, () -> underTest.getByISN(isn));
+        assertEquals(0, underTest.size());
+    }
+
+    @Test
+    void purgedIsnsAreNotReusedByDefault() {
+        SampleView view = SampleView.of("A");
+        int isn = underTest.store(VIEW, view);
+        underTest.delete(view);
+
+        assertEquals(isn + 1, underTest.store(VIEW, SampleView.of("B")));
+    }
+
+    @Test
+    void purgedIsnsAreReusedWhenEnabled() {
+        AdabasStore<SampleView> reusing = new AdabasStore<>(true);
+        SampleView view = SampleView.of("A");
+        int isn = reusing.store(VIEW, view);
+        reusing.store(VIEW, SampleView.of("B"));
+        reusing.delete(view);
+
+        assertEquals(isn, reusing.store(VIEW, SampleView.of("C")));
+        assertEquals("C", reusing.getByISN(isn).getMyString());
+    }
+
+    @Test
+    void isnsSpanMultiplePages() {
+        for (int i = 0; i < 10000; i++) {
+            underTest.store(VIEW, SampleView.of(Integer.toString(i)));
+        }
+        assertEquals(10000, underTest.size());
+        assertEquals("9999", underTest.getByISN(10000).getMyString());
+    }
+
+    @Test
+    void persistentStoreSurvivesRestart(@TempDir Path dir) {
+        Path segment = dir.resolve("sample.seg");
+        AdabasStore<SampleView> persistent = AdabasStore.persistent(SampleView.class, segment);
+        SampleView first = SampleView.of("A");
+        SampleView second = SampleView.of("B");
+        persistent.store(VIEW, first);
+        persistent.store(VIEW, second);
+        first.setMyString("C");
+        persistent.update(first);
+        persistent.delete(second);
+        persistent.close();
+
+        AdabasStore<SampleView> reopened = AdabasStore.persistent(SampleView.class, segment);
+        assertEquals(1, reopened.size());
+        assertEquals("C", reopened.getByISN(first.getIsn()).getMyString());
+        assertThrows(NaturalException.class, () -> reopened.getByISN(second.getIsn()));
+        assertEquals(3, reopened.store(VIEW, SampleView.of("D")));
+        reopened.close();
+    }
+
+    @Test
+    void persistentStoreRecoversWithoutCheckpoint(@TempDir Path dir) throws Exception {
+        Path segment = dir.resolve("sample.seg");
+        AdabasStore<SampleView> persistent = AdabasStore.persistent(SampleView.class, segment);
+        for (int i = 0; i < 100; i++) {
+            persistent.store(VIEW, SampleView.of(Integer.toString(i)));
+        }
+        persistent.close();
+        Files.delete(dir.resolve("sample.seg.isn"));
+
+        AdabasStore<SampleView> reopened = AdabasStore.persistent(SampleView.class, segment);
+        assertEquals(100, reopened.size());
+        assertEquals("99", reopened.getByISN(100).getMyString());
+        assertEquals(1, reopened.readBy(VIEW, "MY-STRING = '42'").size());
+        reopened.close();
+    }
+
+    @Test
+    void snapshotRoundTripKeepsIsns(@TempDir Path dir) {
+        Path snapshot = dir.resolve("sample.snap");
+        AdabasStore<SampleView> store = new AdabasStore<>(SampleView.class);
+        for (int i = 0; i < 10; i++) {
+            store.store(VIEW, SampleView.of(i % 2 == 0 ? "Even" : null));
+        }
+        store.delete(store.getByISN(4));
+        assertEquals(9, store.saveSnapshot(snapshot));
+
+        AdabasStore<SampleView> loaded = new AdabasStore<>(SampleView.class);
+        assertEquals(9, loaded.loadSnapshot(snapshot));
+        assertEquals(9, loaded.size());
+        assertEquals("Even", loaded.getByISN(9).getMyString());
+        assertNull(loaded.getByISN(10).getMyString());
+        assertThrows(NaturalException.class, () -> loaded.getByISN(4));
+        assertEquals(11, loaded.store(VIEW, SampleView.of("New")));
+    }
+
+    @Test
+    void snapshotOfDifferentLayoutIsRejected(@TempDir Path dir) {
+        Path snapshot = dir.resolve("sample.snap");
+        AdabasStore<SampleView> store = new AdabasStore<>(SampleView.class);
+        store.store(VIEW, SampleView.of("A"));
+        store.saveSnapshot(snapshot);
+
+        assertThrows(NaturalException.class, () -> new AdabasStore<>(CountView.class).loadSnapshot(snapshot));
+    }
+
+    @Test
+    void recordsWithFieldsTheLayoutCannotHoldAreRejected(@TempDir Path dir) {
+        assertThrows(NaturalException.class, () -> AdabasStore.persistent(BoxedView.class, dir.resolve("boxed.seg")));
+        assertThrows(NaturalException.class, () -> new AdabasStore<>(BoxedView.class).saveSnapshot(dir.resolve("boxed.snap")));
+    }
+
+    @Test
+    void batchOperations() {
+        underTest.store(VIEW, SampleView.of("Single"));
+        List<SampleView> views = List.of(SampleView.of("A"), SampleView.of("B"), SampleView.of("C"));
+
+        assertArrayEquals(new int[]{2, 3, 4}, underTest.storeAll(VIEW, views));
+        assertEquals("C", underTest.getByISN(4).getMyString());
+
+        views.forEach(view -> view.setMyString(view.getMyString() + "2"));
+        assertArrayEquals(new int[]{2, 3, 4}, underTest.updateAll(views));
+        assertEquals(3, underTest.readBy(VIEW, "MY-STRING = 'A2' OR = 'B2' OR = 'C2'").size());
+
+        assertArrayEquals(new int[]{2, 4}, underTest.deleteAll(List.of(views.get(0), views.get(2), views.get(0))));
+        assertEquals(2, underTest.size());
+
+        SampleView missing = SampleView.of("X");
+        missing.setIsn(99);
+        assertThrows(NaturalException.class, () -> underTest.updateAll(List.of(views.get(1), missing)));
+        assertEquals("B2", underTest.getByISN(3).getMyString());
+    }
+
+    @Test
+    void descriptorIndexesServeQueriesAndCounts() {
+        AdabasStore<IndexedView> store = new AdabasStore<>(IndexedView.class);
+        for (int i = 0; i < 100; i++) {
+            IndexedView view = new IndexedView();
+            view.setCode("C" + i % 10);
+            view.setCount(i);
+            store.store(VIEW, view);
+        }
+        assertEquals(10, store.execCountQuery(AdabasOperation.SELECT_COUNT, VIEW, "CODE = 'C3'"));
+        assertEquals(30, store.execCountQuery(AdabasOperation.SELECT_COUNT, VIEW, "CODE = 'C3' THRU 'C5'"));
+        assertEquals(5, store.execCountQuery(AdabasOperation.SELECT_COUNT, VIEW, "CODE = 'C3' AND COUNT < 50"));
+
+        // a record changed in place is re-indexed under its new value
+        IndexedView changed = store.getByISN(4);
+        changed.setCode("C9");
+        store.update(changed);
+        assertEquals(9, store.execCountQuery(AdabasOperation.SELECT_COUNT, VIEW, "CODE = 'C3'"));
+        store.delete(store.getByISN(14));
+        assertEquals(8, store.execCountQuery(AdabasOperation.SELECT_COUNT, VIEW, "CODE = 'C3'"));
+        assertEquals(List.of(24, 34, 44, 54, 64, 74, 84, 94),
+                store.readBy(VIEW, "CODE = 'C3'").stream().map(IndexedView::getIsn).toList());
+    }
+
+    @Test
+    void logicalReadsFollowDescriptorValueThenIsn() {
+        AdabasStore<IndexedView> store = new AdabasStore<>(IndexedView.class);
+        for (int i = 0; i < 1000; i++) {
+            IndexedView view = new IndexedView();
+            view.setCode("C" + (999 - i) % 10);
+            view.setCount(i);
+            store.store(VIEW, view);
+        }
+        // more entries than one page of the index
+        List<IndexedView> read = store.readLogical("CODE", "C3", "C5").toList();
+        assertEquals(300, read.size());
+        for (int i = 1; i < read.size(); i++) {
+            IndexedView previous = read.get(i - 1);
+            IndexedView current = read.get(i);
+            int order = previous.getCode().compareTo(current.getCode());
+            assertTrue(order < 0 || order == 0 && previous.getIsn() < current.getIsn());
+        }
+        assertEquals("C3", read.get(0).getCode());
+        assertEquals(7, read.get(0).getIsn());
+
+        assertEquals(List.of(7, 17), store.indexRead(new Descriptors(1), "C3", null).limit(2).map(IndexedView::getIsn).toList());
+        assertEquals(List.of(9, 10, 11), store.indexRead(new DescriptorsAll(), 9, 11).map(IndexedView::getIsn).toList());
+        assertThrows(NaturalException.class, () -> store.indexRead(new Descriptors(2), null, null));
+
+        // a record changed while the read is in progress is read under its new value only
+        Iterator<IndexedView> cursor = store.readLogical("CODE", null, null).iterator();
+        assertEquals(10, cursor.next().getIsn());
+        IndexedView moved = store.getByISN(20);
+        moved.setCode("C9");
+        store.update(moved);
+        assertEquals(30, cursor.next().getIsn());
+
+        // a transaction reads its own snapshot in the same order
+        AdabasTransaction.begin();
+        try {
+            IndexedView changed = store.getByISN(1);
+            changed.setCode("C0");
+            store.update(changed);
+            assertEquals(List.of(1, 10, 30), store.readLogical("CODE", "C0", "C0").limit(3).map(IndexedView::getIsn).toList());
+        } finally {
+            AdabasTransaction.current().ifPresent(AdabasTransaction::backout);
+        }
+    }
+
+    @Test
+    void histogramReadsDistinctValuesFromTheIndex() {
+        AdabasStore<IndexedView> store = new AdabasStore<>(IndexedView.class);
+        for (int i = 0; i < 1000; i++) {
+            IndexedView view = new IndexedView();
+            view.setCode(String.format("C%03d", i % 400));
+            store.store(VIEW, view);
+        }
+        // more values than one page of the index
+        List<HistogramValue> values = store.histogram("CODE", null, null).toList();
+        assertEquals(400, values.size());
+        assertEquals(new HistogramValue("C000", 3), values.get(0));
+        assertEquals(new HistogramValue("C399", 2), values.get(399));
+        assertEquals(List.of(new HistogramValue("C198", 3), new HistogramValue("C199", 3), new HistogramValue("C200", 2)),
+                store.histogram("CODE", "C198", "C200").toList());
+
+        // a transaction counts the records of its snapshot
+        AdabasTransaction.begin();
+        try {
+            store.delete(store.getByISN(1));
+            assertEquals(new HistogramValue("C000", 2), store.histogram("CODE", "C000", "C000").findFirst().orElseThrow());
+        } finally {
+            AdabasTransaction.current().ifPresent(AdabasTransaction::backout);
+        }
+        assertThrows(NaturalException.class, () -> store.histogram("COUNT", null, null));
+    }
+
+    @Test
+    void pagedReadsResumeAfterEndTransaction() {
+        AdabasStore<IndexedView> store = new AdabasStore<>(IndexedView.class);
+        for (int i = 0; i < 1000; i++) {
+            IndexedView view = new IndexedView();
+            view.setCode("C" + i % 2);
+            view.setCount(i);
+            store.store(VIEW, view);
+        }
+        List<Integer> read = new ArrayList<>();
+        AdabasTransaction.begin();
+        try {
+            String continuation = null;
+            do {
+                ResultPage<IndexedView> page = store.readPage("CODE = 'C1'", 120, continuation);
+                assertTrue(page.records().size() == 120 || !page.hasMore());
+                for (IndexedView view : page.records()) {
+                    read.add(view.getIsn());
+                    view.setCount(-1);
+                    store.update(view);
+                }
+                AdabasTransaction.endCurrent();
+                continuation = page.continuation();
+            } while (continuation != null);
+        } finally {
+            AdabasTransaction.current().ifPresent(AdabasTransaction::backout);
+        }
+        assertEquals(IntStream.rangeClosed(1, 500).map(i -> i * 2).boxed().toList(), read);
+        assertEquals(500, store.execCountQuery(AdabasOperation.SELECT_COUNT, VIEW, "COUNT = -1"));
+
+        ResultPage<IndexedView> first = store.readLogicalPage("CODE", null, null, 499, null);
+        assertEquals(List.of(1, 3), first.records().stream().limit(2).map(IndexedView::getIsn).toList());
+        ResultPage<IndexedView> second = store.readLogicalPage("CODE", null, null, 499, first.continuation());
+        assertEquals(List.of(999, 2, 4), second.records().stream().limit(3).map(IndexedView::getIsn).toList());
+        ResultPage<IndexedView> last = store.readLogicalPage("CODE", null, null, 499, second.continuation());
+        assertEquals(List.of(998, 1000), last.records().stream().map(IndexedView::getIsn).toList());
+        assertFalse(last.hasMore());
+
+        assertThrows(NaturalException.class, () -> store.readPage("CODE = 'C1'", 10, first.continuation()));
+        assertThrows(NaturalException.class, () -> store.readPage("CODE = 'C1'", 10, "not a token"));
+    }
+
+    @Test
+    void retainedSetsAreRefinedAndReleasedAtEndTransaction() {
+        AdabasStore<IndexedView> store = new AdabasStore<>(IndexedView.class);
+        for (int i = 0; i < 1000; i++) {
+            IndexedView view = new IndexedView();
+            view.setCode("C" + i % 10);
+            view.setCount(i);
+            store.store(VIEW, view);
+        }
+        try {
+            assertEquals(200, store.retain("CODES", "CODE = 'C1' OR CODE = 'C2'"));
+            assertEquals(20, store.retain("SMALL", "CODES", "COUNT < 100"));
+            assertEquals(10, store.retain("ONES", "SMALL", "CODE = 'C1'"));
+
+            // the set keeps the ISNs found, records changed since are checked against the where clause again
+            IndexedView changed = store.getByISN(2);
+            changed.setCode("C5");
+            store.update(changed);
+            assertEquals(List.of(12, 22), store.readRetained("ONES", "CODE = 'C1'").limit(2).map(IndexedView::getIsn).toList());
+            assertEquals(10, store.readRetained("ONES", null).count());
+            assertThrows(NaturalException.class, () -> new AdabasStore<>(IndexedView.class).readRetained("ONES", null));
+
+            AdabasTransaction.endCurrent();
+            assertTrue(RetainedSets.getNames().isEmpty());
+            assertThrows(NaturalException.class, () -> store.readRetained("ONES", null));
+
+            RetainedSets.setMaxBytes(1024);
+            assertThrows(NaturalException.class, () -> store.retain("ALL", "COUNT >= 0"));
+        } finally {
+            RetainedSets.setMaxBytes(64L << 20);
+            RetainedSets.releaseAll();
+        }
+    }
+
+    @Test
+    void concurrentSessionsLoseNoUpdates() throws Exception {
+        int threads = 8;
+        int perThread = 2000;
+        int[] shared = IntStream.range(0, 4).map(i -> underTest.store(VIEW, SampleView.of("initial"))).toArray();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        Set<Integer> isns = ConcurrentHashMap.newKeySet();
+        List<Future<?>> sessions = new ArrayList<>();
+        for (int thread = 0; thread < threads; thread++) {
+            String prefix = "T" + thread + "-";
+            sessions.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < perThread; i++) {
+                    // every session updates the same few records, each time from a new view
+                    SampleView update = SampleView.of(prefix + i);
+                    update.setIsn(shared[i % shared.length]);
+                    underTest.update(update);
+
+                    int isn = underTest.store(VIEW, SampleView.of(prefix + "stored-" + i));
+                    assertTrue(isns.add(isn), "ISN allocated twice " + isn);
+                    if (i % 10 == 0) {
+                        SampleView purge = new SampleView();
+                        purge.setIsn(isn);
+                        underTest.delete(purge);
+                        isns.remove(isn);
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> session : sessions) {
+            session.get();
+        }
+        pool.shutdown();
+
+        // each shared record holds the last update some session made to it
+        Set<String> lastUpdates = new HashSet<>();
+        for (int thread = 0; thread < threads; thread++) {
+            for (int i = perThread - shared.length; i < perThread; i++) {
+                lastUpdates.add("T" + thread + "-" + i);
+            }
+        }
+        for (int i = 0; i < shared.length; i++) {
+            String value = underTest.getByISN(shared[i]).getMyString();
+            assertTrue(lastUpdates.contains(value), value);
+            assertEquals(i, Integer.parseInt(value.substring(value.indexOf('-') + 1)) % shared.length);
+        }
+        assertEquals(shared.length + threads * perThread * 9 / 10, underTest.size());
+        Set<Integer> found = new HashSet<>();
+        for (SampleView view : underTest.readBy(VIEW, "MY-STRING >= 'T'")) {
+            if (view.getMyString().contains("-stored-")) {
+                found.add(view.getIsn());
+            }
+        }
+        assertEquals(isns, found);
+    }
+
+    @Test
+    void updateRacingDeleteNeverBringsBackTheRecord() {
+        // the record is deleted just after the update has found it
+        AtomicReference<Runnable> afterRead = new AtomicReference<>();
+        AdabasStore<SampleView> store = new AdabasStore<>(SampleView.class, new IsnTable<>() {
+            @Override
+            public SampleView get(int isn) {
+                SampleView found = super.get(isn);
+                Runnable action = afterRead.getAndSet(null);
+                if (action != null) {
+                    action.run();
+                }
+                return found;
+            }
+        });
+        int isn = store.store(VIEW, SampleView.of("A"));
+        SampleView update = SampleView.of("B");
+        update.setIsn(isn);
+        afterRead.set(() -> store.delete(update));
+
+        assertThrows(NaturalException.class, () -> store.update(update));
+        assertThrows(NaturalException.class, () -> store.getByISN(isn));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void updateOfARecordDeletedSinceItWasReadFails() {
+        int isn = underTest.store(VIEW, SampleView.of("A"));
+        SampleView update = underTest.getByISN(isn);
+        update.setMyString("B");
+        AdabasTransaction transaction = AdabasTransaction.begin();
+        try {
+            assertEquals("A", underTest.getByISN(isn).getMyString());
+            Thread other = new Thread(() -> underTest.delete(update));
+            other.start();
+            assertDoesNotThrow(() -> other.join());
+            underTest.update(update);
+
+            assertThrows(NaturalException.class, transaction::commit);
+        } finally {
+            AdabasTransaction.current().ifPresent(AdabasTransaction::backout);
+        }
+        assertEquals(0, underTest.size());
+    }
+
+    @Test
+    void superDescriptorsServeEqualityPrefixAndRangeLookups() {
+        AdabasStore<RegionView> store = new AdabasStore<>(RegionView.class);
+        for (String regionName : List.of("N1 SMITH", "N1 SMITHSON", "N1 JONES", "S2 SMITH", "N1 SMITHERSTON")) {
+            RegionView view = new RegionView();
+            view.setRegion(regionName.substring(0, 2));
+            view.setName(regionName.substring(3));
+            store.store(VIEW, view);
+        }
+
+        assertEquals(List.of(1), isns(store.readBy(VIEW, "REGION-NAME = 'N1SMITH'")));
+        assertEquals(List.of(1, 2, 5), isns(store.readBy(VIEW, "REGION-NAME = 'N1SMITH' THRU 'N1SMITH'")));
+        assertEquals(List.of(1, 2, 4, 5), isns(store.readBy(VIEW, "NAME-INITIAL = 'S'")));
+        assertEquals(List.of(3, 1, 5, 2), isns(store.indexRead(new Descriptors("REGION-NAME"), "N1", "N1").toList()));
+
+        RegionView moved = store.getByISN(4);
+        moved.setRegion("N1");
+        store.update(moved);
+        assertEquals(List.of(3, 1, 4, 5, 2), isns(store.indexRead(new Descriptors("REGION-NAME"), "N1", "N1").toList()));
+        assertEquals(List.of("N1SMITHERS", "N1SMITHSON"), store.histogram("REGION-NAME", "N1SMITHE", null)
+                .map(value -> ((String) value.value()).trim()).toList());
+
+        assertThrows(NaturalException.class, () -> new AdabasStore<>(UnboundedSegmentView.class));
+    }
+
+    @Test
+    void multipleValueDescriptorsFollowUpdatesToTheirElements() {
+        AdabasStore<PhoneView> store = new AdabasStore<>(PhoneView.class);
+        for (String[] phones : List.of(new String[]{"111", "222"}, new String[]{"222"}, new String[]{"333", "111"})) {
+            PhoneView view = new PhoneView();
+            view.setPhone(phones);
+            store.store(VIEW, view);
+        }
+        assertEquals(List.of(1, 3), isns(store.readBy(VIEW, "PHONE = '111'")));
+
+        PhoneView changed = new PhoneView();
+        changed.setIsn(1);
+        changed.setPhone(new String[]{"444", "222"});
+        store.update(changed);
+        assertEquals(List.of(3), isns(store.readBy(VIEW, "PHONE = '111'")));
+        assertEquals(List.of(1), isns(store.readBy(VIEW, "PHONE = '444'")));
+        assertEquals(2, store.execCountQuery(null, VIEW, "PHONE = '222'"));
+    }
+
+    @Test
+    void multipleValueDescriptorsCountRecordsRatherThanElements() {
+        AdabasStore<PhoneView> store = new AdabasStore<>(PhoneView.class);
+        for (String[] phones : List.of(new String[]{"111", "222"}, new String[]{"333", "444"})) {
+            PhoneView view = new PhoneView();
+            view.setPhone(phones);
+            store.store(VIEW, view);
+        }
+        for (String where : List.of("PHONE = '111'", "PHONE NE '111'", "PHONE > '000'", "PHONE <= '222'",
+                "PHONE = '000' THRU '999'")) {
+            assertEquals(store.readBy(VIEW, where).size(), store.execCountQuery(null, VIEW, where), where);
+        }
+        assertEquals(2, store.execCountQuery(null, VIEW, "PHONE > '000'"));
+    }
+
+    @Test
+    void transactionsCountEachElementOfMultipleValueDescriptors() {
+        AdabasStore<PhoneView> store = new AdabasStore<>(PhoneView.class);
+        for (String[] phones : List.of(new String[]{"111", "222", "111"}, new String[]{"222"}, new String[]{"333"})) {
+            PhoneView view = new PhoneView();
+            view.setPhone(phones);
+            store.store(VIEW, view);
+        }
+        List<HistogramValue> committed = store.histogram("PHONE", "111", "222").toList();
+
+        AdabasTransaction transaction = AdabasTransaction.begin();
+        try {
+            assertEquals(committed, store.histogram("PHONE", "111", "222").toList());
+            assertEquals(List.of(new HistogramValue("111", 1), new HistogramValue("222", 2)), committed);
+
+            PhoneView changed = new PhoneView();
+            changed.setIsn(3);
+            changed.setPhone(new String[]{"333", "222"});
+            store.update(changed);
+            assertEquals(List.of(new HistogramValue("222", 3), new HistogramValue("333", 1)),
+                    store.histogram("PHONE", "2", null).toList());
+        } finally {
+            transaction.backout();
+        }
+    }
+
+    @Test
+    void recordsWithCollectionFieldsAreStoredAsCopies() {
+        AdabasStore<TaggedView> store = new AdabasStore<>(TaggedView.class);
+        TaggedView view = new TaggedView();
+        view.setTags(new ArrayList<>(List.of("A")));
+        int isn = store.store(VIEW, view);
+
+        view.getTags().add("B");
+        TaggedView read = store.getByISN(isn);
+        read.getTags().add("C");
+
+        assertEquals(List.of("A"), store.getByISN(isn).getTags());
+    }
+
+    @Getter
+    @Setter
+    public static class CountView implements AdabasRecord {
+        private int isn;
+        private int count;
+    }
+
+    @Getter
+    @Setter
+    public static class BoxedView implements AdabasRecord {
+        private int isn;
+        private Integer count;
+    }
+
+    @Getter
+    @Setter
+    public static class IndexedView implements AdabasRecord {
+        private int isn;
+        @Descriptor
+        private String code;
+        private int count;
+    }
+
+    @Getter
+    @Setter
+    @SuperDescriptor(name = "REGION-NAME", segments = {"REGION(1,2)", "NAME(1,8)"})
+    @SuperDescriptor(name = "NAME-INITIAL", segments = "NAME(1,1)")
+    public static class RegionView implements AdabasRecord {
+        private int isn;
+        private String region;
+        private String name;
+    }
+
+    @Getter
+    @Setter
+    @SuperDescriptor(name = "NAME-REGION", segments = {"NAME", "REGION(1,2)"})
+    public static class UnboundedSegmentView implements AdabasRecord {
+        private int isn;
+        private String region;
+        private String name;
+    }
+
+    @Getter
+    @Setter
+    public static class TaggedView implements AdabasRecord {
+        private int isn;
+        private List<String> tags;
+    }
+
+    @Getter
+    @Setter
+    public static class PhoneView implements AdabasRecord {
+        private int isn;
+        @Descriptor
+        private String[] phone;
+    }
+}
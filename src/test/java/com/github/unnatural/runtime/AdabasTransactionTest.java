@@ -0,0 +1,275 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import com.github.unnatural.runtime.nadabas.SampleView;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdabasTransactionTest {
+    private static final String VIEW = "SAMPLE-VIEW";
+
+    private AdabasStore<SampleView> store;
+
+    @BeforeEach
+    void setUp() {
+        store = new AdabasStore<>(SampleView.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        AdabasTransaction.current().ifPresent(AdabasTransaction::backout);
+    }
+
+    @Test
+    void changesArePrivateUntilCommit() {
+        AdabasTransaction transaction = AdabasTransaction.begin();
+        int isn = store.store(VIEW, SampleView.of("A"));
+
+        assertEquals("A", store.getByISN(isn).getMyString());
+        assertNull(inOtherSession(() -> valueOf(isn)));
+        assertEquals(0, store.size());
+
+        transaction.commit();
+        assertEquals("A", inOtherSession(() -> valueOf(isn)));
+        assertFalse(AdabasTransaction.current().isPresent());
+    }
+
+    @Test
+    void backoutDiscardsChanges() {
+        int isn = store.store(VIEW, SampleView.of("A"));
+        AdabasTransaction transaction = AdabasTransaction.begin();
+        SampleView update = SampleView.of("B");
+        update.setIsn(isn);
+        store.update(update);
+        int added = store.store(VIEW, SampleView.of("C"));
+
+        transaction.backout();
+
+        assertEquals("A", store.getByISN(isn).getMyString());
+        assertThrows(NaturalException.class, () -> store.getByISN(added));
+    }
+
+    @Test
+    void readsSeeSnapshotAtFirstAccess() {
+        int first = store.store(VIEW, SampleView.of("A"));
+        int second = store.store(VIEW, SampleView.of("B"));
+        AdabasTransaction transaction = AdabasTransaction.begin();
+        assertEquals("A", store.getByISN(first).getMyString());
+
+        inOtherSession(() -> {
+            SampleView update = SampleView.of("X");
+            update.setIsn(first);
+            store.update(update);
+            store.delete(store.getByISN(second));
+            return store.store(VIEW, SampleView.of("C"));
+        });
+
+        assertEquals("A", store.getByISN(first).getMyString());
+        assertEquals("B", store.getByISN(second).getMyString());
+        assertEquals(2, store.readBy(VIEW, "MY-STRING < 'Z'").size());
+        transaction.commit();
+
+        assertEquals("X", store.getByISN(first).getMyString());
+        assertEquals(2, store.readBy(VIEW, "MY-STRING < 'Z'").size());
+    }
+
+    @Test
+    void readByIncludesOwnChanges() {
+        store.store(VIEW, SampleView.of("A"));
+        AdabasTransaction.begin();
+        store.store(VIEW, SampleView.of("B"));
+        store.delete(store.getByISN(1));
+
+        assertEquals(1, store.readBy(VIEW, "MY-STRING < 'Z'").size());
+        assertEquals(1, inOtherSession(() -> store.readBy(VIEW, "MY-STRING < 'Z'").size()));
+    }
+
+    @Test
+    void conflictingCommitIsBackedOut() {
+        int isn = store.store(VIEW, SampleView.of("A"));
+        AdabasTransaction transaction = AdabasTransaction.begin();
+        SampleView update = store.getByISN(isn);
+        update.setMyString("B");
+
+        // changed after the snapshot but before this session held the record
+        inOtherSession(() -> {
+            SampleView other = SampleView.of("C");
+            other.setIsn(isn);
+            store.update(other);
+            return null;
+        });
+        store.update(update);
+
+        assertThrows(NaturalException.class, transaction::commit);
+        assertFalse(AdabasTransaction.current().isPresent());
+        assertEquals("C", store.getByISN(isn).getMyString());
+    }
+
+    @Test
+    void endTransactionCommitsAndContinues() {
+        AdabasTransaction.begin();
+        int isn = store.store(VIEW, SampleView.of("A"));
+        Unnatural.endTransaction();
+        assertTrue(AdabasTransaction.current().isPresent());
+        assertEquals("A", inOtherSession(() -> valueOf(isn)));
+
+        SampleView update = SampleView.of("B");
+        update.setIsn(isn);
+        store.update(update);
+        Unnatural.markCurrentTransactionForRollback();
+
+        assertEquals("A", store.getByISN(isn).getMyString());
+    }
+
+    @Test
+    void recordsReadForUpdateAreCopies() {
+        int isn = store.store(VIEW, SampleView.of("A"));
+        AdabasTransaction.begin();
+
+        SampleView view = store.getByISN(isn);
+        view.setMyString("B");
+        assertEquals("A", inOtherSession(() -> valueOf(isn)));
+        assertEquals("A", store.getByISN(isn).getMyString());
+        store.update(view);
+        view.setMyString("C");
+        assertEquals("B", store.getByISN(isn).getMyString());
+        assertEquals("A", inOtherSession(() -> valueOf(isn)));
+
+        AdabasTransaction.backoutCurrent();
+        assertEquals("A", store.getByISN(isn).getMyString());
+        assertEquals("A", inOtherSession(() -> valueOf(isn)));
+        assertEquals(1, store.readBy(VIEW, "MY-STRING = 'A'").size());
+    }
+
+    @Test
+    void failedEndTransactionContinuesInANewTransaction() {
+        int isn = store.store(VIEW, SampleView.of("A"));
+        AdabasTransaction.begin();
+        SampleView update = store.getByISN(isn);
+        update.setMyString("B");
+        inOtherSession(() -> {
+            SampleView other = store.getByISN(isn);
+            other.setMyString("C");
+            store.update(other);
+            return null;
+        });
+        store.update(update);
+
+        assertThrows(NaturalException.class, AdabasTransaction::endCurrent);
+        assertTrue(AdabasTransaction.current().isPresent());
+        SampleView retry = store.getByISN(isn);
+        retry.setMyString("D");
+        store.update(retry);
+        assertEquals("C", inOtherSession(() -> valueOf(isn)));
+        AdabasTransaction.endCurrent();
+        assertEquals("D", inOtherSession(() -> valueOf(isn)));
+    }
+
+    @Test
+    void sessionsWithoutATransactionCommitEachChange() {
+        Unnatural.endTransaction();
+        assertFalse(AdabasTransaction.current().isPresent());
+        int isn = store.store(VIEW, SampleView.of("A"));
+        assertEquals("A", inOtherSession(() -> valueOf(isn)));
+
+        Unnatural.markCurrentTransactionForRollback();
+        assertEquals("A", store.getByISN(isn).getMyString());
+    }
+
+    @Test
+    void snapshotsOnlyKeepHistoryInTheStoresTheyRead() {
+        AdabasStore<SampleView> other = new AdabasStore<>(SampleView.class);
+        int isn = store.store(VIEW, SampleView.of("A"));
+        int otherIsn = other.store(VIEW, SampleView.of("A"));
+        AdabasTransaction transaction = AdabasTransaction.begin();
+        assertEquals("A", store.getByISN(isn).getMyString());
+
+        inOtherSession(() -> {
+            for (String value : new String[]{"B", "C"}) {
+                SampleView update = SampleView.of(value);
+                update.setIsn(isn);
+                store.update(update);
+                update.setIsn(otherIsn);
+                other.update(update);
+            }
+            return null;
+        });
+
+        assertEquals("A", store.getByISN(isn).getMyString());
+        assertEquals(1, store.historySize());
+        assertEquals(0, other.historySize());
+        transaction.commit();
+        assertEquals(0, store.historySize());
+    }
+
+    @Test
+    void snapshotsTakenDuringCommitsSeeWholeCommits() throws Exception {
+        int first = store.store(VIEW, SampleView.of("0"));
+        int second = store.store(VIEW, SampleView.of("0"));
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        AtomicBoolean running = new AtomicBoolean(true);
+        try {
+            Future<?> updates = writer.submit(() -> {
+                for (int value = 1; running.get(); value++) {
+                    SampleView one = SampleView.of(Integer.toString(value));
+                    one.setIsn(first);
+                    SampleView two = SampleView.of(Integer.toString(value));
+                    two.setIsn(second);
+                    store.updateAll(List.of(one, two));
+                }
+            });
+            for (int i = 0; i < 2_000; i++) {
+                AdabasTransaction transaction = AdabasTransaction.begin();
+                String seen = store.getByISN(first).getMyString();
+                assertEquals(seen, store.getByISN(second).getMyString());
+                assertEquals(seen, store.getByISN(first).getMyString());
+                transaction.backout();
+            }
+            running.set(false);
+            updates.get();
+        } finally {
+            running.set(false);
+            writer.shutdown();
+        }
+    }
+
+    private String valueOf(int isn) {
+        try {
+            return store.getByISN(isn).getMyString();
+        } catch (NaturalException e) {
+            return null;
+        }
+    }
+
+    private static <R> R inOtherSession(Supplier<R> work) {
+        return CompletableFuture.supplyAsync(work).join();
+    }
+}
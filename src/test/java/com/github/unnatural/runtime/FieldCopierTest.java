@@ -0,0 +1,191 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FieldCopierTest {
+
+    @Test
+    void moveByNameCopiesSameNamedFields() {
+        Source src = new Source();
+        Moved dest = new Moved();
+
+        Unnatural.moveByName(src, dest);
+
+        assertEquals("ABC", dest.getName());
+        assertEquals(42, dest.getCount());
+        assertSame(src.getCodes(), dest.getCodes());
+    }
+
+    @Test
+    void moveByNameFailsForIncompatibleTypes() {
+        assertThrows(IllegalArgumentException.class, () -> Unnatural.moveByName(new Source(), new Mismatched()));
+        assertThrows(IllegalArgumentException.class, () -> FieldCopier.moveByName(Source.class, Mismatched.class));
+    }
+
+    @Test
+    void adaptByNameUsesCustomSettersAndCopiesIntoArrays() {
+        Source src = new Source();
+        Destination dest = new Destination();
+        dest.setCodes(new int[3]);
+
+        FieldCopier.adaptByName(Source.class, Destination.class).copy(src, dest);
+
+        assertEquals("ABC", dest.getName());
+        assertEquals("42", dest.getAmount().getText());
+        assertArrayEquals(new int[]{1, 2, 3}, dest.getCodes());
+        assertNotSame(src.getCodes(), dest.getCodes());
+    }
+
+    @Test
+    void copiersAreCachedPerClassPair() {
+        assertSame(FieldCopier.adaptByName(Source.class, Destination.class), FieldCopier.adaptByName(Source.class, Destination.class));
+        assertNotSame(FieldCopier.adaptByName(Source.class, Moved.class), FieldCopier.moveByName(Source.class, Moved.class));
+    }
+
+    @Test
+    void copyOfSharesNoMutableState() {
+        Extended record = new Extended();
+        record.setName("ABC");
+        record.setCodes(new int[]{1, 2});
+        record.getAmount().setFromInteger(7);
+        record.setNotes(new String[]{"X"});
+
+        Extended copy = FieldCopier.copyOf(record);
+        record.getCodes()[0] = 9;
+        record.getAmount().setFromInteger(8);
+        record.getNotes()[0] = "Y";
+
+        assertEquals("ABC", copy.getName());
+        assertArrayEquals(new int[]{1, 2}, copy.getCodes());
+        assertEquals("7", copy.getAmount().getText());
+        assertArrayEquals(new String[]{"X"}, copy.getNotes());
+        assertNull(FieldCopier.copyOf(null));
+    }
+
+    @Test
+    void copyOfCopiesCollectionsThroughTheirCopyConstructors() {
+        Tagged record = new Tagged();
+        record.setTags(new ArrayList<>(List.of("A", "B")));
+        record.setCounts(new TreeMap<>(Map.of("A", 1)));
+        record.setLinked(new LinkedList<>(List.of(1)));
+
+        Tagged copy = FieldCopier.copyOf(record);
+        record.getTags().add("C");
+        record.getCounts().put("B", 2);
+        record.getLinked().clear();
+
+        assertEquals(List.of("A", "B"), copy.getTags());
+        assertEquals(Map.of("A", 1), copy.getCounts());
+        assertEquals(List.of(1), copy.getLinked());
+        assertInstanceOf(LinkedList.class, copy.getLinked());
+    }
+
+    @Test
+    void copyOfRejectsFieldsItCannotCopy() {
+        assertThrows(NaturalException.class, () -> FieldCopier.checkCopyable(Dated.class));
+        assertThrows(NaturalException.class, () -> FieldCopier.checkCopyable(Holder.class));
+        assertThrows(NaturalException.class, () -> FieldCopier.checkCopyable(Linked.class));
+        assertThrows(NaturalException.class, () -> FieldCopier.copyOf(new Dated()));
+    }
+
+    @Getter
+    static class Source implements NaturalObject {
+        private final String name = "ABC";
+        private final int count = 42;
+        private final int amount = 42;
+        private final int[] codes = new int[]{1, 2, 3};
+    }
+
+    @Getter
+    @Setter
+    public static class Destination implements NaturalObject {
+        private String name;
+        private int count;
+        private NaturalAmount amount = new NaturalAmount();
+        private int[] codes;
+    }
+
+    @Getter
+    public static class Moved implements NaturalObject {
+        private String name;
+        private int count;
+        private int[] codes;
+    }
+
+    public static class Mismatched implements NaturalObject {
+        private String count;
+    }
+
+    @Getter
+    @Setter
+    public static class Extended extends Destination {
+        private String[] notes;
+    }
+
+    @Getter
+    @Setter
+    public static class Tagged {
+        private List<String> tags;
+        private SortedMap<String, Integer> counts;
+        private LinkedList<Integer> linked;
+    }
+
+    public static class Dated {
+        private Date changed = new Date();
+    }
+
+    public static class Holder {
+        private Unconstructable value;
+    }
+
+    public static class Unconstructable {
+        private final int value;
+
+        public Unconstructable(int value) {
+            this.value = value;
+        }
+    }
+
+    public static class Linked {
+        private Linked next;
+    }
+
+    @Getter
+    public static class NaturalAmount {
+        private String text;
+
+        public void setFromInteger(int value) {
+            text = Integer.toString(value);
+        }
+    }
+}
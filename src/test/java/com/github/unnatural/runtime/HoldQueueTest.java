@@ -0,0 +1,153 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import com.github.unnatural.runtime.nadabas.NadabasRepository;
+import com.github.unnatural.runtime.nadabas.SampleNadabas;
+import com.github.unnatural.runtime.nadabas.SampleView;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HoldQueueTest {
+    private final Object file = new Object();
+    private final ExecutorService sessions = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void tearDown() {
+        AdabasTransaction.current().ifPresent(AdabasTransaction::backout);
+        HoldQueue.releaseAll();
+        sessions.shutdownNow();
+    }
+
+    @Test
+    void holdsAreReleasedAtEndOfTransaction() {
+        HoldQueue.hold(file, 1);
+        HoldQueue.hold(file, 1);
+        HoldQueue.hold(file, 2);
+        assertEquals(2, HoldQueue.size());
+        assertTrue(HoldQueue.isHeld(file, 1));
+        assertFalse(HoldQueue.isHeld(new Object(), 1));
+
+        AdabasTransaction.endCurrent();
+        assertEquals(0, HoldQueue.size());
+        assertFalse(HoldQueue.isHeld(file, 1));
+
+        HoldQueue.hold(file, 1);
+        AdabasTransaction.backoutCurrent();
+        assertFalse(HoldQueue.isHeld(file, 1));
+    }
+
+    @Test
+    void otherSessionsWaitForTheRecord() throws Exception {
+        HoldQueue.hold(file, 1);
+        Future<Boolean> waiting = sessions.submit(() -> {
+            HoldQueue.hold(file, 1);
+            return HoldQueue.isHeld(file, 1);
+        });
+        assertThrows(ExecutionException.class, () -> inOtherSession(() -> HoldQueue.hold(file, 1, 0)));
+        assertThrows(TimeoutException.class, () -> waiting.get(50, TimeUnit.MILLISECONDS));
+
+        HoldQueue.releaseAll();
+        assertTrue(waiting.get(5, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> inOtherSession(() -> HoldQueue.hold(file, 1, 20)));
+    }
+
+    @Test
+    void deadlockedSessionFails() throws Exception {
+        HoldQueue.hold(file, 1);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        Future<?> other = sessions.submit(() -> {
+            HoldQueue.hold(file, 2);
+            first.complete(null);
+            HoldQueue.hold(file, 1);
+            return null;
+        });
+        first.get(5, TimeUnit.SECONDS);
+
+        // without waiting, a hold fails as a timeout until the other session is blocked on this one's record
+        NaturalException deadlock;
+        do {
+            deadlock = assertThrows(NaturalException.class, () -> HoldQueue.hold(file, 2, 0));
+        } while (!deadlock.getMessage().startsWith("Deadlock"));
+        assertTrue(HoldQueue.isHeld(file, 1));
+        AdabasTransaction.backoutCurrent();
+        other.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void changesWithoutATransactionHoldOnlyWhileTheyRun() throws Exception {
+        AdabasStore<SampleView> store = new AdabasStore<>(SampleView.class);
+        NadabasRepository<SampleNadabas> repository = new NadabasRepository<>(SampleNadabas.class);
+        SampleView view = SampleView.of("A");
+        int isn = store.store("SAMPLE-VIEW", view);
+        int repositoryIsn = repository.store(SampleView.of("A"));
+
+        store.update(view);
+        repository.update(repository.getByIsn(SampleView.class, repositoryIsn));
+        assertEquals(0, HoldQueue.size());
+        inOtherSession(() -> {
+            HoldQueue.hold(store, isn, 0);
+            HoldQueue.hold(repository, repositoryIsn, 0);
+            HoldQueue.releaseAll();
+        });
+
+        // a record the session held before keeps its hold
+        store.hold(isn);
+        store.delete(view);
+        assertTrue(HoldQueue.isHeld(store, isn));
+    }
+
+    @Test
+    void changesInATransactionHoldUntilItEnds() throws Exception {
+        AdabasStore<SampleView> store = new AdabasStore<>(SampleView.class);
+        SampleView view = SampleView.of("A");
+        int isn = store.store("SAMPLE-VIEW", view);
+
+        AdabasTransaction.begin();
+        store.update(view);
+        assertThrows(ExecutionException.class, () -> inOtherSession(() -> HoldQueue.hold(store, isn, 0)));
+
+        AdabasTransaction.endCurrent();
+        assertFalse(HoldQueue.isHeld(store, isn));
+        inOtherSession(() -> {
+            HoldQueue.hold(store, isn, 0);
+            HoldQueue.releaseAll();
+        });
+    }
+
+    // on a new thread, as pooled threads keep the holds of the tasks they ran
+    private static void inOtherSession(Runnable action) throws Exception {
+        ExecutorService session = Executors.newSingleThreadExecutor();
+        try {
+            session.submit(action).get();
+        } finally {
+            session.shutdown();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.BinaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IsnBitmapTest {
+
+    @Test
+    void setOperationsMatchSortedSets() {
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            TreeSet<Integer> left = randomIsns(random);
+            TreeSet<Integer> right = randomIsns(random);
+            IsnBitmap leftBitmap = bitmap(left);
+            IsnBitmap rightBitmap = bitmap(right);
+
+            assertSameIsns(combine(left, right, (a, b) -> { a.retainAll(b); return a; }), leftBitmap.and(rightBitmap));
+            assertSameIsns(combine(left, right, (a, b) -> { a.addAll(b); return a; }), leftBitmap.or(rightBitmap));
+            assertSameIsns(combine(left, right, (a, b) -> { a.removeAll(b); return a; }), leftBitmap.andNot(rightBitmap));
+            assertSameIsns(combine(right, left, (a, b) -> { a.removeAll(b); return a; }), leftBitmap.not(rightBitmap));
+            assertEquals(leftBitmap, IsnBitmap.ofSorted(left.stream().mapToInt(Integer::intValue).toArray()));
+        }
+    }
+
+    @Test
+    void denseAndSparseChunks() {
+        IsnBitmap.Builder builder = new IsnBitmap.Builder();
+        for (int isn = 100_000; isn > 0; isn--) {
+            builder.add(isn);
+        }
+        IsnBitmap dense = builder.build();
+        IsnBitmap sparse = IsnBitmap.of(5, 70_000, 1 << 30);
+
+        assertEquals(100_000, dense.cardinality());
+        assertTrue(dense.contains(65_536));
+        assertFalse(dense.contains(0));
+        assertArrayEquals(new int[]{5, 70_000}, dense.and(sparse).toArray());
+        assertEquals(100_001, dense.or(sparse).cardinality());
+        assertEquals(99_998, dense.andNot(sparse).cardinality());
+        assertTrue(dense.andNot(dense).isEmpty());
+        assertThrows(NaturalException.class, () -> IsnBitmap.of(-1));
+    }
+
+    // a mix of sparse and dense 65536 ISN chunks
+    private static TreeSet<Integer> randomIsns(Random random) {
+        TreeSet<Integer> isns = new TreeSet<>();
+        for (int chunk = 0; chunk < 4; chunk++) {
+            int count = random.nextBoolean() ? random.nextInt(100) : 4000 + random.nextInt(20_000);
+            for (int i = 0; i < count; i++) {
+                isns.add(chunk << 16 | random.nextInt(1 << 16));
+            }
+        }
+        return isns;
+    }
+
+    private static IsnBitmap bitmap(TreeSet<Integer> isns) {
+        IsnBitmap.Builder builder = new IsnBitmap.Builder();
+        isns.descendingSet().forEach(builder::add);
+        return builder.build();
+    }
+
+    private static TreeSet<Integer> combine(TreeSet<Integer> left, TreeSet<Integer> right, BinaryOperator<TreeSet<Integer>> operation) {
+        return operation.apply(new TreeSet<>(left), right);
+    }
+
+    private static void assertSameIsns(TreeSet<Integer> expected, IsnBitmap actual) {
+        assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), actual.toArray());
+        assertEquals(expected.size(), actual.cardinality());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import com.github.unnatural.runtime.nadabas.SampleView;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.github.unnatural.runtime.nadabas.SampleView.isns;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RepositoryTest {
+    private static final String VIEW = "SAMPLE-VIEW";
+
+    @Test
+    void repositoriesWithoutPagingRejectPagedReadsAndDeletes() {
+        ListRepository repository = new ListRepository();
+        SampleView view = SampleView.of("Value 0");
+        repository.store(view);
+
+        assertThrows(NaturalException.class, () -> repository.readPage(VIEW, SampleView.class, "MY-STRING > 'Value'", 3, null));
+        assertThrows(NaturalException.class, () -> repository.delete(view));
+    }
+
+    @Test
+    void setsAreRetainedFromTheRecordsOfRepositoriesWithoutIndexes() {
+        ListRepository repository = new ListRepository();
+        for (int i = 0; i < 5; i++) {
+            repository.store(SampleView.of("Value " + i));
+        }
+        try {
+            assertEquals(3, repository.retain(VIEW, SampleView.class, "LATER", null, "MY-STRING >= 'Value 2'"));
+            // refining reads only the retained records
+            int scans = repository.scans;
+            assertEquals(2, repository.retain(VIEW, SampleView.class, "REFINED", "LATER", "MY-STRING < 'Value 4'"));
+            assertEquals(scans, repository.scans);
+            assertEquals(List.of(3, 4), isns(repository.readRetained(VIEW, SampleView.class, "REFINED", null)
+                    .collect(Collectors.toList())));
+            assertEquals(List.of(5), isns(repository.readRetained(VIEW, SampleView.class, "LATER", "MY-STRING = {value}",
+                    "Value 4").collect(Collectors.toList())));
+        } finally {
+            repository.releaseSets();
+        }
+    }
+
+    // a repository implementing only the methods Repository has always had
+    private static class ListRepository implements Repository {
+        private final List<SampleView> records = new ArrayList<>();
+        private int scans;
+
+        @Override
+        public <E extends AdabasRecord> List<E> readBy(String viewName, Class<E> viewClazz, String where, Object... params) {
+            scans++;
+            WhereClause.Query<E> query = WhereClause.compile(where).bind(viewClazz, params);
+            return records.stream().map(viewClazz::cast).filter(query).collect(Collectors.toList());
+        }
+
+        @Override
+        public <E extends AdabasRecord> List<E> readByWithCount(String viewName, Class<E> viewClazz, String where,
+                                                               int count, Object... params) {
+            return readBy(viewName, viewClazz, where, params).stream().limit(count).collect(Collectors.toList());
+        }
+
+        @Override
+        public <E extends AdabasRecord> E getByISN(int isn, Class<E> viewClazz) {
+            return viewClazz.cast(records.get(isn - 1));
+        }
+
+        @Override
+        public <E extends AdabasRecord> void update(E record) {
+            records.set(record.getIsn() - 1, (SampleView) record);
+        }
+
+        @Override
+        public <E extends AdabasRecord> int store(E record) {
+            records.add((SampleView) record);
+            record.setIsn(records.size());
+            return record.getIsn();
+        }
+
+        @Override
+        public <E extends AdabasRecord> int count(String viewName, Class<E> viewClazz, String where, Object... params) {
+            return readBy(viewName, viewClazz, where, params).size();
+        }
+    }
+}
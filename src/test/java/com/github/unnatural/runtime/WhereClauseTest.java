@@ -0,0 +1,266 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WhereClauseTest {
+    private static final Person SMITH = new Person("SMITH", "LONDON", 42, new BigDecimal("10.50"));
+    private static final Person JONES = new Person("JONES", "LEEDS", 17, new BigDecimal("3.00"));
+
+    @Test
+    void placeholderEquality() {
+        WhereClause.Query<Person> query = WhereClause.compile("NAME = {name}").bind(Person.class, "SMITH");
+        assertTrue(query.test(SMITH));
+        assertFalse(query.test(JONES));
+    }
+
+    @Test
+    void literalsAndBooleanOperators() {
+        WhereClause.Query<Person> query = WhereClause.compile("CITY = 'LONDON' OR (AGE LT 18 AND NOT NAME = 'SMITH')")
+                .bind(Person.class);
+        assertTrue(query.test(SMITH));
+        assertTrue(query.test(JONES));
+        assertFalse(query.test(new Person("BROWN", "YORK", 30, BigDecimal.ZERO)));
+    }
+
+    @Test
+    void thruButNot() {
+        WhereClause where = WhereClause.compile("NAME = {from} THRU {to} BUT NOT 'KING'");
+        assertTrue(where.bind(Person.class, "A", "M").test(JONES));
+        assertFalse(where.bind(Person.class, "A", "M").test(new Person("KING", "", 0, BigDecimal.ZERO)));
+        assertFalse(where.bind(Person.class, "A", "M").test(SMITH));
+    }
+
+    @Test
+    void fieldRepeatedForOrAlternatives() {
+        WhereClause.Query<Person> query = WhereClause.compile("CITY = 'YORK' OR = 'LEEDS'").bind(Person.class);
+        assertTrue(query.test(JONES));
+        assertFalse(query.test(SMITH));
+    }
+
+    @Test
+    void operandsAreConvertedToFieldType() {
+        assertTrue(WhereClause.compile("BALANCE > 10").bind(Person.class).test(SMITH));
+        assertTrue(WhereClause.compile("AGE >= {age}").bind(Person.class, new BigDecimal("42")).test(SMITH));
+        assertTrue(WhereClause.compile("AGE <> {age}").bind(Person.class, 41).test(SMITH));
+        assertTrue(WhereClause.compile("AGE = {age}").bind(Person.class, new BigDecimal("42.0")).test(SMITH));
+    }
+
+    @Test
+    void fractionalOperandsForIntegerFieldsAreRejected() {
+        assertThrows(NaturalException.class, () -> WhereClause.compile("AGE = 42.5").bind(Person.class).test(SMITH));
+        assertThrows(NaturalException.class,
+                () -> WhereClause.compile("AGE < {age}").bind(Person.class, new BigDecimal("42.5")).test(SMITH));
+    }
+
+    @Test
+    void literalsBeyondIntRangeAreCheckedAgainstTheFieldType() {
+        Measurement measurement = new Measurement(3_000_000_000L, 1.5, 2.5f, (short) 300, (byte) 7);
+        assertTrue(WhereClause.compile("ID = 3000000000").bind(Measurement.class).test(measurement));
+        assertThrows(NaturalException.class, () -> WhereClause.compile("ID = 99999999999999999999").bind(Measurement.class));
+        assertThrows(NaturalException.class, () -> WhereClause.compile("AGE = 3000000000").bind(Person.class).test(SMITH));
+    }
+
+    @Test
+    void operandsAreConvertedToEveryNumericFieldType() {
+        Measurement measurement = new Measurement(1L, 1.5, 2.5f, (short) 300, (byte) 7);
+        for (String where : List.of("WEIGHT > 1", "WEIGHT = 1.5", "HEIGHT < 3", "HEIGHT = {height}", "COUNT = 300",
+                "GRADE = 5 THRU 7")) {
+            assertTrue(WhereClause.compile(where).bind(Measurement.class, new BigDecimal("2.5")).test(measurement), where);
+        }
+        assertThrows(NaturalException.class, () -> WhereClause.compile("GRADE = 300").bind(Measurement.class));
+        assertThrows(NaturalException.class, () -> WhereClause.compile("WEIGHT = 'HEAVY'").bind(Measurement.class));
+    }
+
+    @Test
+    void placeholdersAreReused() {
+        WhereClause where = WhereClause.compile("NAME = {name} OR CITY = {name}");
+        assertEquals(1, where.getPlaceholders().size());
+        assertSame(where, WhereClause.compile("NAME = {name} OR CITY = {name}"));
+    }
+
+    @Test
+    void compiledClauseCacheIsBounded() {
+        for (int age = 0; age < WhereClause.MAX_COMPILED + 100; age++) {
+            WhereClause.compile("AGE = " + age);
+        }
+        assertEquals(WhereClause.MAX_COMPILED, WhereClause.cachedCount());
+    }
+
+    @Test
+    void invalidClausesAreRejected() {
+        assertThrows(NaturalException.class, () -> WhereClause.compile("NAME = "));
+        assertThrows(NaturalException.class, () -> WhereClause.compile("NAME > 'A' THRU 'B'"));
+        assertThrows(NaturalException.class, () -> WhereClause.compile("UNKNOWN = 1").bind(Person.class));
+        assertThrows(NaturalException.class, () -> WhereClause.compile("NAME = {name}").bind(Person.class));
+    }
+
+    @Test
+    void indexedClausesAreCountedWithoutRecords() {
+        List<IndexedPerson> people = List.of(new IndexedPerson("SMITH", "LONDON", 42), new IndexedPerson("JONES", "LEEDS", 17),
+                new IndexedPerson("BROWN", "LONDON", 30), new IndexedPerson("KING", null, 65));
+        DescriptorIndexes<IndexedPerson> indexes = new DescriptorIndexes<>(IndexedPerson.class);
+        for (int isn = 1; isn <= people.size(); isn++) {
+            indexes.add(isn, people.get(isn - 1));
+        }
+
+        for (String where : List.of("CITY = 'LONDON'", "CITY <> 'LONDON'", "NAME > 'JONES'", "NAME = 'A' THRU 'K'",
+                "CITY = 'LONDON' AND NAME < 'M'", "CITY = 'LEEDS' OR NAME = 'KING'", "NOT CITY = 'LONDON'",
+                "NAME = 'A' THRU 'Z' BUT NOT 'KING'")) {
+            WhereClause.Query<IndexedPerson> query = WhereClause.compile(where).bind(IndexedPerson.class);
+            assertEquals(people.stream().filter(query).count(), query.count(indexes).orElseThrow(), where);
+        }
+        assertTrue(WhereClause.compile("CITY = 'LONDON' AND AGE > 40").bind(IndexedPerson.class).count(indexes).isEmpty());
+    }
+
+    @Test
+    void indexedConditionsCombineIsnSetsBeforeReadingRecords() {
+        DescriptorIndexes<IndexedPerson> indexes = new DescriptorIndexes<>(IndexedPerson.class);
+        for (int isn = 1; isn <= 200_000; isn++) {
+            indexes.add(isn, new IndexedPerson(isn % 3 == 0 ? "SMITH" : "JONES", isn % 5 == 0 ? "LONDON" : "LEEDS", isn % 90));
+        }
+
+        WhereClause.Query<IndexedPerson> query = WhereClause.compile("(NAME = 'SMITH' OR CITY = 'LONDON') AND NOT NAME = 'JONES' AND AGE > 10")
+                .bind(IndexedPerson.class);
+        IsnBitmap matches = WhereClause.compile("(NAME = 'SMITH' OR CITY = 'LONDON') AND NOT NAME = 'JONES'")
+                .bind(IndexedPerson.class).matches(indexes).orElseThrow();
+        int[] candidates = query.candidates(indexes).orElseThrow();
+
+        assertEquals(66_666, matches.cardinality());
+        assertArrayEquals(matches.toArray(), candidates);
+        assertTrue(query.matches(indexes).isEmpty());
+    }
+
+    @Test
+    void columnarScansMatchTheRecordPredicates() {
+        ColumnarRecordStorage<Person> columns = new ColumnarRecordStorage<>(Person.class);
+        List<String> cities = Arrays.asList("LONDON", "LEEDS", "YORK", null);
+        for (int isn = 1; isn <= 5_000; isn++) {
+            columns.store(isn, new Person(isn % 7 == 0 ? "SMITH" : "JONES", cities.get(isn % 4), isn % 90, BigDecimal.valueOf(isn % 13)));
+        }
+        columns.delete(14);
+
+        for (String where : List.of("NAME = 'SMITH'", "CITY = 'LONDON' OR = 'YORK'", "AGE > 40 AND NOT CITY = 'LEEDS'",
+                "NAME = 'A' THRU 'K' AND BALANCE < 5", "CITY <> 'YORK'", "NOT (NAME = 'SMITH' OR AGE < 10)")) {
+            WhereClause.Query<Person> query = WhereClause.compile(where).bind(Person.class);
+            int[] expected = IntStream.rangeClosed(1, 5_000)
+                    .filter(isn -> columns.contains(isn) && query.test(columns.get(isn))).toArray();
+            assertArrayEquals(expected, query.scan(columns).toArray(), where);
+        }
+        Person assembled = columns.get(21);
+        assertEquals(List.of("SMITH", "LEEDS", 21, BigDecimal.valueOf(8)),
+                List.of(assembled.getName(), assembled.getCity(), assembled.getAge(), assembled.getBalance()));
+        assertNull(columns.get(14));
+        assertEquals(4_999, columns.size());
+    }
+
+    @Test
+    void columnarStorageRejectsFieldsItCannotSet() {
+        assertThrows(NaturalException.class, () -> new ColumnarRecordStorage<>(Point.class));
+    }
+
+    @Test
+    void multipleValueFieldsAreIndexedByElement() {
+        DescriptorIndexes<Contact> indexes = new DescriptorIndexes<>(Contact.class);
+        List<Contact> contacts = List.of(new Contact(new String[]{"A", "B", "A"}, new int[]{1, 2}),
+                new Contact(new String[]{"B"}, new int[]{3}), new Contact(new String[0], null), new Contact(new String[]{"C"}, new int[]{2, 2}));
+        for (int isn = 1; isn <= contacts.size(); isn++) {
+            indexes.add(isn, contacts.get(isn - 1));
+        }
+
+        for (String where : List.of("PHONE = 'A'", "PHONE = 'B' OR CODE > 2", "CODE = 2 AND NOT PHONE = 'A'", "PHONE <> 'B'", "CODE = 1 THRU 2")) {
+            WhereClause.Query<Contact> query = WhereClause.compile(where).bind(Contact.class);
+            int[] expected = IntStream.rangeClosed(1, contacts.size()).filter(isn -> query.test(contacts.get(isn - 1))).toArray();
+            assertArrayEquals(expected, query.matches(indexes).orElseThrow().toArray(), where);
+        }
+        ElementIndex phones = (ElementIndex) indexes.find("PHONE").orElseThrow();
+        assertEquals(List.of(new ElementIndex.Occurrence(1, 1), new ElementIndex.Occurrence(1, 3)), phones.occurrences("A"));
+        assertEquals(1, phones.countEqualTo("A"));
+
+        DescriptorIndexes<Contact> batch = new DescriptorIndexes<>(Contact.class);
+        batch.addAll(new int[]{1, 2, 3, 4}, contacts);
+        ElementIndex batchPhones = (ElementIndex) batch.find("PHONE").orElseThrow();
+        for (String phone : new String[]{"A", "B", "C", null}) {
+            assertEquals(phones.equalTo(phone), batchPhones.equalTo(phone));
+            assertEquals(phones.occurrences(phone), batchPhones.occurrences(phone));
+        }
+
+        // an update replaces the elements the record was indexed under
+        Object[] before = indexes.values(contacts.get(0));
+        contacts.get(0).getPhone()[2] = "C";
+        indexes.remove(1, before);
+        indexes.add(1, contacts.get(0));
+        assertEquals(List.of(new ElementIndex.Occurrence(1, 1)), phones.occurrences("A"));
+        assertEquals(List.of(new ElementIndex.Occurrence(1, 3), new ElementIndex.Occurrence(4, 1)), phones.occurrences("C"));
+        assertThrows(NaturalException.class, () -> indexes.value(phones, contacts.get(0)));
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static class IndexedPerson {
+        @Descriptor
+        private String name;
+        @Descriptor
+        private String city;
+        private int age;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    @NoArgsConstructor
+    static class Person {
+        private String name;
+        private String city;
+        private int age;
+        private BigDecimal balance;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static class Contact {
+        @Descriptor
+        private String[] phone;
+        @Descriptor
+        private int[] code;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static class Measurement {
+        private long id;
+        private double weight;
+        private float height;
+        private short count;
+        private byte grade;
+    }
+
+    record Point(int x, int y) {
+    }
+}
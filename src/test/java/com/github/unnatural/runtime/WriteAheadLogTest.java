@@ -0,0 +1,214 @@
+/*
+Unnatural support library
+
+Copyright 2024 Chris Humphreys, https://github.com/chrishumphreys/unnatural-runtime
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+documentation files (the “Software”), to deal in the Software without restriction, including without limitation the
+rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit
+persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.github.unnatural.runtime;
+
+import com.github.unnatural.runtime.nadabas.SampleView;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteAheadLogTest {
+    private static final String VIEW = "SAMPLE-VIEW";
+
+    @AfterEach
+    void tearDown() {
+        AdabasTransaction.current().ifPresent(AdabasTransaction::backout);
+    }
+
+    @Test
+    void logReplaysCommitsOntoTheLastSnapshot(@TempDir Path dir) {
+        Path snapshot = dir.resolve("sample.snap");
+        AdabasStore<SampleView> store = new AdabasStore<>(SampleView.class);
+        store.store(VIEW, SampleView.of("A"));
+        store.store(VIEW, SampleView.of("B"));
+        store.saveSnapshot(snapshot);
+
+        WriteAheadLog log = new WriteAheadLog(dir.resolve("sample.wal"));
+        log.attach(VIEW, store);
+        store.store(VIEW, SampleView.of("C"));
+        AdabasTransaction transaction = AdabasTransaction.begin();
+        store.update(SampleView.of(1, "A2"));
+        store.delete(store.getByISN(2));
+        transaction.commit();
+        AdabasTransaction.begin();
+        store.update(SampleView.of(3, "Discarded"));
+        AdabasTransaction.backoutCurrent();
+        AdabasTransaction.current().ifPresent(AdabasTransaction::backout);
+        log.close();
+
+        AdabasStore<SampleView> recovered = new AdabasStore<>(SampleView.class);
+        recovered.loadSnapshot(snapshot);
+        WriteAheadLog reopened = new WriteAheadLog(dir.resolve("sample.wal"));
+        reopened.attach(VIEW, recovered);
+        assertEquals(2, reopened.replay());
+        assertEquals(2, recovered.size());
+        assertEquals("A2", recovered.getByISN(1).getMyString());
+        assertEquals("C", recovered.getByISN(3).getMyString());
+        assertThrows(NaturalException.class, () -> recovered.getByISN(2));
+        assertEquals(4, recovered.store(VIEW, SampleView.of("D")));
+        reopened.close();
+    }
+
+    @Test
+    void tornTailIsDiscarded(@TempDir Path dir) throws Exception {
+        Path path = dir.resolve("sample.wal");
+        WriteAheadLog log = new WriteAheadLog(path);
+        AdabasStore<SampleView> store = new AdabasStore<>(SampleView.class);
+        log.attach(VIEW, store);
+        store.store(VIEW, SampleView.of("A"));
+        log.close();
+        long complete = Files.size(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 1, 0, 7, 7}));
+        }
+
+        AdabasStore<SampleView> recovered = new AdabasStore<>(SampleView.class);
+        WriteAheadLog reopened = new WriteAheadLog(path);
+        reopened.attach(VIEW, recovered);
+        assertEquals(1, reopened.replay());
+        assertEquals(complete, Files.size(path));
+        recovered.store(VIEW, SampleView.of("B"));
+        reopened.close();
+
+        AdabasStore<SampleView> again = new AdabasStore<>(SampleView.class);
+        WriteAheadLog last = new WriteAheadLog(path);
+        last.attach(VIEW, again);
+        assertEquals(2, last.replay());
+        assertEquals("B", again.getByISN(2).getMyString());
+        last.close();
+    }
+
+    @Test
+    void concurrentCommitsShareSyncs(@TempDir Path dir) throws Exception {
+        int sessions = 8;
+        int rounds = 50;
+        AdabasStore<SampleView> store = new AdabasStore<>(SampleView.class);
+        WriteAheadLog log = new WriteAheadLog(dir.resolve("sample.wal"));
+        log.attach(VIEW, store);
+        ExecutorService executor = Executors.newFixedThreadPool(sessions);
+        // each round every session commits at once, so commits queue behind the one syncing
+        CyclicBarrier round = new CyclicBarrier(sessions);
+        List<Future<?>> running = new ArrayList<>();
+        for (int session = 0; session < sessions; session++) {
+            running.add(executor.submit(() -> {
+                for (int i = 0; i < rounds; i++) {
+                    AdabasTransaction transaction = AdabasTransaction.begin();
+                    store.store(VIEW, SampleView.of("T" + i));
+                    round.await();
+                    transaction.commit();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> session : running) {
+            session.get();
+        }
+        executor.shutdown();
+        log.close();
+        assertTrue(log.getSyncs() < sessions * rounds, "syncs " + log.getSyncs());
+
+        AdabasStore<SampleView> recovered = new AdabasStore<>(SampleView.class);
+        WriteAheadLog reopened = new WriteAheadLog(dir.resolve("sample.wal"));
+        reopened.attach(VIEW, recovered);
+        assertEquals(sessions * rounds, reopened.replay());
+        assertEquals(sessions * rounds, recovered.size());
+        reopened.close();
+    }
+
+    @Test
+    void failedLogTakesNoMoreCommits(@TempDir Path dir) {
+        AdabasStore<SampleView> store = new AdabasStore<>(SampleView.class);
+        WriteAheadLog log = new WriteAheadLog(dir.resolve("sample.wal"));
+        log.attach(VIEW, store);
+        store.store(VIEW, SampleView.of("A"));
+        // the channel is gone, so the next write fails
+        log.close();
+
+        assertThrows(NaturalException.class, () -> store.store(VIEW, SampleView.of("B")));
+        assertEquals(1, store.size());
+        assertThrows(NaturalException.class, () -> store.update(SampleView.of(1, "A2")));
+        assertEquals("A", store.getByISN(1).getMyString());
+        AdabasTransaction transaction = AdabasTransaction.begin();
+        store.delete(store.getByISN(1));
+        assertThrows(NaturalException.class, transaction::commit);
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void commitsTheLogFailsToWriteAreNotApplied(@TempDir Path dir) {
+        AdabasStore<SampleView> store = new AdabasStore<>(SampleView.class);
+        WriteAheadLog log = new WriteAheadLog(dir.resolve("sample.wal"));
+        log.attach(VIEW, store);
+        store.store(VIEW, SampleView.of("A"));
+        log.close();
+
+        AdabasTransaction transaction = AdabasTransaction.begin();
+        store.update(SampleView.of(1, "A2"));
+        store.store(VIEW, SampleView.of("B"));
+        assertThrows(NaturalException.class, transaction::commit);
+
+        assertEquals("A", store.getByISN(1).getMyString());
+        assertEquals(1, store.size());
+        assertEquals(1, store.readBy(VIEW, "MY-STRING < 'Z'").size());
+        assertFalse(HoldQueue.isHeld(store, 1));
+    }
+
+    @Test
+    void checkpointEmptiesTheLog(@TempDir Path dir) throws Exception {
+        Path snapshot = dir.resolve("sample.snap");
+        Path path = dir.resolve("sample.wal");
+        AdabasStore<SampleView> store = new AdabasStore<>(SampleView.class);
+        WriteAheadLog log = new WriteAheadLog(path);
+        log.attach(VIEW, store);
+        store.storeAll(VIEW, List.of(SampleView.of("A"), SampleView.of("B")));
+        log.checkpoint(() -> store.saveSnapshot(snapshot));
+        assertEquals(0, Files.size(path));
+        store.update(SampleView.of(2, "B2"));
+        log.close();
+
+        AdabasStore<SampleView> recovered = new AdabasStore<>(SampleView.class);
+        recovered.loadSnapshot(snapshot);
+        WriteAheadLog reopened = new WriteAheadLog(path);
+        reopened.attach(VIEW, recovered);
+        assertEquals(1, reopened.replay());
+        assertEquals("B2", recovered.getByISN(2).getMyString());
+        reopened.close();
+    }
+
+    @Test
+    void storesNeedTheirRecordClass(@TempDir Path dir) {
+        WriteAheadLog log = new WriteAheadLog(dir.resolve("sample.wal"));
+        assertThrows(NaturalException.class, () -> log.attach(VIEW, new AdabasStore<SampleView>()));
+        log.close();
+    }
+}
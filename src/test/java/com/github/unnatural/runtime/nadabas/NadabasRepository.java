@@ -18,21 +18,46 @@ OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
 
 package com.github.unnatural.runtime.nadabas;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.TreeNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.github.unnatural.runtime.AdabasRecord;
+import com.github.unnatural.runtime.ColumnarRecordStorage;
+import com.github.unnatural.runtime.Continuation;
+import com.github.unnatural.runtime.DescriptorIndex;
+import com.github.unnatural.runtime.DescriptorIndexes;
+import com.github.unnatural.runtime.FieldCopier;
+import com.github.unnatural.runtime.HistogramValue;
+import com.github.unnatural.runtime.IsnBitmap;
+import com.github.unnatural.runtime.IsnTable;
+import com.github.unnatural.runtime.NaturalException;
+import com.github.unnatural.runtime.OffHeapRecordStorage;
+import com.github.unnatural.runtime.RecordSnapshot;
+import com.github.unnatural.runtime.RecordStorage;
+import com.github.unnatural.runtime.ResultPage;
+import com.github.unnatural.runtime.HoldQueue;
+import com.github.unnatural.runtime.RetainedSets;
+import com.github.unnatural.runtime.WhereClause;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * An incomplete in-memory implementation for a repository of adabas records
@@ -41,30 +66,139 @@ import java.util.stream.Collectors;
  */
 @Slf4j
 public class NadabasRepository<E extends NadabasRecord> {
-    private final Map<Integer, E> records = new HashMap<>();
+    private static final int LOAD_BATCH_SIZE = 1000;
+    // the fewest ISNs given to one part of a parallel scan
+    private static final int SCAN_PART_SIZE = 1024;
+
+    private final RecordStorage<E> records;
     private final ObjectMapper mapper;
 
     private final NadabasEvaluator<E> evaluator;
     private final Class<E> recordClass;
+    private final DescriptorIndexes<E> descriptors;
     @Getter
     private int nextIsn = 1000;
 
+    /**
+     * A repository evaluating where clauses with compiled {@link WhereClause}s
+     */
+    public NadabasRepository(Class<E> recordClass) {
+        this(null, recordClass);
+    }
+
+    /**
+     * A repository evaluating where clauses with a hand written evaluator
+     */
     public NadabasRepository(NadabasEvaluator<E> evaluator, Class<E> recordClass) {
+        this(evaluator, recordClass, new IsnTable<>());
+    }
+
+    /**
+     * A repository holding its records in the given storage, for example an {@link OffHeapRecordStorage} for large
+     * resident files. Records read from storage are copies unless the storage keeps the objects it is given.
+     */
+    public NadabasRepository(NadabasEvaluator<E> evaluator, Class<E> recordClass, RecordStorage<E> records) {
+        this.records = records;
         this.evaluator = evaluator;
         this.recordClass = recordClass;
+        this.descriptors = new DescriptorIndexes<>(recordClass);
         this.mapper = new ObjectMapper();
         this.mapper.registerModule(new JavaTimeModule());
     }
 
-    public void initialise(InputStream jsonIs) {
-        try {
-            E[] recordsIn = mapper.readValue(jsonIs, (Class<E[]>) recordClass.arrayType());
-            Arrays.stream(recordsIn).forEach(r -> records.put(r.getIsn(), r));
+    public LoadStatistics initialise(InputStream jsonIs) {
+        return initialise(jsonIs, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Stream a JSON array of records into the repository. The array is tokenised on the calling thread,
+     * batches of records are deserialised by a pool of workers and inserted as each batch completes.
+     * Only a few batches per worker are held at any time, so the whole export is never in memory.
+     */
+    public LoadStatistics initialise(InputStream jsonIs, int workers) {
+        long start = System.nanoTime();
+        long loaded = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers));
+        Deque<Future<List<E>>> inFlight = new ArrayDeque<>();
+        try (JsonParser parser = mapper.getFactory().createParser(jsonIs)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Expected an array of records");
+            }
+            List<TreeNode> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+            for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new IOException("Expected a record but got " + token + " at " + parser.currentLocation());
+                }
+                batch.add(parser.readValueAsTree());
+                if (batch.size() == LOAD_BATCH_SIZE) {
+                    inFlight.add(pool.submit(deserialise(batch)));
+                    batch = new ArrayList<>(LOAD_BATCH_SIZE);
+                    if (inFlight.size() > 2 * workers) {
+                        loaded += insert(inFlight.poll());
+                    }
+                }
+            }
+            inFlight.add(pool.submit(deserialise(batch)));
+            while (!inFlight.isEmpty()) {
+                loaded += insert(inFlight.poll());
+            }
         } catch (IOException e) {
             throw new RuntimeException("Unable to initialise Nadabas repository: " + e.getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+        skipLoadedIsns();
+        LoadStatistics statistics = new LoadStatistics(loaded, System.nanoTime() - start);
+        log.info("Loaded {} {} records in {} ms ({} records/s)", loaded, recordClass.getSimpleName(),
+                statistics.elapsedNanos() / 1_000_000, statistics.recordsPerSecond());
+        return statistics;
+    }
+
+    // records keep the ISNs they were loaded with, new records are stored above them
+    private void skipLoadedIsns() {
+        nextIsn = Math.max(nextIsn, records.getMaxIsn() + 1);
+    }
+
+    private Callable<List<E>> deserialise(List<TreeNode> batch) {
+        return () -> {
+            List<E> result = new ArrayList<>(batch.size());
+            for (TreeNode node : batch) {
+                result.add(mapper.treeToValue(node, recordClass));
+            }
+            return result;
+        };
+    }
+
+    private int insert(Future<List<E>> batch) throws IOException {
+        try {
+            List<E> loaded = batch.get();
+            loaded.forEach(this::putRecord);
+            return loaded.size();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage());
         }
     }
 
+    /**
+     * Write every record to a binary snapshot that {@link #loadSnapshot(Path)} can read back
+     */
+    public int saveSnapshot(Path path) {
+        return RecordSnapshot.save(path, recordClass, all(0).iterator());
+    }
+
+    public LoadStatistics loadSnapshot(Path path) {
+        long start = System.nanoTime();
+        int loaded = RecordSnapshot.load(path, recordClass, this::putRecord);
+        skipLoadedIsns();
+        LoadStatistics statistics = new LoadStatistics(loaded, System.nanoTime() - start);
+        log.info("Loaded {} {} records from {} in {} ms", loaded, recordClass.getSimpleName(), path,
+                statistics.elapsedNanos() / 1_000_000);
+        return statistics;
+    }
+
     public <T extends AdabasRecord> T getByIsn(Class<T> viewClass, int isn) {
         NadabasRecord srcRecord = records.get(isn);
         if (srcRecord == null){
@@ -74,136 +208,286 @@ public class NadabasRepository<E extends NadabasRecord> {
     }
 
     private static <T extends AdabasRecord> T adaptToViewClass(NadabasRecord srcRecord, Class<T> viewClass) {
-        T result = instantiate(viewClass);
+        T result = FieldCopier.newInstance(viewClass);
         copyFieldsByName(srcRecord, result);
         return result;
     }
 
-    private static <T> T instantiate(Class<T> classToInstantiate) {
-        try {
-            return classToInstantiate.getConstructor().newInstance();
-        } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-            throw new RuntimeException(e);
-        }
+    private static void copyFieldsByName(Object src, Object dest) {
+        FieldCopier.adaptByName(src.getClass(), dest.getClass()).copy(src, dest);
     }
 
+    public <T  extends AdabasRecord> List<T> readBy(Class<T> viewClazz, String where, Object... params) {
+        return readByStream(viewClazz, where, params).collect(Collectors.toList());
+    }
 
-    private static void copyFieldsByName(Object src, Object dest) {
-        Field[] srcFields = src.getClass().getDeclaredFields();
-        Arrays.stream(srcFields).forEach((srcField) -> getField(dest.getClass(), srcField.getName()).ifPresent(
-                        (destField -> copyValue(srcField, src, destField, dest))));
+    /**
+     * Matching records adapted to the view class one at a time as the stream is consumed
+     */
+    public <T extends AdabasRecord> Stream<T> readByStream(Class<T> viewClazz, String where, Object... params) {
+        return matching(where, params).map(r -> adaptToViewClass(r, viewClazz));
     }
 
-    private static void copyValue(Field srcField, Object src, Field destField, Object dest) {
-        try {
-            srcField.setAccessible(true);
-            destField.setAccessible(true);
-            if (simpleSrcType(srcField)) {
-                Object value = srcField.get(src);
-                if (destField.getType().equals(srcField.getType())) {
-                    destField.set(dest, value);
-                } else {
-                    if (srcField.getType().equals(int.class)) {
-                        setViaCustomSetter(value, destField, dest, "Integer", int.class);
-                    } else if (srcField.getType().equals(String.class)) {
-                        setViaCustomSetter(value, destField, dest, "String", String.class);
-                    }
-                }
-            } else if (arrayOfSimpleSrcType(srcField)){
-                if (destField.getType().equals(srcField.getType())) {
-                    copyArrayValues(srcField, src, destField, dest);
-                } else {
-                    log.warn("Unable to copy {} on class {} to class {} - {}: {}", srcField.getName(),
-                            src.getClass().getName(), dest.getClass().getName(), "unsupported array",
-                            srcField.getType().getName());
-                }
-            } else {
-                log.warn("Unable to copy {} on class {} to class {} - {}: {}", srcField.getName(),
-                        src.getClass().getName(), dest.getClass().getName(), "complex src type",
-                        srcField.getType().getName());
-            }
-        } catch (IllegalAccessException e) {
-            log.warn("Unable to copy {} on class {} to class {} - {}", srcField.getName(),
-                    src.getClass().getName(), dest.getClass().getName(), e.getMessage());
+    public <T extends AdabasRecord> List<T> readByParallel(Class<T> viewClazz, String where, Object... params) {
+        return readByParallel(ForkJoinPool.commonPool(), viewClazz, where, params);
+    }
+
+    /**
+     * READ PHYSICAL for large scans: the ISN space, or the ISNs the indexes select, is split into parts that are
+     * filtered and adapted to the view class concurrently on the pool, the parts are then joined in ascending ISN order
+     */
+    public <T extends AdabasRecord> List<T> readByParallel(ForkJoinPool pool, Class<T> viewClazz, String where, Object... params) {
+        Optional<WhereClause.Query<E>> query = compile(where, params);
+        Optional<IsnBitmap> scanned = scan(query);
+        Predicate<E> filter = scanned.isPresent() ? r -> true : filter(query, where, params);
+        int[] isns = scanned.map(IsnBitmap::toArray).or(() -> query.flatMap(q -> q.candidates(descriptors))).orElse(null);
+        // without an ISN list the parts are ranges of ISNs rather than ranges of the list
+        int span = isns == null ? records.getMaxIsn() : isns.length;
+        int parts = Math.max(1, Math.min(span / SCAN_PART_SIZE, pool.getParallelism() * 4));
+        List<ForkJoinTask<List<T>>> tasks = new ArrayList<>(parts);
+        for (int part = 0; part < parts; part++) {
+            int from = (int) ((long) span * part / parts);
+            int to = (int) ((long) span * (part + 1) / parts);
+            IntStream partIsns = isns == null
+                    ? IntStream.iterate(records.nextIsn(from + 1), isn -> isn > 0 && isn <= to, isn -> records.nextIsn(isn + 1))
+                    : Arrays.stream(isns, from, to);
+            tasks.add(pool.submit(() -> partIsns.mapToObj(records::get).filter(Objects::nonNull).filter(filter)
+                    .map(r -> adaptToViewClass(r, viewClazz)).collect(Collectors.toList())));
         }
+        List<T> result = new ArrayList<>();
+        for (ForkJoinTask<List<T>> task : tasks) {
+            result.addAll(task.join());
+        }
+        return result;
     }
 
-    private static void copyArrayValues(Field srcField, Object src, Field destField, Object dest) throws IllegalAccessException {
-        if (destField.get(dest) == null) {
-            destField.set(dest, srcField.get(src));
-        } else {
-            if (srcField.getType().equals(int[].class)) {
-                int[] srcArray = (int[]) srcField.get(src);
-                int[] destArray = (int[]) destField.get(dest);
-                System.arraycopy(srcArray, 0, destArray, 0, srcArray.length);
-            } else {
-                Object[] srcArray = (Object[]) srcField.get(src);
-                Object[] destArray = (Object[]) destField.get(dest);
-                System.arraycopy(srcArray, 0, destArray, 0, srcArray.length);
+    /**
+     * Counted from the descriptor indexes when they answer the whole clause, from the columns of columnar storage
+     * or otherwise by checking records without adapting them to views
+     */
+    public int count(String where, Object... params) {
+        if (evaluator == null) {
+            WhereClause.Query<E> query = WhereClause.compile(where).bind(recordClass, params);
+            OptionalInt indexed = query.count(descriptors);
+            if (indexed.isPresent()) {
+                return indexed.getAsInt();
+            }
+            Optional<IsnBitmap> scanned = scan(Optional.of(query));
+            if (scanned.isPresent()) {
+                return scanned.get().cardinality();
             }
         }
+        return (int) matching(where, params).count();
+    }
+
+    /**
+     * The distinct values of a descriptor between from and to with their record counts, read from its index
+     */
+    public Stream<HistogramValue> histogram(String descriptor, Object from, Object to) {
+        DescriptorIndex index = descriptors.find(descriptor)
+                .orElseThrow(() -> new NaturalException("No descriptor " + descriptor + " declared on " + recordClass.getName()));
+        return index.values(from, to, null, Integer.MAX_VALUE).stream();
     }
 
-    private static boolean arrayOfSimpleSrcType(Field srcField) {
-        return srcField.getType().equals(int[].class) || srcField.getType().equals(String[].class) || srcField.getType().equals(LocalDate[].class) || srcField.getType().equals(LocalDateTime[].class);
+    /**
+     * A page of matching records in ISN order adapted to the view class, continuing after the position of the
+     * token returned with the page before
+     */
+    public <T extends AdabasRecord> ResultPage<T> readPage(Class<T> viewClazz, String where, int pageSize, String continuation,
+                                                           Object... params) {
+        Continuation after = Continuation.decode(continuation);
+        if (after != null && after.descriptor() != null) {
+            throw new NaturalException("Continuation " + continuation + " is not a position in ISN order");
+        }
+        return ResultPage.of(matching(after == null ? 0 : after.isn(), where, params).map(r -> adaptToViewClass(r, viewClazz)),
+                pageSize, view -> Continuation.afterIsn(view.getIsn()));
+    }
 
+    /**
+     * FIND ... RETAIN AS setName, optionally refining a set retained before, returning the number of records kept
+     */
+    public int retain(String setName, String fromSet, String where, Object... params) {
+        IsnBitmap from = fromSet == null ? null : RetainedSets.get(fromSet, this);
+        Stream<E> matching = from == null ? matching(where, params) : retained(from, where, params);
+        IsnBitmap isns = IsnBitmap.ofSorted(matching.mapToInt(NadabasRecord::getIsn).toArray());
+        RetainedSets.retain(setName, this, isns);
+        return isns.cardinality();
     }
 
-    private static boolean simpleSrcType(Field srcField) {
-        return srcField.getType().equals(int.class) || srcField.getType().equals(String.class) || srcField.getType().equals(LocalDate.class) || srcField.getType().equals(LocalDateTime.class);
+    /**
+     * The matching records of a retained set adapted to the view class, a null where matching all of them
+     */
+    public <T extends AdabasRecord> Stream<T> readRetained(Class<T> viewClazz, String setName, String where, Object... params) {
+        return retained(RetainedSets.get(setName, this), where, params).map(r -> adaptToViewClass(r, viewClazz));
     }
 
-    private static void setViaCustomSetter(Object value, Field destField, Object dest, String typeName, Class<?> paramClass) {
-        try {
-            Method setter = destField.getType().getMethod("setFrom" + typeName, paramClass);
-            Object complexDestField = destField.get(dest);
-            setter.invoke(complexDestField, value);
-        } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException e ) {
-            log.warn("Unable to set {} on class {} - {} {}", destField.getName(),
-                    dest.getClass().getName(), "no custom setter for", typeName);
+    private Stream<E> retained(IsnBitmap retained, String where, Object... params) {
+        if (where == null) {
+            return Arrays.stream(retained.toArray()).mapToObj(records::get).filter(Objects::nonNull);
         }
+        Optional<WhereClause.Query<E>> query = compile(where, params);
+        IsnBitmap isns = query.flatMap(q -> q.candidateSet(descriptors)).map(retained::and).orElse(retained);
+        return Arrays.stream(isns.toArray()).mapToObj(records::get).filter(Objects::nonNull).filter(filter(query, where, params));
     }
 
-    static Optional<Field> getField(Class<?> clazz, String fieldName) {
-        if (classHasField(clazz, fieldName)){
-            try {
-                return Optional.of(clazz.getDeclaredField(fieldName));
-            } catch (NoSuchFieldException e) {
-                return Optional.empty();
-            }
+    private Stream<E> matching(String where, Object... params) {
+        return matching(0, where, params);
+    }
+
+    // matching records with ISNs above afterIsn
+    private Stream<E> matching(int afterIsn, String where, Object... params) {
+        Optional<WhereClause.Query<E>> query = compile(where, params);
+        Optional<IsnBitmap> scanned = scan(query);
+        if (scanned.isPresent()) {
+            return Arrays.stream(scanned.get().toArray()).filter(isn -> isn > afterIsn).mapToObj(records::get).filter(Objects::nonNull);
         }
-        return Optional.empty();
+        Stream<E> candidates = query.flatMap(q -> q.candidates(descriptors))
+                .map(isns -> Arrays.stream(isns).filter(isn -> isn > afterIsn).mapToObj(records::get))
+                .orElseGet(() -> all(afterIsn));
+        return candidates.filter(filter(query, where, params));
     }
 
-    private static boolean classHasField(Class<?> clazz, String fieldName) {
-        return Arrays.stream(clazz.getDeclaredFields()).anyMatch(f -> f.getName().equals(fieldName));
+    // the exact matches of a clause the indexes cannot narrow, tested a column at a time when records are held in columns
+    private Optional<IsnBitmap> scan(Optional<WhereClause.Query<E>> query) {
+        if (evaluator != null || query.isEmpty() || !(records instanceof ColumnarRecordStorage<E> columns)
+                || query.get().candidateSet(descriptors).isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.of(query.get().scan(columns));
     }
 
-    public <T  extends AdabasRecord> List<T> readBy(Class<T> viewClazz, String where, Object... params) {
-        return records.values().stream().filter(r -> evaluator.match(r, where, params))
-                .map(r -> adaptToViewClass(r, viewClazz))
-                .collect(Collectors.toList());
+    // every record with an ISN above afterIsn in ISN order
+    private Stream<E> all(int afterIsn) {
+        return IntStream.iterate(records.nextIsn(afterIsn + 1), isn -> isn > 0, isn -> records.nextIsn(isn + 1))
+                .mapToObj(records::get).filter(Objects::nonNull);
+    }
+
+    private Predicate<E> filter(Optional<WhereClause.Query<E>> query, String where, Object... params) {
+        return evaluator == null ? query.orElseThrow() : r -> evaluator.match(r, where, params);
+    }
+
+    private Optional<WhereClause.Query<E>> compile(String where, Object... params) {
+        try {
+            return Optional.of(WhereClause.compile(where).bind(recordClass, params));
+        } catch (NaturalException e) {
+            if (evaluator == null) {
+                throw e;
+            }
+            // a hand written evaluator may understand clauses the compiler does not, so scan everything
+            return Optional.empty();
+        }
     }
 
     public <T extends AdabasRecord> List<T> readByWithCount(Class<T> viewClazz, String where, int count, Object... params) {
-        List<T> results = readBy(viewClazz, where, params);
-        return results.subList(0, Math.min(count, results.size()));
+        return readByStream(viewClazz, where, params).limit(count).collect(Collectors.toList());
+    }
+
+    // put the record in hold for a later update or delete, until the session's transaction ends.
+    // Updates and deletes hold their records themselves, only while they run for a session with no transaction.
+    public void hold(int isn) {
+        HoldQueue.hold(this, isn);
     }
 
     public <T  extends AdabasRecord> void update(T view) {
-        if (!records.containsKey(view.getIsn())){
-            throw new RuntimeException("No record found for ISN " + view.getIsn());
-        }
-        E record = records.get(view.getIsn());
-        copyFieldsByName(view, record);
+        HoldQueue.holdWhile(this, view.getIsn(), () -> {
+            E record = records.get(view.getIsn());
+            if (record == null){
+                throw new RuntimeException("No record found for ISN " + view.getIsn());
+            }
+            descriptors.remove(record.getIsn(), record);
+            copyFieldsByName(view, record);
+            records.replace(record.getIsn(), record);
+            descriptors.add(record.getIsn(), record);
+        });
     }
 
     public <T extends AdabasRecord> int store(T view) {
         view.setIsn(nextIsn++);
-        E record = instantiate(recordClass);
+        E record = FieldCopier.newInstance(recordClass);
         copyFieldsByName(view, record);
-        records.put(record.getIsn(), record);
+        putRecord(record);
         return view.getIsn();
     }
 
+    public <T extends AdabasRecord> void delete(T view) {
+        HoldQueue.holdWhile(this, view.getIsn(), () -> {
+            E record = records.get(view.getIsn());
+            if (record != null) {
+                records.delete(record.getIsn());
+                descriptors.remove(record.getIsn(), record);
+            }
+        });
+    }
+
+    /**
+     * Store a batch of views under a block of ISNs reserved in one step, indexing the batch once
+     */
+    public <T extends AdabasRecord> int[] storeAll(List<T> views) {
+        int[] isns = new int[views.size()];
+        List<E> added = new ArrayList<>(views.size());
+        FieldCopier copier = null;
+        for (int i = 0; i < isns.length; i++) {
+            T view = views.get(i);
+            isns[i] = nextIsn + i;
+            view.setIsn(isns[i]);
+            if (copier == null || view.getClass() != views.get(i - 1).getClass()) {
+                copier = FieldCopier.adaptByName(view.getClass(), recordClass);
+            }
+            E record = FieldCopier.newInstance(recordClass);
+            copier.copy(view, record);
+            records.store(isns[i], record);
+            added.add(record);
+        }
+        nextIsn += isns.length;
+        descriptors.addAll(isns, added);
+        return isns;
+    }
+
+    public <T extends AdabasRecord> int[] updateAll(List<T> views) {
+        int[] isns = views.stream().mapToInt(AdabasRecord::getIsn).toArray();
+        return HoldQueue.holdWhile(this, isns, () -> {
+            List<E> updated = new ArrayList<>(views.size());
+            for (int isn : isns) {
+                E record = records.get(isn);
+                if (record == null) {
+                    throw new RuntimeException("No record found for ISN " + isn);
+                }
+                updated.add(record);
+            }
+            descriptors.removeAll(isns, updated);
+            for (int i = 0; i < isns.length; i++) {
+                copyFieldsByName(views.get(i), updated.get(i));
+                records.replace(isns[i], updated.get(i));
+            }
+            descriptors.addAll(isns, updated);
+            return isns;
+        });
+    }
+
+    // the ISNs of the records that were deleted
+    public <T extends AdabasRecord> int[] deleteAll(List<T> views) {
+        return HoldQueue.holdWhile(this, views.stream().mapToInt(AdabasRecord::getIsn).toArray(), () -> {
+            List<E> deleted = new ArrayList<>(views.size());
+            for (T view : views) {
+                E record = records.get(view.getIsn());
+                if (record != null) {
+                    records.delete(record.getIsn());
+                    deleted.add(record);
+                }
+            }
+            int[] isns = deleted.stream().mapToInt(NadabasRecord::getIsn).toArray();
+            descriptors.removeAll(isns, deleted);
+            return isns;
+        });
+    }
+
+    private void putRecord(E record) {
+        E previous = records.get(record.getIsn());
+        records.store(record.getIsn(), record);
+        if (previous != null) {
+            descriptors.remove(previous.getIsn(), previous);
+        }
+        descriptors.add(record.getIsn(), record);
+    }
+
 }
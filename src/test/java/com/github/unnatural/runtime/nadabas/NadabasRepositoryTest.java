@@ -18,13 +18,31 @@ OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
 
 package com.github.unnatural.runtime.nadabas;
 
+import com.github.unnatural.runtime.Continuation;
+import com.github.unnatural.runtime.HistogramValue;
+import com.github.unnatural.runtime.IsnTable;
+import com.github.unnatural.runtime.NaturalException;
+import com.github.unnatural.runtime.OffHeapRecordStorage;
+import com.github.unnatural.runtime.ResultPage;
+import com.github.unnatural.runtime.RetainedSets;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.github.unnatural.runtime.nadabas.SampleView.isns;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class NadabasRepositoryTest {
     public static final String EXISTING_VALUE = "Hello World!";
@@ -93,6 +111,243 @@ class NadabasRepositoryTest {
         assertEquals(ISN, results.get(0).getIsn());
     }
 
+    @Test
+    void readByUsesDescriptorIndexForRange() {
+        underTest.initialise(getJsonData(SAMPLE_JSON));
+        storeValue("Apple");
+        storeValue("Banana");
+        storeValue("Cherry");
+
+        List<SampleView> results = underTest.readBy(SampleView.class, "MY-STRING = {from} THRU {to}", "B", "D");
+
+        assertEquals(List.of("Banana", "Cherry"), results.stream().map(SampleView::getMyString).toList());
+    }
+
+    @Test
+    void updateMaintainsDescriptorIndex() {
+        underTest.initialise(getJsonData(SAMPLE_JSON));
+        SampleView view = underTest.getByIsn(SampleView.class, ISN);
+        view.setMyString(NEW_VALUE);
+        underTest.update(view);
+
+        assertEquals(0, underTest.count("MY-STRING = {myString}", EXISTING_VALUE));
+        assertEquals(1, underTest.count("MY-STRING = {myString}", NEW_VALUE));
+    }
+
+    @Test
+    void readByWithCompiledWhereClause() {
+        NadabasRepository<SampleNadabas> compiled = new NadabasRepository<>(SampleNadabas.class);
+        compiled.initialise(getJsonData(SAMPLE_JSON));
+
+        List<SampleView> results = compiled.readBy(SampleView.class, "MY-STRING = {myString} OR MY-STRING = 'Another Value'", EXISTING_VALUE);
+
+        assertEquals(2, results.size());
+        assertEquals(1, compiled.count("NOT MY-STRING = {myString}", EXISTING_VALUE));
+    }
+
+    @Test
+    void readByStreamStopsAtLimit() {
+        AtomicInteger reads = new AtomicInteger();
+        IsnTable<SampleNadabas> counted = new IsnTable<>() {
+            @Override
+            public SampleNadabas get(int isn) {
+                reads.incrementAndGet();
+                return super.get(isn);
+            }
+        };
+        NadabasRepository<SampleNadabas> compiled = new NadabasRepository<>(null, SampleNadabas.class, counted);
+        for (int i = 0; i < 100; i++) {
+            SampleView view = new SampleView();
+            view.setMyString("Value " + i);
+            compiled.store(view);
+        }
+        reads.set(0);
+
+        List<SampleView> results = compiled.readByWithCount(SampleView.class, "MY-STRING >= {from}", 3, "Value");
+
+        assertEquals(3, results.size());
+        assertEquals(3, reads.get());
+        assertEquals(100, compiled.readByStream(SampleView.class, "MY-STRING >= {from}", "Value").count());
+    }
+
+    @Test
+    void initialiseStreamsLargeExportAcrossWorkers() {
+        StringBuilder json = new StringBuilder("[");
+        for (int isn = 1; isn <= 2500; isn++) {
+            json.append(isn > 1 ? "," : "").append("{\"ISN\":").append(isn).append(",\"MY-STRING\":\"Value ").append(isn).append("\"}");
+        }
+        json.append("]");
+
+        LoadStatistics statistics = underTest.initialise(new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8)), 3);
+
+        assertEquals(2500, statistics.records());
+        assertEquals("Value 2500", underTest.getByIsn(SampleView.class, 2500).getMyString());
+        assertEquals(1, underTest.count("MY-STRING = {myString}", "Value 1234"));
+        assertEquals(2501, underTest.getNextIsn());
+    }
+
+    @Test
+    void initialiseRejectsArrayElementsThatAreNotRecords() {
+        for (String json : List.of("[{\"ISN\":1},null,{\"ISN\":2}]", "[{\"ISN\":1},[],{\"ISN\":2}]", "[{\"ISN\":1}")) {
+            assertThrows(RuntimeException.class,
+                    () -> underTest.initialise(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))), json);
+        }
+    }
+
+    @Test
+    void snapshotReloadsRecordsAndIndexes(@TempDir Path dir) {
+        underTest.initialise(getJsonData(SAMPLE_JSON));
+        storeValue("Apple");
+        Path snapshot = dir.resolve("sample.snap");
+        assertEquals(3, underTest.saveSnapshot(snapshot));
+
+        NadabasRepository<SampleNadabas> reloaded = new NadabasRepository<>(SampleNadabas.class);
+        assertEquals(3, reloaded.loadSnapshot(snapshot).records());
+        assertEquals(EXISTING_VALUE, reloaded.getByIsn(SampleView.class, ISN).getMyString());
+        assertEquals(1, reloaded.count("MY-STRING = {myString}", "Apple"));
+
+        SampleView added = new SampleView();
+        added.setMyString("Banana");
+        assertEquals(underTest.getNextIsn(), reloaded.store(added));
+        assertEquals(1, reloaded.count("MY-STRING = {myString}", "Apple"));
+    }
+
+    @Test
+    void batchOperationsMaintainDescriptorIndex() {
+        List<SampleView> views = new ArrayList<>();
+        for (String value : List.of("Apple", "Banana", "Apple", "Cherry")) {
+            SampleView view = new SampleView();
+            view.setMyString(value);
+            views.add(view);
+        }
+
+        int[] isns = underTest.storeAll(views);
+        assertEquals(4, isns.length);
+        assertEquals(isns[3] + 1, underTest.getNextIsn());
+        assertEquals(2, underTest.count("MY-STRING = {myString}", "Apple"));
+
+        views.get(0).setMyString("Banana");
+        underTest.updateAll(views);
+        assertEquals(1, underTest.count("MY-STRING = {myString}", "Apple"));
+        assertEquals(2, underTest.count("MY-STRING = {myString}", "Banana"));
+
+        underTest.deleteAll(views.subList(0, 2));
+        assertEquals(0, underTest.count("MY-STRING = {myString}", "Banana"));
+        assertEquals(List.of(isns[2], isns[3]),
+                underTest.readBy(SampleView.class, "MY-STRING = {from} THRU {to}", "A", "D").stream().map(SampleView::getIsn).toList());
+    }
+
+    @Test
+    void offHeapStorageKeepsRecordsOutsideTheHeap() {
+        OffHeapRecordStorage<SampleNadabas> storage = new OffHeapRecordStorage<>(SampleNadabas.class, 4096);
+        underTest = new NadabasRepository<>(new SampleEvaluator(), SampleNadabas.class, storage);
+        underTest.initialise(getJsonData(SAMPLE_JSON));
+        List<SampleView> views = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            SampleView view = new SampleView();
+            view.setMyString("Value " + i);
+            views.add(view);
+        }
+        underTest.storeAll(views);
+
+        // rewriting every record leaves whole chunks dead, they are compacted and reused
+        for (int round = 0; round < 10; round++) {
+            for (SampleView view : views) {
+                view.setMyString("Round " + round);
+            }
+            underTest.updateAll(views);
+        }
+        SampleView existing = underTest.getByIsn(SampleView.class, ISN);
+        existing.setMyString(NEW_VALUE);
+        underTest.update(existing);
+        underTest.delete(views.get(0));
+
+        assertEquals(NEW_VALUE, underTest.getByIsn(SampleView.class, ISN).getMyString());
+        assertEquals(199, underTest.count("MY-STRING = {myString}", "Round 9"));
+        assertEquals(201, storage.size());
+        assertTrue(storage.getOffHeapBytes() <= 4 * 4096);
+    }
+
+    @Test
+    void readByParallelKeepsIsnOrder() {
+        NadabasRepository<SampleNadabas> compiled = new NadabasRepository<>(SampleNadabas.class);
+        List<SampleView> views = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            SampleView view = new SampleView();
+            view.setMyString(i % 3 == 0 ? "Apple" : "Banana");
+            views.add(view);
+        }
+        compiled.storeAll(views);
+        underTest.storeAll(views);
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            for (NadabasRepository<SampleNadabas> repository : List.of(compiled, underTest)) {
+                List<SampleView> parallel = repository.readByParallel(pool, SampleView.class, "MY-STRING = {myString}", "Apple");
+                assertEquals(3334, parallel.size());
+                assertEquals(isns(repository.readBy(SampleView.class, "MY-STRING = {myString}", "Apple")), isns(parallel));
+            }
+            // no descriptor on ISN, so the parts are ranges of the ISN space
+            List<SampleView> scanned = compiled.readByParallel(pool, SampleView.class, "ISN > 5000");
+            assertEquals(5999, scanned.size());
+            assertEquals(isns(compiled.readBy(SampleView.class, "ISN > 5000")), isns(scanned));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void histogramCountsDistinctValuesInOrder() {
+        storeValue("Cherry");
+        storeValue("Apple");
+        storeValue("Banana");
+        storeValue("Apple");
+
+        assertEquals(List.of(new HistogramValue("Apple", 2), new HistogramValue("Banana", 1), new HistogramValue("Cherry", 1)),
+                underTest.histogram("MY-STRING", null, null).toList());
+        assertEquals(List.of(new HistogramValue("Banana", 1)), underTest.histogram("MY-STRING", "B", "C").toList());
+    }
+
+    @Test
+    void readPageContinuesInIsnOrder() {
+        for (int i = 0; i < 25; i++) {
+            storeValue(i % 5 == 0 ? "Apple" : "Banana");
+        }
+
+        ResultPage<SampleView> first = underTest.readPage(SampleView.class, "MY-STRING = {myString}", 3, null, "Banana");
+        ResultPage<SampleView> second = underTest.readPage(SampleView.class, "MY-STRING = {myString}", 3, first.continuation(), "Banana");
+        ResultPage<SampleView> all = underTest.readPage(SampleView.class, "MY-STRING = {from} THRU {to}", 30, null, "A", "C");
+
+        assertEquals(List.of(1001, 1002, 1003), first.records().stream().map(SampleView::getIsn).toList());
+        assertEquals(List.of(1004, 1006, 1007), second.records().stream().map(SampleView::getIsn).toList());
+        assertEquals(25, all.records().size());
+        assertFalse(all.hasMore());
+
+        String logical = Continuation.afterEntry("MY-STRING", "Banana", 1002).encode();
+        assertThrows(NaturalException.class, () -> underTest.readPage(SampleView.class, "MY-STRING = {myString}", 3, logical, "Banana"));
+    }
+
+    @Test
+    void retainedSetsLimitLaterFinds() {
+        for (int i = 0; i < 10; i++) {
+            storeValue(i % 2 == 0 ? "Apple" : "Banana");
+        }
+        try {
+            assertEquals(5, underTest.retain("APPLES", null, "MY-STRING = {myString}", "Apple"));
+            assertEquals(0, underTest.retain("NONE", "APPLES", "MY-STRING = {myString}", "Banana"));
+            assertEquals(List.of(1000, 1002, 1004, 1006, 1008),
+                    underTest.readRetained(SampleView.class, "APPLES", null).map(SampleView::getIsn).toList());
+        } finally {
+            RetainedSets.releaseAll();
+        }
+    }
+
+    private void storeValue(String value) {
+        SampleView view = new SampleView();
+        view.setMyString(value);
+        underTest.store(view);
+    }
+
     private static InputStream getJsonData(String jsonClasspathResource) {
         InputStream jsonIs = Thread.currentThread().getContextClassLoader().getResourceAsStream(jsonClasspathResource);
         if (jsonIs == null) {
@@ -24,6 +24,10 @@ public class SampleEvaluator implements NadabasEvaluator<SampleNadabas> {
         if (query.equals("MY-STRING = {myString}")){
             return params[0].equals(record.getMyString());
         }
+        if (query.equals("MY-STRING = {from} THRU {to}")){
+            String value = record.getMyString();
+            return value != null && value.compareTo((String) params[0]) >= 0 && value.compareTo((String) params[1]) <= 0;
+        }
         return false;
     }
 }
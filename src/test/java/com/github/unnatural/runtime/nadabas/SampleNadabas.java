@@ -19,10 +19,12 @@ OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
 package com.github.unnatural.runtime.nadabas;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.github.unnatural.runtime.Descriptor;
 import lombok.Getter;
 
 @Getter
 public class SampleNadabas implements NadabasRecord {
+    @Descriptor
     @JsonProperty("MY-STRING")
     private String myString;
 
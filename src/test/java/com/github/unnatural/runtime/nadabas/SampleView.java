@@ -22,12 +22,30 @@ import com.github.unnatural.runtime.AdabasRecord;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.List;
+
 @Getter
 @Setter
 public class SampleView implements AdabasRecord {
     private String myString;
 
     private int isn;
+
+    public static SampleView of(String myString) {
+        return of(0, myString);
+    }
+
+    public static SampleView of(int isn, String myString) {
+        SampleView view = new SampleView();
+        view.setIsn(isn);
+        view.setMyString(myString);
+        return view;
+    }
+
+    public static List<Integer> isns(List<? extends AdabasRecord> records) {
+        return records.stream().map(AdabasRecord::getIsn).toList();
+    }
+
     @Override
     public int getIsn() {
         return isn;